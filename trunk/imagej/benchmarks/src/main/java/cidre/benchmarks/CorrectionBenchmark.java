@@ -0,0 +1,113 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+package cidre.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import ij.process.ShortProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The correction of a single 16-bit image (CidreCorrector), with a model of
+// the surfaces of the image size and with a model that only keeps the small
+// surfaces and upsamples them row by row.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class CorrectionBenchmark
+{
+	private static final int SMALL_WIDTH = 112;
+	private static final int SMALL_HEIGHT = 84;
+
+	@Param({ "1392x1040", "2048x2048" })
+	public String imageSize;
+
+	@Param({ "full", "small" })
+	public String model;
+
+	@Param({ "zero_light_perserved", "direct" })
+	public String correctionMode;
+
+	private Object corrector;
+	private Method correct;
+	private short[] source;
+	private ShortProcessor ip;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		int[] size = Plugin.size(imageSize);
+		int width = size[0];
+		int height = size[1];
+
+		Class<?> modelType = Plugin.type("CidreModel");
+		Object cidreModel = Plugin.create(modelType, new Class<?>[0]);
+		Plugin.set(cidreModel, "imageSize", new java.awt.Dimension(width, height));
+		Plugin.set(cidreModel, "imageSize_small", new java.awt.Dimension(SMALL_WIDTH, SMALL_HEIGHT));
+		Plugin.set(cidreModel, "v_small", Plugin.vignettingSurface(SMALL_WIDTH, SMALL_HEIGHT));
+		Plugin.set(cidreModel, "z_small", Plugin.offsetSurface(SMALL_WIDTH, SMALL_HEIGHT));
+		if (model.equals("full")) {
+			double[] v = new double[width * height];
+			double[] z = new double[width * height];
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					v[y * width + x] = Plugin.vignetting(x, y, width, height);
+					z[y * width + x] = Plugin.offset(x, y, width, height);
+				}
+			Plugin.set(cidreModel, "v", v);
+			Plugin.set(cidreModel, "z", z);
+		}
+
+		Class<?> modeType = Plugin.type("CidreOptions$CorrectionMode");
+		Class<?> outputType = Plugin.type("CidreOptions$OutputType");
+		Object mode = Plugin.constant(modeType, correctionMode);
+		Object output = Plugin.constant(outputType, "source_bit_depth");
+		Class<?> correctorType = Plugin.type("CidreCorrector");
+		corrector = Plugin.create(correctorType, new Class<?>[] { modelType, modeType, outputType, double.class }, cidreModel, mode, output, 0.0);
+		correct = Plugin.method(correctorType, "correct", ij.process.ImageProcessor.class);
+
+		source = Plugin.syntheticImage(width, height, 42);
+		ip = new ShortProcessor(width, height, source.clone(), null);
+	}
+
+	// the correction works in place
+	@Setup(Level.Invocation)
+	public void copyImage()
+	{
+		System.arraycopy(source, 0, (short[])ip.getPixels(), 0, source.length);
+	}
+
+	@Benchmark
+	public Object correct()
+	{
+		Plugin.invoke(correct, corrector, ip);
+		return ip.getPixels();
+	}
+}
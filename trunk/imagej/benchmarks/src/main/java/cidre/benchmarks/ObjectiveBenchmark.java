@@ -0,0 +1,170 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+package cidre.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The kernels of the optimization (CidreOptimization): one evaluation of the
+// energy and the gradient in the LS and the CAUCHY phase, the LoG filtering 
+// of the v regularization and the L-BFGS search direction, at the working 
+// sizes and the numbers of quantiles Z the optimization is run with.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class ObjectiveBenchmark
+{
+	private static final int CORRECTIONS = 100;	// the L-BFGS history of the optimization
+
+	@Param({ "112x84", "224x168" })
+	public String workingSize;
+
+	@Param({ "50", "200" })
+	public int Z;
+
+	private Object lsOptimization;
+	private Object cauchyOptimization;
+	private Method cdr_objective;
+	private Method imfilter_symmetric;
+	private Method lbfgsProd;
+	private double[] x;
+	private double[] v;
+	private double[][][] kernels;
+	private int C;
+	private int R;
+
+	// the full history of corrections, like in the late iterations
+	private double[] g;
+	private double[][] S;
+	private double[][] Y;
+	private double[] YS;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		int[] size = Plugin.size(workingSize);
+		C = size[0];
+		R = size[1];
+
+		List<double[][]> stack = Plugin.sortedStack(C, R, Z, 42);
+		Class<?> optimizationType = Plugin.type("CidreOptimization");
+		Class<?> pivotedStackType = Plugin.type("PivotedStack");
+		Object pivoted = Plugin.invoke(Plugin.method(optimizationType, "pivotStack", List.class, int.class, int.class), null, stack, C, R);
+
+		double stackMin = Double.MAX_VALUE;
+		double[] Q = new double[Z];
+		for (int k = 0; k < Z; k++) {
+			double sum = 0;
+			for (int i = 0; i < C; i++)
+				for (int j = 0; j < R; j++) {
+					sum += stack.get(k)[i][j];
+					stackMin = Math.min(stackMin, stack.get(k)[i][j]);
+				}
+			Q[k] = sum / (C * R);
+		}
+
+		Class<?>[] constructor = { pivotedStackType, double[].class, double.class, double.class, double.class, double.class };
+		lsOptimization = Plugin.create(optimizationType, constructor, pivoted, Q, 6.0, 0.5, 0.0, stackMin);
+		cauchyOptimization = Plugin.create(optimizationType, constructor, pivoted, Q, 6.0, 0.5, 0.0, stackMin);
+		Method setLogIterations = Plugin.method(optimizationType, "setLogIterations", boolean.class);
+		Plugin.invoke(setLogIterations, lsOptimization, false);
+		Plugin.invoke(setLogIterations, cauchyOptimization, false);
+
+		// the terms of the phases as set by cdr_cidreOptimization
+		Plugin.set(lsOptimization, "MESTIMATOR", Plugin.constant(lsOptimization, "MESTIMATOR", "LS"));
+		Plugin.set(lsOptimization, "TERMSFLAG", 0);
+		Plugin.set(cauchyOptimization, "MESTIMATOR", Plugin.constant(cauchyOptimization, "MESTIMATOR", "CAUCHY"));
+		Plugin.set(cauchyOptimization, "TERMSFLAG", 1);
+
+		Method getInitialGuess = Plugin.method(optimizationType, "getInitialGuess", double.class, double.class);
+		x = (double[])Plugin.invoke(getInitialGuess, lsOptimization, 0.85 * stackMin, 0.85 * stackMin);
+
+		cdr_objective = Plugin.method(optimizationType, "cdr_objective", double[].class);
+		imfilter_symmetric = Plugin.method(optimizationType, "imfilter_symmetric", double[].class, int.class, int.class, double[][].class);
+		lbfgsProd = Plugin.method(optimizationType, "lbfgsProd", double[].class, double[][].class, double[][].class, double[].class, int.class, int.class, double.class);
+
+		// the width of the Cauchy function is the MSE of the LS solution, 
+		// the MSE of the initial guess is of the same order
+		Object result = Plugin.invoke(cdr_objective, lsOptimization, (Object)x);
+		double energy = (Double)Plugin.get(result, "E");
+		Plugin.set(cauchyOptimization, "CAUCHY_W", energy / (C * R * Z));
+
+		v = new double[C * R];
+		System.arraycopy(x, 0, v, 0, C * R);
+		Method getLoGKernels = Plugin.method(optimizationType, "getLoGKernels");
+		kernels = (double[][][])Plugin.invoke(getLoGKernels, lsOptimization);
+
+		Random random = new Random(7);
+		int nVars = x.length;
+		g = new double[nVars];
+		S = new double[nVars][CORRECTIONS];
+		Y = new double[nVars][CORRECTIONS];
+		YS = new double[CORRECTIONS];
+		for (int i = 0; i < nVars; i++) {
+			g[i] = random.nextGaussian();
+			for (int k = 0; k < CORRECTIONS; k++) {
+				S[i][k] = random.nextGaussian();
+				Y[i][k] = S[i][k] + 0.1 * random.nextGaussian();
+			}
+		}
+		for (int k = 0; k < CORRECTIONS; k++)
+			for (int i = 0; i < nVars; i++)
+				YS[k] += Y[i][k] * S[i][k];
+	}
+
+	@Benchmark
+	public Object objectiveLS()
+	{
+		return Plugin.invoke(cdr_objective, lsOptimization, (Object)x);
+	}
+
+	@Benchmark
+	public Object objectiveCauchy()
+	{
+		return Plugin.invoke(cdr_objective, cauchyOptimization, (Object)x);
+	}
+
+	// one of the filters of the v regularization, every evaluation of the 
+	// CAUCHY phase runs two per LoG kernel
+	@Benchmark
+	public Object imfilterSymmetric()
+	{
+		return Plugin.invoke(imfilter_symmetric, lsOptimization, v, C, R, kernels[0]);
+	}
+
+	@Benchmark
+	public Object lbfgsProd()
+	{
+		return Plugin.invoke(lbfgsProd, lsOptimization, g, S, Y, YS, 0, CORRECTIONS - 1, 1.0);
+	}
+}
@@ -0,0 +1,214 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+package cidre.benchmarks;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Access to the classes of the plugin and the synthetic inputs of the 
+// benchmarks. The plugin lives in the default package, which cannot be 
+// imported, and JMH needs the benchmarks in a named package, so the plugin 
+// classes are reached by reflection. The lookups are done in the setup of 
+// the benchmarks, never in the measured code.
+final class Plugin
+{
+	private Plugin() {}
+
+	static Class<?> type(String name)
+	{
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Plugin class not found: " + name, e);
+		}
+	}
+
+	static Object create(String name, Class<?>[] parameterTypes, Object... args)
+	{
+		return create(type(name), parameterTypes, args);
+	}
+
+	static Object create(Class<?> type, Class<?>[] parameterTypes, Object... args)
+	{
+		try {
+			Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+			constructor.setAccessible(true);
+			return constructor.newInstance(args);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Method method(Class<?> type, String name, Class<?>... parameterTypes)
+	{
+		try {
+			Method method = type.getDeclaredMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Object invoke(Method method, Object target, Object... args)
+	{
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Object get(Object target, String name)
+	{
+		try {
+			return field(target.getClass(), name).get(target);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static void set(Object target, String name, Object value)
+	{
+		try {
+			field(target.getClass(), name).set(target, value);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// the constant of a private enum, e.g. the M-estimator of the optimization
+	static Object constant(Object target, String fieldName, String constantName)
+	{
+		return constant(field(target.getClass(), fieldName).getType(), constantName);
+	}
+
+	static Object constant(Class<?> type, String constantName)
+	{
+		for (Object constant : type.getEnumConstants())
+			if (((Enum<?>)constant).name().equals(constantName))
+				return constant;
+		throw new IllegalStateException("No constant " + constantName + " in " + type.getName());
+	}
+
+	private static Field field(Class<?> type, String name)
+	{
+		try {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// "112x84" -> {112, 84}
+	static int[] size(String size)
+	{
+		String[] parts = size.split("x");
+		return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+	}
+
+	// a stack of Z slices of C x R ([x][y] like the stack of the engine)
+	// following the model of CIDRE, I = v * q + z with a vignetting v, a 
+	// zero-light offset z and intensities q drawn from a gamma-like 
+	// distribution with a fixed seed, so every run measures the same input
+	static List<double[][]> syntheticStack(int C, int R, int Z, long seed)
+	{
+		Random random = new Random(seed);
+		List<double[][]> S = new ArrayList<double[][]>(Z);
+		for (int k = 0; k < Z; k++) {
+			double[][] slice = new double[C][R];
+			for (int x = 0; x < C; x++)
+				for (int y = 0; y < R; y++) {
+					double q = 200 * (-Math.log(1 - random.nextDouble()) - Math.log(1 - random.nextDouble()));
+					slice[x][y] = vignetting(x, y, C, R) * q + offset(x, y, C, R);
+				}
+			S.add(slice);
+		}
+		return S;
+	}
+
+	// the sorted stack the optimization works on
+	static List<double[][]> sortedStack(int C, int R, int Z, long seed)
+	{
+		List<double[][]> S = syntheticStack(C, R, Z, seed);
+		double[] values = new double[Z];
+		for (int x = 0; x < C; x++)
+			for (int y = 0; y < R; y++) {
+				for (int k = 0; k < Z; k++)
+					values[k] = S.get(k)[x][y];
+				Arrays.sort(values);
+				for (int k = 0; k < Z; k++)
+					S.get(k)[x][y] = values[k];
+			}
+		return S;
+	}
+
+	// a column-major surface (index x*R+y) like the small surfaces of a model
+	static double[] vignettingSurface(int C, int R)
+	{
+		double[] v = new double[C * R];
+		for (int x = 0; x < C; x++)
+			for (int y = 0; y < R; y++)
+				v[x * R + y] = vignetting(x, y, C, R);
+		return v;
+	}
+
+	static double[] offsetSurface(int C, int R)
+	{
+		double[] z = new double[C * R];
+		for (int x = 0; x < C; x++)
+			for (int y = 0; y < R; y++)
+				z[x * R + y] = offset(x, y, C, R);
+		return z;
+	}
+
+	static double vignetting(int x, int y, int C, int R)
+	{
+		double dx = (x - 0.4 * C) / C;
+		double dy = (y - 0.55 * R) / R;
+		return 1 - 1.2 * (dx * dx + dy * dy);
+	}
+
+	static double offset(int x, int y, int C, int R)
+	{
+		return 100 + 20.0 * x / C + 10.0 * y / R;
+	}
+
+	// a 16-bit image of width x height with the same model as the stack
+	static short[] syntheticImage(int width, int height, long seed)
+	{
+		Random random = new Random(seed);
+		short[] pixels = new short[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				double q = 200 * (-Math.log(1 - random.nextDouble()) - Math.log(1 - random.nextDouble()));
+				double value = vignetting(x, y, width, height) * q + offset(x, y, width, height);
+				pixels[y * width + x] = (short)Math.min(65535, Math.round(value));
+			}
+		return pixels;
+	}
+}
@@ -0,0 +1,143 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+package cidre.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The preprocessing of a build (CidreEngine): downsizing a source image to 
+// the working size, sorting and compressing the stack to the quantiles and 
+// estimating Q, and upsampling the small surfaces of a model to the image 
+// size (SurfaceUpsampler, which replaced imresize_bilinear).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class PreprocessBenchmark
+{
+	private static final int IMAGE_WIDTH = 1392;
+	private static final int IMAGE_HEIGHT = 1040;
+
+	@Param({ "112x84", "224x168" })
+	public String workingSize;
+
+	// the number of images loaded, compressed to the 200 quantiles
+	@Param({ "400" })
+	public int numImages;
+
+	private Object engine;
+	private Object session;
+	private Object options;
+	private Method imresize;
+	private Method sortAndCompress;
+	private Method estimateQ;
+	private Object upsampler;
+	private Method upsample;
+	private double[][] image;
+	private double[] vSmall;
+	private List<double[][]> stack;
+	private List<double[][]> sorted;
+	private int C;
+	private int R;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		int[] size = Plugin.size(workingSize);
+		C = size[0];
+		R = size[1];
+
+		Class<?> engineType = Plugin.type("CidreEngine");
+		Class<?> sessionType = Plugin.type("CidreEngine$Session");
+		Class<?> optionsType = Plugin.type("CidreOptions");
+		engine = Plugin.create(engineType, new Class<?>[0]);
+		session = Plugin.create(sessionType, new Class<?>[] { engineType }, engine);
+		options = Plugin.create(optionsType, new Class<?>[0]);
+		Plugin.set(session, "S_C", C);
+		Plugin.set(session, "S_R", R);
+
+		imresize = Plugin.method(engineType, "imresize", double[][].class, int.class, int.class, int.class, int.class);
+		sortAndCompress = Plugin.method(sessionType, "sortAndCompress", double.class, int.class, optionsType);
+		estimateQ = Plugin.method(sessionType, "estimateQ", double.class);
+
+		image = Plugin.syntheticStack(IMAGE_WIDTH, IMAGE_HEIGHT, 1, 42).get(0);
+		stack = Plugin.syntheticStack(C, R, numImages, 42);
+		sorted = Plugin.sortedStack(C, R, 200, 42);
+
+		Class<?> upsamplerType = Plugin.type("SurfaceUpsampler");
+		upsampler = Plugin.create(upsamplerType, new Class<?>[] { int.class, int.class, int.class, int.class }, C, R, IMAGE_WIDTH, IMAGE_HEIGHT);
+		upsample = Plugin.method(upsamplerType, "upsample", double[].class);
+		vSmall = Plugin.vignettingSurface(C, R);
+	}
+
+	// sortAndCompress works on the stack of the session in place
+	@Setup(Level.Invocation)
+	public void copyStack()
+	{
+		List<double[][]> S = new ArrayList<double[][]>(stack.size());
+		for (double[][] slice : stack) {
+			double[][] copy = new double[C][];
+			for (int x = 0; x < C; x++)
+				copy[x] = slice[x].clone();
+			S.add(copy);
+		}
+		Plugin.set(session, "S", S);
+	}
+
+	@Benchmark
+	public Object imresize()
+	{
+		return Plugin.invoke(imresize, engine, image, IMAGE_WIDTH, IMAGE_HEIGHT, C, R);
+	}
+
+	// an entropy high enough to skip the scale space resampling, which only 
+	// runs for small sets of images
+	@Benchmark
+	public Object sortAndCompress()
+	{
+		Plugin.invoke(sortAndCompress, session, 12.0, numImages, options);
+		return Plugin.get(session, "S");
+	}
+
+	@Benchmark
+	public Object estimateQ()
+	{
+		Plugin.set(session, "S", sorted);
+		return Plugin.invoke(estimateQ, session, 0.25);
+	}
+
+	@Benchmark
+	public Object upsample()
+	{
+		return Plugin.invoke(upsample, upsampler, (Object)vSmall);
+	}
+}
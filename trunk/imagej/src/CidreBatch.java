@@ -0,0 +1,295 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Batch processing of many datasets, e.g. the plates and channels of a screen.
+// The datasets are listed in a manifest, one job per line:
+//
+//   source;mask;destination[;option=value...]
+//
+// with the options lambda_v, lambda_z, q_percent, z_min, z_max, max_iterations,
+// time_limit, target_pixels, quantiles, sample_min, sample_tolerance, 
+// correction (zero_light_perserved, dynamic_range_corrected, direct or none),
+// output (source_bit_depth or float32), output_offset,
+// full_size_model, csv_export, model_cache, statistics, sample and stream 
+// (true or false). The models of all the jobs are kept until the batch ends, so only 
+// their small surfaces are kept and saved unless full_size_model=true is 
+// given. Empty lines and lines starting with # are skipped.
+//
+// All the jobs share one pool decoding the source images and one work-stealing
+// pool evaluating the objective. Several builds run at the same time, so the
+// images of the next dataset are read while the previous one is optimized, and
+// the corrections of finished datasets run in the background on a pool of 
+// their own.
+public class CidreBatch
+{
+	public static final String REPORT_FILE = "cidre_batch_report.csv";
+
+	public int numDecodeThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	public int numComputeThreads = Runtime.getRuntime().availableProcessors();
+	public int numConcurrentBuilds = 2;		// builds loading or optimizing at the same time
+	public int numCorrectionThreads = 2;	// datasets corrected at the same time
+
+	// reads the jobs of a manifest, returns null if the manifest is invalid
+	public static List<BatchJob> readManifest(String fileName)
+	{
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		BufferedReader reader = null;
+		int lineNumber = 0;
+		try {
+			reader = new BufferedReader(new FileReader(fileName));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				jobs.add(parseJob(line, lineNumber));
+			}
+		} catch (IOException e) {
+			IJ.log("Cannot read the manifest " + fileName + " (" + e.getMessage() + ")");
+			return null;
+		} catch (IllegalArgumentException e) {
+			IJ.log("Invalid job in line " + lineNumber + " of the manifest " + fileName + " (" + e.getMessage() + ")");
+			return null;
+		} finally {
+			CidreIO.closeQuietly(reader);
+		}
+		return jobs;
+	}
+
+	private static BatchJob parseJob(String line, int lineNumber)
+	{
+		String[] fields = line.split(";");
+		if (fields.length < 3)
+			throw new IllegalArgumentException("source, mask and destination are required");
+
+		BatchJob job = new BatchJob();
+		job.line = lineNumber;
+		job.correct = true;
+		job.options = new CidreOptions();
+		job.options.folderSource = withSeparator(fields[0].trim());
+		job.options.fileFilterSource = fields[1].trim();
+		job.options.folderDestination = withSeparator(fields[2].trim());
+		job.options.fullSizeModel = false;
+
+		for (int i = 3; i < fields.length; i++) {
+			if (fields[i].trim().isEmpty())
+				continue;
+			int separator = fields[i].indexOf('=');
+			if (separator < 0)
+				throw new IllegalArgumentException("option=value expected instead of " + fields[i].trim());
+			String key = fields[i].substring(0, separator).trim();
+			String value = fields[i].substring(separator + 1).trim();
+
+			parseOption(job, key, value);
+		}
+		if (job.options.folderSource.equals(job.options.folderDestination))
+			throw new IllegalArgumentException("the source and destination folders must be different");
+		return job;
+	}
+
+	// applies an option=value of a job, also used for the modes of CidreHarness
+	static void parseOption(BatchJob job, String key, String value)
+	{
+		if (key.equals("lambda_v"))
+			job.options.lambdaVreg = Double.parseDouble(value);
+		else if (key.equals("lambda_z"))
+			job.options.lambdaZero = Double.parseDouble(value);
+		else if (key.equals("q_percent"))
+			job.options.qPercent = Double.parseDouble(value);
+		else if (key.equals("z_min"))
+			job.options.zLimits[0] = Double.parseDouble(value);
+		else if (key.equals("z_max"))
+			job.options.zLimits[1] = Double.parseDouble(value);
+		else if (key.equals("max_iterations"))
+			job.options.maxLbgfsIterations = Integer.parseInt(value);
+		else if (key.equals("time_limit"))
+			job.options.maxOptimizationTime = Double.parseDouble(value);
+		else if (key.equals("target_pixels"))
+			job.options.targetNumPixels = Integer.parseInt(value);
+		else if (key.equals("quantiles"))
+			job.options.numberOfQuantiles = Integer.parseInt(value);
+		else if (key.equals("model_cache"))
+			job.options.useModelCache = Boolean.parseBoolean(value);
+		else if (key.equals("sample"))
+			job.options.sampleImages = Boolean.parseBoolean(value);
+		else if (key.equals("sample_min"))
+			job.options.sampleMinImages = Integer.parseInt(value);
+		else if (key.equals("sample_tolerance"))
+			job.options.sampleTolerance = Double.parseDouble(value);
+		else if (key.equals("stream"))
+			job.options.streamImages = Boolean.parseBoolean(value);
+		else if (key.equals("statistics"))
+			job.options.saveStatistics = Boolean.parseBoolean(value);
+		else if (key.equals("csv_export"))
+			job.options.exportModelCSV = Boolean.parseBoolean(value);
+		else if (key.equals("full_size_model"))
+			job.options.fullSizeModel = Boolean.parseBoolean(value);
+		else if (key.equals("output"))
+			job.options.outputType = CidreOptions.OutputType.valueOf(value);
+		else if (key.equals("output_offset"))
+			job.options.outputOffset = Double.parseDouble(value);
+		else if (key.equals("correction")) {
+			if (value.equals("none"))
+				job.correct = false;
+			else
+				job.options.correctionMode = CidreOptions.CorrectionMode.valueOf(value);
+		} else
+			throw new IllegalArgumentException("unknown option " + key);
+	}
+
+	private static String withSeparator(String folder)
+	{
+		return folder.endsWith(File.separator) ? folder : folder + File.separator;
+	}
+
+	// builds the model of every job and corrects its images, a failing job is
+	// recorded in the job and does not stop the others
+	public List<BatchJob> run(List<BatchJob> jobs)
+	{
+		ExecutorService decodePool = Executors.newFixedThreadPool(numDecodeThreads);
+		ForkJoinPool computePool = new ForkJoinPool(numComputeThreads);
+		ExecutorService buildPool = Executors.newFixedThreadPool(numConcurrentBuilds);
+		final ExecutorService correctionPool = Executors.newFixedThreadPool(numCorrectionThreads);
+		final CidreEngine engine = new CidreEngine(decodePool, computePool);
+
+		IJ.log(String.format("Batch of %d datasets: %d decoding, %d computing threads, %d concurrent builds, %d concurrent corrections", 
+				jobs.size(), numDecodeThreads, numComputeThreads, numConcurrentBuilds, numCorrectionThreads));
+		long t1 = System.currentTimeMillis();
+
+		// the corrections are queued by the builds, so they are only waited for
+		// once all the builds have finished
+		final List<Future<?>> corrections = new ArrayList<Future<?>>();
+		List<Future<?>> builds = new ArrayList<Future<?>>();
+		for (final BatchJob job : jobs) {
+			job.options.numThreads = numComputeThreads;
+			builds.add(buildPool.submit(new Callable<Void>() {
+				@Override public Void call() {
+					runBuild(engine, job);
+					if (job.model != null && job.correct) {
+						synchronized (corrections) {
+							corrections.add(correctionPool.submit(new Callable<Void>() {
+								@Override public Void call() {
+									runCorrection(engine, job);
+									return null;
+								}
+							}));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : builds)
+				future.get();
+			synchronized (corrections) {
+				for (Future<?> future : corrections)
+					future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			buildPool.shutdownNow();
+			correctionPool.shutdownNow();
+			decodePool.shutdownNow();
+			computePool.shutdownNow();
+		}
+
+		long t2 = System.currentTimeMillis();
+		int failed = 0;
+		for (BatchJob job : jobs) {
+			if (job.error != null)
+				failed++;
+		}
+		IJ.log(String.format("Batch finished in %1.2fs, %d of %d datasets failed.", (t2 - t1)/1000.0, failed, jobs.size()));
+		return jobs;
+	}
+
+	private void runBuild(CidreEngine engine, BatchJob job)
+	{
+		long tStart = System.currentTimeMillis();
+		try {
+			new File(job.options.folderDestination).mkdirs();
+			job.model = engine.buildModel(job.options);
+			if (job.model == null)
+				job.error = "the images could not be loaded";
+		} catch (Throwable e) {
+			// an OutOfMemoryError of one dataset does not stop the others
+			job.model = null;
+			job.error = e.toString();
+		}
+		job.secondsBuild = (System.currentTimeMillis() - tStart) / 1000.0;
+		if (job.error != null)
+			IJ.log(String.format(" Build of %s failed (%s)", job.options.folderSource, job.error));
+	}
+
+	private void runCorrection(CidreEngine engine, BatchJob job)
+	{
+		long tStart = System.currentTimeMillis();
+		try {
+			engine.correctImages(job.model, job.options);
+		} catch (Throwable e) {
+			job.error = e.toString();
+			IJ.log(String.format(" Correction of %s failed (%s)", job.options.folderSource, job.error));
+		}
+		job.secondsCorrect = (System.currentTimeMillis() - tStart) / 1000.0;
+	}
+
+	public static void writeReport(String fileName, List<BatchJob> jobs)
+	{
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8"));
+            writer.write("line,source,destination,lambda_v,lambda_z,q_percent,images,E_CAUCHY,seconds_build,seconds_correct,message\n");
+            for (BatchJob job : jobs) {
+            	CidreOptions options = job.options;
+            	String energy = "";
+            	if (job.model != null && !job.model.convergence.isEmpty())
+            		energy = String.format(Locale.ROOT, "%g", job.model.convergence.get(job.model.convergence.size() - 1).f);
+            	writer.write(String.format(Locale.ROOT, "%d,\"%s\",\"%s\",%s,%s,%s,%s,%s,%f,%f,\"%s\"\n", job.line, options.folderSource, options.folderDestination,
+            			options.lambdaVreg != null ? options.lambdaVreg : "", options.lambdaZero != null ? options.lambdaZero : "", 
+            			options.qPercent != null ? options.qPercent : "", job.model != null ? job.model.numImages : "", energy, job.secondsBuild, job.secondsCorrect,
+            			job.error != null ? job.error.replace("\"", "'") : ""));
+            }
+        } catch (IOException e) {
+			IJ.log("Cannot write the batch report " + fileName + " (" + e.getMessage() + ")");
+        } finally {
+			CidreIO.closeQuietly(writer);
+        }
+	}
+}
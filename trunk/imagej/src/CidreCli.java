@@ -0,0 +1,705 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+
+// Command line interface of the engine for headless machines, it never opens
+// a window. Run as
+//
+//   java -cp ij.jar:cidre.jar CidreCli <command> [options]
+//
+// The timings and the parameters of the models are printed as a JSON object
+// on the last line of the output, and written to the --report file if one is
+// given. The exit code is 0 on success, 1 if the command failed and 2 if the
+// arguments are invalid. While it runs, the metrics of the phases are 
+// published as the MBean cidre:type=Metrics (see CidreMetrics), e.g. for the
+// monitoring of long batch and watch runs.
+public class CidreCli
+{
+	private static final String USAGE = 
+		"Usage: CidreCli <command> [options]\n" +
+		"Commands:\n" +
+		"  build    build a model of --source and save it to --destination\n" +
+		"  correct  correct the images of --source with the model in --model, write them to --destination\n" +
+		"  run      build a model of --source and correct the same images\n" +
+		"  watch    correct the images written to --source with the model in --model until stopped\n" +
+		"  update   fold the new images of --source into the model in --model, save it to --destination\n" +
+		"  batch    build and correct the datasets of the manifest given by --manifest\n" +
+		"  synthesize  write a synthetic dataset with a known illumination to --destination\n" +
+		"  evaluate    compare the modes of --modes on the synthetic dataset in --source, working in --destination\n" +
+		"  trace    print the optimizer trace given by --trace as CSV\n" +
+		"  plan     estimate the heap and the runtime of a build of --source without reading the images\n" +
+		"Options:\n" +
+		"  --source <folder>            source images\n" +
+		"  --mask <pattern>             file mask of the source images (default *.tif)\n" +
+		"  --destination <folder>       model and corrected images\n" +
+		"  --model <folder>             folder of the model to correct with\n" +
+		"  --lambda-v <value>           regularization of v (default from the number of images)\n" +
+		"  --lambda-z <value>           zero-light term (default 0.5)\n" +
+		"  --q-percent <value>          proportion of the data used to estimate Q (default 0.25)\n" +
+		"  --z-min <value> --z-max <value>  dark frame limits\n" +
+		"  --max-iterations <n>         L-BFGS iterations per phase (default 500)\n" +
+		"  --time-limit <seconds>       wall-clock budget of the optimization\n" +
+		"  --bit-depth <bits>           bit depth of the images (default estimated)\n" +
+		"  --target-pixels <n>          pixels of the working images (default 9400)\n" +
+		"  --quantiles <n>              quantiles of the compressed stack (default 200)\n" +
+		"  --threads <n>                computing threads (default all cores)\n" +
+		"  --line-search-batch <n>      line search trial steps evaluated together (default 1)\n" +
+		"  --sample                     read a random sample of the images until their quantiles converge\n" +
+		"  --sample-batch <n>           images read between the convergence checks (default 100)\n" +
+		"  --sample-min <n>             images read at least (default 500)\n" +
+		"  --sample-tolerance <value>   relative change of the quantiles at which sampling stops (default 0.002)\n" +
+		"  --sample-seed <n>            seed of the random order of the images (default 0)\n" +
+		"  --checkpoint-interval <s>    seconds between checkpoints, 0 for none (default 60)\n" +
+		"  --resume                     continue from the checkpoints in --destination\n" +
+		"  --no-trace                   do not write the optimizer trace to --destination\n" +
+		"  --trace <file>               optimizer trace of the trace command\n" +
+		"  --no-plan                    do not check that the build fits the heap before reading the images\n" +
+		"  --stream                     fold the images into the quantiles batch by batch (default if they do not fit)\n" +
+		"  --stream-batch <n>           images read at a time when streaming (default 100)\n" +
+		"  --no-stack-cache             do not reuse the preprocessed stack\n" +
+		"  --no-model-cache             do not reuse models of unchanged images\n" +
+		"  --model-cache <folder>       folder of the model cache\n" +
+		"  --small-model                keep only the small surfaces of the model\n" +
+		"  --csv-export                 also save the model as CSV files\n" +
+		"  --save-statistics            save the statistics the model can be updated from\n" +
+		"  --correction <mode>          zero_light_perserved, dynamic_range_corrected or direct\n" +
+		"  --output <type>              source_bit_depth or float32\n" +
+		"  --output-offset <value>      added to the corrected intensities\n" +
+		"  --read-threads <n> --write-threads <n>  threads reading and writing corrected images\n" +
+		"  --streaming-pixels <n>       images of at least n pixels are corrected in strips\n" +
+		"  --settle-time <seconds>      a watched file is corrected once unchanged for this long (default 2)\n" +
+		"  --idle-timeout <seconds>     stop watching after this long without new files (default never)\n" +
+		"  --manifest <file>            manifest of the batch command\n" +
+		"  --modes <file>               modes of the evaluate command (default a set of common modes)\n" +
+		"  --images <n>                 synthetic images (default 500)\n" +
+		"  --size <width>x<height>      size of the synthetic images (default 1392x1040)\n" +
+		"  --vignetting <value>         loss of gain in the farthest corner (default 0.5)\n" +
+		"  --zero-light <value>         mean zero-light intensity (default 100)\n" +
+		"  --confluency <value>         fraction of the synthetic images covered by cells (default 0.3)\n" +
+		"  --noise <value>              read noise of the synthetic images (default 2), with shot noise\n" +
+		"  --seed <n>                   seed of the synthetic images (default 0)\n" +
+		"  --report <file>              write the JSON report to the file\n";
+
+	public static void main(String[] args)
+	{
+		// ImageJ must not try to open any window
+		System.setProperty("java.awt.headless", "true");
+		ij.macro.Interpreter.batchMode = true;
+
+		int status;
+		try {
+			status = run(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			status = 2;
+		}
+		System.exit(status);
+	}
+
+	private static int run(String[] args)
+	{
+		if (args.length == 0 || args[0].equals("-h") || args[0].equals("--help"))
+			throw new IllegalArgumentException("No command given.");
+
+		String command = args[0];
+		CidreOptions options = new CidreOptions();
+		options.fileFilterSource = "*.tif";
+		String modelFolder = null;
+		String manifest = null;
+		String modes = null;
+		String report = null;
+		String trace = null;
+		CidreSynthetic synthetic = new CidreSynthetic();
+
+		for (int i = 1; i < args.length; i++) {
+			String flag = args[i];
+			if (flag.equals("--resume")) {
+				options.resume = true;
+				continue;
+			} else if (flag.equals("--no-trace")) {
+				options.optimizerTrace = false;
+				continue;
+			} else if (flag.equals("--no-plan")) {
+				options.planResources = false;
+				continue;
+			} else if (flag.equals("--stream")) {
+				options.streamImages = true;
+				continue;
+			} else if (flag.equals("--no-stack-cache")) {
+				options.useStackCache = false;
+				continue;
+			} else if (flag.equals("--no-model-cache")) {
+				options.useModelCache = false;
+				continue;
+			} else if (flag.equals("--small-model")) {
+				options.fullSizeModel = false;
+				continue;
+			} else if (flag.equals("--csv-export")) {
+				options.exportModelCSV = true;
+				continue;
+			} else if (flag.equals("--sample")) {
+				options.sampleImages = true;
+				continue;
+			} else if (flag.equals("--save-statistics")) {
+				options.saveStatistics = true;
+				continue;
+			}
+
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value of " + flag);
+			String value = args[++i];
+			try {
+				if (flag.equals("--source"))
+					options.folderSource = withSeparator(value);
+				else if (flag.equals("--mask"))
+					options.fileFilterSource = value;
+				else if (flag.equals("--destination"))
+					options.folderDestination = withSeparator(value);
+				else if (flag.equals("--model"))
+					modelFolder = withSeparator(value);
+				else if (flag.equals("--lambda-v"))
+					options.lambdaVreg = Double.parseDouble(value);
+				else if (flag.equals("--lambda-z"))
+					options.lambdaZero = Double.parseDouble(value);
+				else if (flag.equals("--q-percent"))
+					options.qPercent = Double.parseDouble(value);
+				else if (flag.equals("--z-min"))
+					options.zLimits[0] = Double.parseDouble(value);
+				else if (flag.equals("--z-max"))
+					options.zLimits[1] = Double.parseDouble(value);
+				else if (flag.equals("--max-iterations"))
+					options.maxLbgfsIterations = Integer.parseInt(value);
+				else if (flag.equals("--time-limit"))
+					options.maxOptimizationTime = Double.parseDouble(value);
+				else if (flag.equals("--bit-depth"))
+					options.bitDepth = Integer.parseInt(value);
+				else if (flag.equals("--target-pixels"))
+					options.targetNumPixels = Integer.parseInt(value);
+				else if (flag.equals("--quantiles"))
+					options.numberOfQuantiles = Integer.parseInt(value);
+				else if (flag.equals("--threads"))
+					options.numThreads = Integer.parseInt(value);
+				else if (flag.equals("--line-search-batch"))
+					options.lineSearchBatch = Integer.parseInt(value);
+				else if (flag.equals("--checkpoint-interval"))
+					options.checkpointInterval = Double.parseDouble(value);
+				else if (flag.equals("--model-cache"))
+					options.modelCacheFolder = value;
+				else if (flag.equals("--correction"))
+					options.correctionMode = CidreOptions.CorrectionMode.valueOf(value);
+				else if (flag.equals("--output"))
+					options.outputType = CidreOptions.OutputType.valueOf(value);
+				else if (flag.equals("--output-offset"))
+					options.outputOffset = Double.parseDouble(value);
+				else if (flag.equals("--read-threads"))
+					options.correctionReadThreads = Integer.parseInt(value);
+				else if (flag.equals("--write-threads"))
+					options.correctionWriteThreads = Integer.parseInt(value);
+				else if (flag.equals("--streaming-pixels"))
+					options.streamingMinPixels = Long.parseLong(value);
+				else if (flag.equals("--stream-batch"))
+					options.streamBatch = Integer.parseInt(value);
+				else if (flag.equals("--sample-batch"))
+					options.sampleBatch = Integer.parseInt(value);
+				else if (flag.equals("--sample-min"))
+					options.sampleMinImages = Integer.parseInt(value);
+				else if (flag.equals("--sample-tolerance"))
+					options.sampleTolerance = Double.parseDouble(value);
+				else if (flag.equals("--sample-seed"))
+					options.sampleSeed = Long.parseLong(value);
+				else if (flag.equals("--settle-time"))
+					options.watchSettleTime = Double.parseDouble(value);
+				else if (flag.equals("--idle-timeout"))
+					options.watchIdleTimeout = Double.parseDouble(value);
+				else if (flag.equals("--manifest"))
+					manifest = value;
+				else if (flag.equals("--modes"))
+					modes = value;
+				else if (flag.equals("--images"))
+					synthetic.numImages = Integer.parseInt(value);
+				else if (flag.equals("--size")) {
+					String[] size = value.split("x");
+					if (size.length != 2)
+						throw new NumberFormatException();
+					synthetic.imageSize = new Dimension(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+				} else if (flag.equals("--vignetting"))
+					synthetic.vignetting = Double.parseDouble(value);
+				else if (flag.equals("--zero-light"))
+					synthetic.zeroLight = Double.parseDouble(value);
+				else if (flag.equals("--confluency"))
+					synthetic.confluency = Double.parseDouble(value);
+				else if (flag.equals("--noise"))
+					synthetic.noise = Double.parseDouble(value);
+				else if (flag.equals("--seed"))
+					synthetic.seed = Long.parseLong(value);
+				else if (flag.equals("--report"))
+					report = value;
+				else if (flag.equals("--trace"))
+					trace = value;
+				else
+					throw new IllegalArgumentException("Unknown option " + flag);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value of " + flag + ": " + value);
+			}
+		}
+
+		if ((options.zLimits[0] == null) != (options.zLimits[1] == null))
+			throw new IllegalArgumentException("--z-min and --z-max must be given together");
+		if (options.qPercent != null && (options.qPercent <= 0 || options.qPercent > 1))
+			throw new IllegalArgumentException("--q-percent must be between 0 and 1");
+
+		// the trace is printed as it is, without the JSON report
+		if (command.equals("trace")) {
+			if (trace == null)
+				throw new IllegalArgumentException("The trace command needs --trace");
+			try {
+				OptimizerTrace.print(trace, System.out);
+				return 0;
+			} catch (IOException e) {
+				System.err.println("Cannot read the optimizer trace " + trace + " (" + e.getMessage() + ")");
+				return 1;
+			}
+		}
+
+		try {
+			CidreMetrics.getDefault().register();
+		} catch (JMException e) {
+			System.err.println("Warning: cannot register the metrics MBean (" + e.getMessage() + ")");
+		}
+
+		Json json = new Json();
+		json.beginObject();
+		json.field("command", command);
+		long tStart = System.currentTimeMillis();
+		boolean ok;
+
+		if (command.equals("batch")) {
+			if (manifest == null)
+				throw new IllegalArgumentException("The batch command needs --manifest");
+			ok = runBatch(manifest, options, json);
+		} else if (command.equals("synthesize")) {
+			if (options.folderDestination == null)
+				throw new IllegalArgumentException("The synthesize command needs --destination");
+			if (options.bitDepth != null)
+				synthetic.bitDepth = options.bitDepth;
+			synthetic.numThreads = options.numThreads;
+			ok = runSynthesize(synthetic, options.folderDestination, json);
+		} else if (command.equals("plan")) {
+			if (options.folderSource == null)
+				throw new IllegalArgumentException("The plan command needs --source");
+			ok = runPlan(options, json);
+		} else if (command.equals("evaluate")) {
+			if (options.folderSource == null || options.folderDestination == null)
+				throw new IllegalArgumentException("The evaluate command needs --source and --destination");
+			new File(options.folderDestination).mkdirs();
+			ok = runEvaluate(options, modes, json);
+		} else if (command.equals("build") || command.equals("correct") || command.equals("run") || command.equals("update") || command.equals("watch")) {
+			if (options.folderSource == null || options.folderDestination == null)
+				throw new IllegalArgumentException("The " + command + " command needs --source and --destination");
+			if (!command.equals("build") && !command.equals("update") && options.folderSource.equals(options.folderDestination))
+				throw new IllegalArgumentException("The source and destination folders must be different");
+			if ((command.equals("correct") || command.equals("update") || command.equals("watch")) && modelFolder == null)
+				throw new IllegalArgumentException("The " + command + " command needs --model");
+			new File(options.folderDestination).mkdirs();
+			ok = command.equals("watch") ? runWatch(options, modelFolder, json) : runSingle(command, options, modelFolder, json);
+		} else {
+			throw new IllegalArgumentException("Unknown command " + command);
+		}
+
+		writeMetrics(json, CidreMetrics.getDefault());
+		json.field("status", ok ? "ok" : "failed");
+		json.field("seconds", (System.currentTimeMillis() - tStart) / 1000.0);
+		json.endObject();
+
+		System.out.println(json.toString());
+		if (report != null && !writeReport(report, json.toString()))
+			return 1;
+		return ok ? 0 : 1;
+	}
+
+	private static boolean runSingle(String command, CidreOptions options, String modelFolder, Json json)
+	{
+		CidreEngine engine = new CidreEngine();
+		json.field("source", options.folderSource);
+		json.field("destination", options.folderDestination);
+
+		CidreModel model;
+		if (command.equals("correct")) {
+			long t1 = System.currentTimeMillis();
+			model = engine.loadModel(modelFolder, options.fullSizeModel);
+			json.field("seconds_load", (System.currentTimeMillis() - t1) / 1000.0);
+			if (model == null) {
+				json.field("error", "cannot load the model in " + modelFolder);
+				return false;
+			}
+		} else {
+			long t1 = System.currentTimeMillis();
+			model = command.equals("update") ? engine.updateModel(options, modelFolder) : engine.buildModel(options);
+			json.field("seconds_build", (System.currentTimeMillis() - t1) / 1000.0);
+			if (!command.equals("update"))
+				json.field("images_available", options.numImagesAvailable);
+			for (String warning : options.warnings)
+				System.err.println("Warning: " + warning);
+			if (model == null) {
+				json.field("error", "cannot load the images in " + options.folderSource);
+				return false;
+			}
+		}
+		writeModel(json, model);
+
+		if (command.equals("correct") || command.equals("run")) {
+			long t1 = System.currentTimeMillis();
+			engine.correctImages(model, options);
+			json.field("seconds_correct", (System.currentTimeMillis() - t1) / 1000.0);
+		}
+		return true;
+	}
+
+	private static boolean runWatch(CidreOptions options, String modelFolder, Json json)
+	{
+		json.field("source", options.folderSource);
+		json.field("destination", options.folderDestination);
+		CidreModel model = new CidreEngine().loadModel(modelFolder, options.fullSizeModel);
+		if (model == null) {
+			json.field("error", "cannot load the model in " + modelFolder);
+			return false;
+		}
+
+		// a terminated process finishes the images in progress
+		final CidreWatcher watcher = new CidreWatcher(model, options);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override public void run() {
+				watcher.stop();
+				try {
+					watcher.awaitTermination(60, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		try {
+			json.field("images", watcher.run());
+			return true;
+		} catch (IOException e) {
+			json.field("error", e.getMessage());
+			return false;
+		}
+	}
+
+	private static boolean runBatch(String manifest, CidreOptions defaults, Json json)
+	{
+		List<BatchJob> jobs = CidreBatch.readManifest(manifest);
+		if (jobs == null) {
+			json.field("error", "cannot read the manifest " + manifest);
+			return false;
+		}
+		CidreBatch batch = new CidreBatch();
+		batch.numComputeThreads = defaults.numThreads;
+		batch.run(jobs);
+
+		boolean ok = true;
+		json.beginArray("jobs");
+		for (BatchJob job : jobs) {
+			json.beginObject();
+			json.field("line", job.line);
+			json.field("source", job.options.folderSource);
+			json.field("destination", job.options.folderDestination);
+			json.field("seconds_build", job.secondsBuild);
+			json.field("seconds_correct", job.secondsCorrect);
+			if (job.model != null)
+				writeModel(json, job.model);
+			if (job.error != null) {
+				json.field("error", job.error);
+				ok = false;
+			}
+			json.endObject();
+		}
+		json.endArray();
+		return ok;
+	}
+
+	private static boolean runSynthesize(CidreSynthetic synthetic, String folder, Json json)
+	{
+		json.field("destination", folder);
+		json.field("images", synthetic.numImages);
+		json.field("width", synthetic.imageSize.width);
+		json.field("height", synthetic.imageSize.height);
+		json.field("bit_depth", synthetic.bitDepth);
+		json.field("vignetting", synthetic.vignetting);
+		json.field("zero_light", synthetic.zeroLight);
+		json.field("confluency", synthetic.confluency);
+		json.field("noise", synthetic.noise);
+		json.field("seed", synthetic.seed);
+		if (!synthetic.generate(folder)) {
+			json.field("error", "cannot write the synthetic images to " + folder);
+			return false;
+		}
+		return true;
+	}
+
+	// fails if no strategy fits the heap
+	private static boolean runPlan(CidreOptions options, Json json)
+	{
+		json.field("source", options.folderSource);
+		ResourcePlan plan = new CidreEngine().planBuild(options);
+		if (plan == null) {
+			json.field("error", "no images in " + options.folderSource);
+			return false;
+		}
+		json.beginObject("plan");
+		json.field("images", plan.numImages);
+		json.field("width", plan.imageSize.width);
+		json.field("height", plan.imageSize.height);
+		json.field("working_width", plan.workingSize.width);
+		json.field("working_height", plan.workingSize.height);
+		json.field("octaves", plan.octaves);
+		json.field("quantiles", plan.quantiles);
+		json.field("strategy", (plan.strategy != null) ? plan.strategy.toString() : null);
+		json.field("stack_bytes", plan.stackBytes);
+		json.field("scale_space_bytes", plan.scaleSpaceBytes);
+		json.field("optimization_bytes", plan.optimizationBytes);
+		json.field("peak_bytes_in_memory", plan.peakBytesInMemory);
+		json.field("peak_bytes_streaming", plan.peakBytesStreaming);
+		json.field("available_bytes", plan.availableBytes);
+		json.field("seconds_read", plan.secondsRead);
+		json.field("seconds_preprocess", plan.secondsPreprocess);
+		json.field("seconds_optimization", plan.secondsOptimization);
+		json.endObject();
+		if (plan.strategy == null)
+			json.field("error", CidrePlanner.getRefusal(plan));
+		return plan.strategy != null;
+	}
+
+	private static boolean runEvaluate(CidreOptions defaults, String modesFile, Json json)
+	{
+		json.field("source", defaults.folderSource);
+		json.field("destination", defaults.folderDestination);
+		List<HarnessResult> modes = (modesFile != null) ? CidreHarness.readModes(modesFile) : CidreHarness.getDefaultModes();
+		if (modes == null) {
+			json.field("error", "cannot read the modes " + modesFile);
+			return false;
+		}
+		CidreHarness harness = new CidreHarness();
+		harness.numThreads = defaults.numThreads;
+		if (harness.run(defaults.folderSource, defaults.folderDestination, modes) == null) {
+			json.field("error", "cannot read the ground truth of " + defaults.folderSource);
+			return false;
+		}
+
+		boolean ok = true;
+		json.beginArray("modes");
+		for (HarnessResult mode : modes) {
+			json.beginObject();
+			json.field("mode", mode.name);
+			json.field("seconds_build", mode.secondsBuild);
+			json.field("seconds_correct", mode.secondsCorrect);
+			json.field("peak_heap_mb", mode.peakHeapBytes / 1048576.0);
+			if (mode.error == null) {
+				json.field("images", mode.model.numImages);
+				json.field("v_error", mode.vError);
+				json.field("z_error", mode.zError);
+				json.field("non_uniformity", mode.nonUniformity);
+			} else {
+				json.field("error", mode.error);
+				ok = false;
+			}
+			json.endObject();
+		}
+		json.endArray();
+		return ok;
+	}
+
+	private static void writeModel(Json json, CidreModel model)
+	{
+		json.beginObject("model");
+		json.field("width", model.imageSize.width);
+		json.field("height", model.imageSize.height);
+		json.field("small_width", model.imageSize_small.width);
+		json.field("small_height", model.imageSize_small.height);
+		json.field("lambda_v", model.lambdaVreg);
+		json.field("lambda_z", model.lambdaZero);
+		json.field("q_percent", model.qPercent);
+		json.field("z_min", model.zLimits[0]);
+		json.field("z_max", model.zLimits[1]);
+		json.field("images", model.numImages);
+		json.beginArray("convergence");
+		for (ConvergenceInfo info : model.convergence) {
+			json.beginObject();
+			json.field("phase", info.phase);
+			json.field("iterations", info.iterations);
+			json.field("evaluations", info.funEvals);
+			json.field("energy", info.f);
+			json.field("opt_cond", info.optCond);
+			json.field("seconds", info.seconds);
+			json.field("time_limited", info.timeLimited);
+			json.field("message", info.msg);
+			json.field("exit_reason", (info.reason != null) ? info.reason.toString() : null);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+	}
+
+	private static void writeMetrics(Json json, CidreMetrics metrics)
+	{
+		json.beginObject("metrics");
+		for (String phase : CidreMetrics.PHASES)
+			json.field("seconds_" + phase.toLowerCase(Locale.ROOT), metrics.getSeconds(phase));
+		json.field("optimizations", metrics.getOptimizations());
+		json.field("objective_evaluations", metrics.getObjectiveEvaluations());
+		json.field("line_search_evaluations", metrics.getLineSearchEvaluations());
+		json.field("bytes_read", metrics.getBytesRead());
+		json.field("images_read", metrics.getImagesRead());
+		json.field("images_corrected", metrics.getImagesCorrected());
+		json.field("images_read_per_second", metrics.getImagesReadPerSecond());
+		json.field("images_corrected_per_second", metrics.getImagesCorrectedPerSecond());
+		json.endObject();
+	}
+
+	private static boolean writeReport(String fileName, String text)
+	{
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8");
+			writer.write(text);
+			writer.write("\n");
+			return true;
+		} catch (IOException e) {
+			System.err.println("Cannot write the report " + fileName + " (" + e.getMessage() + ")");
+			return false;
+		} finally {
+			CidreIO.closeQuietly(writer);
+		}
+	}
+
+	private static String withSeparator(String folder)
+	{
+		return folder.endsWith(File.separator) ? folder : folder + File.separator;
+	}
+
+	// a minimal writer of a single-line JSON document
+	private static class Json
+	{
+		private final StringBuilder text = new StringBuilder();
+		private boolean first = true;
+
+		private void separator()
+		{
+			if (!first)
+				text.append(',');
+			first = false;
+		}
+
+		private void name(String name)
+		{
+			separator();
+			if (name != null)
+				text.append(quote(name)).append(':');
+		}
+
+		void beginObject()
+		{
+			beginObject(null);
+		}
+
+		void beginObject(String name)
+		{
+			name(name);
+			text.append('{');
+			first = true;
+		}
+
+		void endObject()
+		{
+			text.append('}');
+			first = false;
+		}
+
+		void beginArray(String name)
+		{
+			name(name);
+			text.append('[');
+			first = true;
+		}
+
+		void endArray()
+		{
+			text.append(']');
+			first = false;
+		}
+
+		void field(String name, String value)
+		{
+			name(name);
+			text.append(value != null ? quote(value) : "null");
+		}
+
+		void field(String name, double value)
+		{
+			name(name);
+			text.append((Double.isNaN(value) || Double.isInfinite(value)) ? "null" : String.format(Locale.ROOT, "%.6g", value));
+		}
+
+		void field(String name, int value)
+		{
+			name(name);
+			text.append(value);
+		}
+
+		void field(String name, long value)
+		{
+			name(name);
+			text.append(value);
+		}
+
+		void field(String name, boolean value)
+		{
+			name(name);
+			text.append(value);
+		}
+
+		private static String quote(String value)
+		{
+			StringBuilder result = new StringBuilder("\"");
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\')
+					result.append('\\').append(c);
+				else if (c < 0x20)
+					result.append(String.format("\\u%04x", (int)c));
+				else
+					result.append(c);
+			}
+			return result.append('"').toString();
+		}
+
+		@Override
+		public String toString()
+		{
+			return text.toString();
+		}
+	}
+}
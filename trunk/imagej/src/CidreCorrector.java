@@ -0,0 +1,509 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Corrects images with a correction model. A folder is corrected by a pipeline
+// of three stages, reading, correcting and writing the images, each of them on
+// a pool of its own, so the correction keeps the cores and the disks busy at 
+// the same time. The number of images in the pipeline is bounded, reading 
+// waits while the later stages are behind. Images too large to be kept in 
+// memory are streamed instead, each of them read, corrected and written a
+// strip of rows at a time.
+public class CidreCorrector
+{
+	// the correction of a pixel is I * gain + offset, with gain = scale / v and
+	// offset = shift - z * scale / v + outputOffset for the correction mode
+	private final double scale;
+	private final double shift;
+	private final double outputOffset;
+	private final int width;
+	private final int height;
+	private final CidreOptions.OutputType outputType;
+
+	private static final int STRIP_BYTES = 1 << 22;	// size of the strips of streamed images
+
+	// the model compiled for the correction mode if it has the surfaces of the
+	// image size. The arrays are never changed after the constructor, all the
+	// threads of a correction share them.
+	private final float[] gain;
+	private final float[] offset;
+
+	// otherwise the small surfaces resized along the width, the rows of the
+	// image size are upsampled from them while correcting
+	private final SurfaceUpsampler upsampler;
+	private final double[] vResized;
+	private final double[] zResized;
+
+	public CidreCorrector(CidreModel model, CidreOptions.CorrectionMode correctionMode)
+	{
+		this(model, correctionMode, CidreOptions.OutputType.source_bit_depth, 0);
+	}
+
+	// outputOffset is added to every corrected intensity, e.g. to keep the 
+	// negative values of the direct correction in unsigned integer images
+	public CidreCorrector(CidreModel model, CidreOptions.CorrectionMode correctionMode, CidreOptions.OutputType outputType, double outputOffset)
+	{
+		this.outputType = outputType;
+		this.outputOffset = outputOffset;
+		this.width = model.imageSize.width;
+		this.height = model.imageSize.height;
+
+		if (model.v != null) {
+			upsampler = null;
+			vResized = null;
+			zResized = null;
+		} else {
+			upsampler = new SurfaceUpsampler(model.imageSize_small.width, model.imageSize_small.height, width, height);
+			vResized = upsampler.resizeWidth(model.v_small);
+			zResized = upsampler.resizeWidth(model.z_small);
+		}
+		double mean_v = (model.v != null) ? mean(model.v) : meanUpsampled(vResized);
+		double mean_z = (model.z != null) ? mean(model.z) : meanUpsampled(zResized);
+
+	    // check which type of correction we want to do
+		switch (correctionMode)
+		{
+	        case zero_light_perserved:
+	            //Icorrected = ((I - model.z)./model.v) * mean(model.v(:))  + mean(model.z(:));
+	        	scale = mean_v;
+	        	shift = mean_z;
+	            break;		                    
+	        case dynamic_range_corrected:
+	            //Icorrected = ((I - model.z)./model.v) * mean(model.v(:));
+	        	scale = mean_v;
+	        	shift = 0;
+	        	break;
+	        case direct:    
+	            //Icorrected = ((I - model.z)./model.v);
+	        	scale = 1;
+	        	shift = 0;
+	        	break;		            
+	        default:
+				IJ.error("CIDRE:correction", "Unrecognized correction mode.");
+				throw new IllegalArgumentException("Unrecognized correction mode " + correctionMode);
+		}
+
+		if (model.v != null) {
+			gain = new float[width * height];
+			offset = new float[width * height];
+			compile(model.v, model.z, 0, gain, offset, 0, width * height);
+		} else {
+			gain = null;
+			offset = null;
+		}
+	}
+
+	private static double mean(double[] a) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i];
+		return sum / a.length;
+	}
+
+	// the mean of the surface of the image size, summed row by row
+	private double meanUpsampled(double[] resized) {
+		double[] row = new double[width];
+		double sum = 0;
+		for (int y = 0; y < height; y++) {
+			upsampler.getRow(resized, y, row);
+			for (int x = 0; x < width; x++)
+				sum += row[x];
+		}
+		return sum / ((double)width * height);
+	}
+
+	private void compile(double[] v, double[] z, int from, float[] gain, float[] offset, int to, int n)
+	{
+		for (int k = 0; k < n; k++) {
+			gain[to + k] = (float)(scale / v[from + k]);
+			float o = (float)(shift - z[from + k] * scale / v[from + k]);
+			offset[to + k] = (outputOffset != 0) ? (float)(o + outputOffset) : o;
+		}
+	}
+
+	// corrects an image in the output type of the corrector, the processor of
+	// the image is replaced for 32-bit float output
+	public void correct(ImagePlus imp)
+	{
+		ImageProcessor ip = imp.getProcessor();
+		if (outputType == CidreOptions.OutputType.float32 && !(ip.getPixels() instanceof float[])) {
+			ip = ip.convertToFloat();
+			imp.setProcessor(ip);
+		}
+		correct(ip);
+	}
+
+	// corrects a single image in place, working on the pixel array of the 
+	// processor row by row
+	public void correct(ImageProcessor ip)
+	{
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			throw new IllegalArgumentException(String.format("The image is %dx%d, the model %dx%d", ip.getWidth(), ip.getHeight(), width, height));
+
+		Object pixels = ip.getPixels();
+		float[][] floatArray = null;
+		if (!(pixels instanceof short[]) && !(pixels instanceof byte[]) && !(pixels instanceof float[]))
+			floatArray = ip.getFloatArray();	// other pixel types go through a float copy
+
+		Rows rows = new Rows();
+		for (int y = 0; y < height; y++) {
+			int k = rows.get(y);
+			if (floatArray != null) {
+				for (int x = 0; x < width; x++, k++)
+					floatArray[x][y] = floatArray[x][y] * rows.gain[k] + rows.offset[k];
+			} else {
+				correctPixels(pixels, y * width, rows.gain, rows.offset, k, width);
+			}
+		}
+
+		if (floatArray != null)
+			ip.setFloatArray(floatArray);
+		CidreMetrics.getDefault().imageCorrected();
+	}
+
+	// corrects n pixels of a byte[], short[] or float[] array from index, with 
+	// the coefficients from k. The corrected values of integer images are 
+	// rounded to the nearest integer and clamped to the range of the bit depth.
+	// The plugin still runs on Java 8, Math.fma needs Java 9, so this is a 
+	// plain float multiply and add.
+	private void correctPixels(Object pixels, int index, float[] gain, float[] offset, int k, int n)
+	{
+		if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int x = 0; x < n; x++, index++, k++) {
+				float value = (p[index] & 0xffff) * gain[k] + offset[k] + 0.5f;
+				if (value < 0f) value = 0f;
+				if (value > 65535f) value = 65535f;
+				p[index] = (short)value;
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int x = 0; x < n; x++, index++, k++) {
+				float value = (p[index] & 0xff) * gain[k] + offset[k] + 0.5f;
+				if (value < 0f) value = 0f;
+				if (value > 255f) value = 255f;
+				p[index] = (byte)((int)value);
+			}
+		} else {
+			float[] p = (float[])pixels;
+			for (int x = 0; x < n; x++, index++, k++)
+				p[index] = p[index] * gain[k] + offset[k];
+		}
+	}
+
+	// the coefficients of the rows of one image, either the compiled arrays or
+	// buffers of a single row the upsampled coefficients are computed into
+	private class Rows
+	{
+		private final float[] gain;
+		private final float[] offset;
+		private final double[] vRow;
+		private final double[] zRow;
+
+		private Rows()
+		{
+			if (CidreCorrector.this.gain != null) {
+				gain = CidreCorrector.this.gain;
+				offset = CidreCorrector.this.offset;
+				vRow = null;
+				zRow = null;
+			} else {
+				gain = new float[width];
+				offset = new float[width];
+				vRow = new double[width];
+				zRow = new double[width];
+			}
+		}
+
+		// the index of the coefficients of row y in gain and offset
+		private int get(int y)
+		{
+			if (vRow == null)
+				return y * width;
+			upsampler.getRow(vResized, y, vRow);
+			upsampler.getRow(zResized, y, zRow);
+			compile(vRow, zRow, 0, gain, offset, 0, width);
+			return 0;
+		}
+	}
+
+	// corrects an uncompressed TIFF file a strip of rows at a time, so its 
+	// memory does not depend on the size of the image. Returns false if the
+	// file cannot be read that way. The image is written under a temporary 
+	// name and moved into place, a failed correction leaves no partial file.
+	public boolean correctFile(String folderSource, String fileName, String folderDestination) throws IOException
+	{
+		File tmpFile = File.createTempFile(fileName, ".tmp", new File(folderDestination));
+		try {
+			if (!correctFile(folderSource, fileName, folderDestination, tmpFile.getName()))
+				return false;
+			Files.move(tmpFile.toPath(), new File(folderDestination + fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmpFile.delete();	// no longer there once moved into place
+		}
+		return true;
+	}
+
+	// the same, writing the corrected image to folderDestination + destinationName
+	public boolean correctFile(String folderSource, String fileName, String folderDestination, String destinationName) throws IOException
+	{
+		FileInfo fi = StreamingTiff.getStreamableInfo(folderSource, fileName);
+		if (fi == null)
+			return false;
+		if (fi.width != width || fi.height != height)
+			throw new IllegalArgumentException(String.format("The image %s is %dx%d, the model %dx%d", fileName, fi.width, fi.height, width, height));
+
+		boolean floatOutput = (outputType == CidreOptions.OutputType.float32 || fi.fileType == FileInfo.GRAY32_FLOAT);
+		int bytesIn = fi.getBytesPerPixel();
+		int bytesOut = floatOutput ? 4 : bytesIn;
+		int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / (width * Math.max(bytesIn, bytesOut))));
+
+		Object row;
+		if (floatOutput)
+			row = new float[width];
+		else if (bytesIn == 2)
+			row = new short[width];
+		else
+			row = new byte[width];
+
+		Rows rows = new Rows();
+		StreamingTiff.Reader reader = null;
+		StreamingTiff.Writer writer = null;
+		try {
+			reader = new StreamingTiff.Reader(folderSource + fileName, fi);
+			writer = new StreamingTiff.Writer(folderDestination + destinationName, fi, bytesOut, floatOutput);
+			ByteBuffer in = ByteBuffer.allocate(rowsPerStrip * width * bytesIn).order(reader.getByteOrder());
+			ByteBuffer out = ByteBuffer.allocate(rowsPerStrip * width * bytesOut).order(writer.getByteOrder());
+			for (int y0 = 0; y0 < height; y0 += rowsPerStrip) {
+				int n = Math.min(rowsPerStrip, height - y0);
+				in.clear();
+				reader.readRows(y0, n, in);
+				in.flip();
+				out.clear();
+				for (int y = y0; y < y0 + n; y++) {
+					StreamingTiff.decodeRow(in, fi.fileType, row);
+					correctPixels(row, 0, rows.gain, rows.offset, rows.get(y), width);
+					StreamingTiff.encodeRow(row, out);
+				}
+				out.flip();
+				writer.write(out);
+			}
+		} finally {
+			CidreIO.closeQuietly(reader);
+			CidreIO.closeQuietly(writer);
+		}
+		CidreMetrics.getDefault().imageCorrected();
+		return true;
+	}
+
+	// corrects the images of folderSource one strip at a time, on threads 
+	// threads. Images that cannot be streamed are opened and corrected whole.
+	// The names may be listed lazily, the first images are corrected while the
+	// others are still being listed.
+	public void streamFolder(final String folderSource, Iterable<String> fileNames, final String folderDestination, int threads)
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		final AtomicInteger numFinished = new AtomicInteger();
+		try {
+			for (final String fileName : fileNames) {
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override public Void call() throws IOException {
+						if (!correctFile(folderSource, fileName, folderDestination)) {
+							ImagePlus imp = IJ.openImage(folderSource + fileName);
+							if (imp == null) {
+					    		IJ.log(" Could not open " + folderSource + fileName);
+							} else {
+								IJ.log(" " + fileName + " cannot be read in strips, it is corrected in memory");
+								correct(imp);
+								IJ.save(imp, folderDestination + fileName);
+								imp.close();
+							}
+						}
+				        if (numFinished.incrementAndGet() % 100 == 0) IJ.log(".");	// progress to the command line
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// corrects the given images of folderSource and writes them with the same 
+	// names to folderDestination. The images are read on readPool, or on a pool
+	// of readThreads threads if it is null, corrected on computeThreads and 
+	// written on writeThreads threads. The names may be listed lazily, reading 
+	// starts with the first name.
+	public void correctFolder(String folderSource, Iterable<String> fileNames, String folderDestination, 
+			ExecutorService readPool, int readThreads, int computeThreads, int writeThreads)
+	{
+		Pipeline pipeline = new Pipeline(folderSource, fileNames, folderDestination, readPool, 
+				Math.max(1, readThreads), Math.max(1, computeThreads), Math.max(1, writeThreads));
+		pipeline.run();
+	}
+
+	// the state of the correction of one folder
+	private class Pipeline
+	{
+		private final String folderSource;
+		private final Iterable<String> fileNames;
+		private final String folderDestination;
+		private final ExecutorService readPool;
+		private final boolean ownReadPool;
+		private final ExecutorService computePool;
+		private final ExecutorService writePool;
+		private final int capacity;
+		private final Semaphore inFlight;		// free places for images between reading and writing
+		private final AtomicInteger numFinished = new AtomicInteger();
+		private volatile Throwable failure;		// the first error of a stage, the pipeline stops
+
+		private Pipeline(String folderSource, Iterable<String> fileNames, String folderDestination, 
+				ExecutorService readPool, int readThreads, int computeThreads, int writeThreads)
+		{
+			this.folderSource = folderSource;
+			this.fileNames = fileNames;
+			this.folderDestination = folderDestination;
+			this.ownReadPool = (readPool == null);
+			this.readPool = ownReadPool ? Executors.newFixedThreadPool(readThreads) : readPool;
+			this.computePool = Executors.newFixedThreadPool(computeThreads);
+			this.writePool = Executors.newFixedThreadPool(writeThreads);
+			// enough images to keep every thread of the stages busy, and one more
+			// waiting for each of them
+			this.capacity = 2 * (readThreads + computeThreads + writeThreads);
+			this.inFlight = new Semaphore(capacity);
+		}
+
+		private void run()
+		{
+			try {
+				// after a failure the images that were not started are not read
+				for (String fileName : fileNames) {
+					if (failure != null)
+						break;
+					inFlight.acquire();
+					read(fileName);
+				}
+				// every image left the pipeline once all the places are free again
+				inFlight.acquire(capacity);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (ownReadPool)
+					readPool.shutdownNow();
+				computePool.shutdownNow();
+				writePool.shutdownNow();
+			}
+			if (failure != null)
+				throw new RuntimeException(failure);
+		}
+
+		private void read(final String fileName)
+		{
+			readPool.execute(new Runnable() {
+				@Override public void run() {
+					try {
+						if (failure != null) {
+							done();
+							return;
+						}
+				    	ImagePlus imp = IJ.openImage(folderSource + fileName);
+				    	if (imp == null) {
+				    		IJ.log(" Could not open " + folderSource + fileName);
+				    		done();
+				    		return;
+				    	}
+				    	correct(fileName, imp);
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			});
+		}
+
+		private void correct(final String fileName, final ImagePlus imp)
+		{
+			computePool.execute(new Runnable() {
+				@Override public void run() {
+					try {
+						if (failure != null) {
+							done();
+							return;
+						}
+						CidreCorrector.this.correct(imp);
+						write(fileName, imp);
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			});
+		}
+
+		private void write(final String fileName, final ImagePlus imp)
+		{
+			writePool.execute(new Runnable() {
+				@Override public void run() {
+					try {
+						if (failure == null)
+							IJ.save(imp, folderDestination + fileName);
+				    	imp.close();
+				    	done();
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			});
+		}
+
+		private void fail(Throwable t)
+		{
+			if (failure == null)
+				failure = t;
+			done();
+		}
+
+		// an image left the pipeline
+		private void done()
+		{
+			int n = numFinished.incrementAndGet();
+	        if (n % 100 == 0) IJ.log(".");	// progress to the command line
+			inFlight.release();
+		}
+	}
+}
@@ -0,0 +1,2181 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+// The CIDRE algorithm without its GUI. The engine itself has no mutable state,
+// every build runs in its own Session holding the image stack and all the 
+// intermediate results. Several models can be built concurrently in one JVM,
+// and everything but the returned model becomes garbage when a build ends.
+public class CidreEngine
+{
+	// cache of the preprocessed stack and optimizer checkpoints, written to the
+	// destination folder while building a model
+	private static final String STACK_CACHE_FILE = "cidre_stack_cache.bin";
+	private static final String OPTIMIZER_CHECKPOINT_FILE = "cidre_checkpoint_optimizer.bin";
+	private static final int STACK_CACHE_MAGIC = 0x43445253;			// "CDRS"
+	private static final int STACK_CACHE_VERSION = 1;
+
+	private static final String SWEEP_REPORT_FILE = "cidre_sweep_report.csv";
+
+	// pools shared by all the builds of the engine, owned by whoever created them
+	private final ExecutorService decodePool;	// reads and downsizes the source images, null to read them in the building thread
+	private final ExecutorService computePool;	// evaluates the objective, null for a pool of its own per build
+	private final CidreMetrics metrics = CidreMetrics.getDefault();
+
+	public CidreEngine()
+	{
+		this(null, null);
+	}
+
+	// an engine whose builds read their images on decodePool and evaluate the 
+	// objective on computePool, either of them may be null
+	public CidreEngine(ExecutorService decodePool, ExecutorService computePool)
+	{
+		this.decodePool = decodePool;
+		this.computePool = computePool;
+	}
+
+	// the threads decoding the images of a build at the same time
+	private int getDecodeThreads()
+	{
+		if (decodePool instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor)decodePool).getMaximumPoolSize();
+		return (decodePool != null) ? Runtime.getRuntime().availableProcessors() : 1;
+	}
+
+	// builds the correction model of the images in options.folderSource, returns
+	// null if the images could not be loaded
+	public CidreModel buildModel(CidreOptions options)
+	{
+		Session session = new Session();
+		if (options.useModelCache) {
+			String folder = (options.modelCacheFolder != null) ? options.modelCacheFolder : ModelCache.getDefaultFolder();
+			session.modelCache = new ModelCache(folder, options.modelCacheMaxBytes, options.modelCacheMaxAgeDays);
+			IJ.log(String.format(" Model cache in %s (up to %d MB)", folder, options.modelCacheMaxBytes >> 20));
+		}
+		if (!session.loadImages(options.folderSource, options.fileFilterSource, options))
+			return null;
+
+		// nothing changed since an earlier build of the same images
+		if (session.cachedModel != null) {
+			IJ.log(" Restored the model of the unchanged images from the model cache");
+			saveModel(session.cachedModel, options.folderDestination, options.exportModelCSV);
+			return session.cachedModel;
+		}
+
+		CidreModel model = session.cidreModel(options);
+
+		// a model stopped by the time limit is not final, a later build may do better
+		boolean timeLimited = false;
+		for (ConvergenceInfo info : model.convergence)
+			timeLimited |= info.timeLimited;
+		if (session.modelCacheKey != null && !timeLimited)
+			session.modelCache.put(session.modelCacheKey, model);
+		return model;
+	}
+
+	// the plan of a build of the images in options.folderSource, made from the 
+	// listing of the folder and the size of its first image. Returns null if 
+	// there are no images.
+	public ResourcePlan planBuild(CidreOptions options)
+	{
+		String pth = new File(options.folderSource).getPath() + File.separator;
+		String first = null;
+		int numImages = 0;
+		ImageFolder images = null;
+		try {
+			images = ImageFolder.open(pth, options.fileFilterSource);
+			for (String name : images) {
+				if (first == null)
+					first = name;
+				numImages++;
+			}
+		} catch (IOException e) {
+			IJ.error("CIDRE:planBuild", "Cannot list the images of " + pth + " (" + e.getMessage() + ")");
+			return null;
+		} finally {
+			CidreIO.closeQuietly(images);
+		}
+		if (first == null) {
+			IJ.error("CIDRE:planBuild", "No image file found.");
+			return null;
+		}
+		ImagePlus imp = IJ.openImage(pth + first);
+		if (imp == null) {
+			IJ.error("CIDRE:planBuild", "Cannot open " + pth + first);
+			return null;
+		}
+		options.imageSize = new Dimension(imp.getWidth(), imp.getHeight());
+		options.workingSize = determineWorkingSize(options.imageSize, options.targetNumPixels);
+		imp.close();
+		return CidrePlanner.plan(options, numImages, new File(pth, first).length(), getDecodeThreads(), CidrePlanner.getAvailableHeap());
+	}
+
+	// folds the images of options.folderSource that are not part of the model
+	// in modelFolder into its statistics, and optimizes the model again from 
+	// the previous one. The model and the statistics are saved to 
+	// options.folderDestination, which may be modelFolder itself. Returns null
+	// if the model has no statistics or the new images could not be read.
+	public CidreModel updateModel(CidreOptions options, String modelFolder)
+	{
+		CidreStatistics statistics;
+		try {
+			statistics = CidreStatistics.read(modelFolder + CidreStatistics.FILE_NAME);
+		} catch (IOException e) {
+			IJ.error("CIDRE:updateModel", "Cannot read the statistics of the model in " + modelFolder + " (" + e.getMessage() + 
+					"). Only models built with the statistics saved can be updated.");
+			return null;
+		}
+
+		Session session = new Session();
+		int numNewImages = session.loadNewImages(options.folderSource, options.fileFilterSource, statistics, options);
+		if (numNewImages < 0)
+			return null;
+		if (numNewImages == 0) {
+			IJ.log(" No new images in " + options.folderSource + ", the model is unchanged");
+			CidreModel model = loadModel(modelFolder, options.fullSizeModel);
+			if (model != null && !new File(modelFolder).getAbsoluteFile().equals(new File(options.folderDestination).getAbsoluteFile())) {
+				saveModel(model, options.folderDestination, options.exportModelCSV);
+				session.writeStatistics(options.folderDestination);
+			}
+			return model;
+		}
+		return session.cidreModel(options);
+	}
+
+	// builds a model for every combination of the given parameters, returns null
+	// if the images could not be loaded
+	public List<SweepResult> sweep(CidreOptions options, double[] lambdaVregs, double[] lambdaZeros, double[] qPercents)
+	{
+		Session session = new Session();
+		if (!session.loadImages(options.folderSource, options.fileFilterSource, options))
+			return null;
+		return session.cidreSweep(options, lambdaVregs, lambdaZeros, qPercents);
+	}
+
+	// corrects the images in options.folderSource and writes them to 
+	// options.folderDestination
+	public void correctImages(CidreModel model, CidreOptions options)
+	{
+		cdr_correct(model, options);
+	}
+
+	// loads a model saved by saveModel from the given folder, returns null if a
+	// file of the model is missing
+	public CidreModel loadModel(String folder)
+	{
+		return loadModel(folder, true);
+	}
+
+	// loads a model, the surfaces of the image size only if fullSize is set and
+	// they were saved, the correction upsamples the small surfaces otherwise. 
+	// The binary model file is read if there is one, the CSV files otherwise.
+	public CidreModel loadModel(String folder, boolean fullSize)
+	{
+		if (new File(folder + CidreModelFile.FILE_NAME).exists()) {
+			try {
+				return CidreModelFile.read(folder + CidreModelFile.FILE_NAME, fullSize);
+			} catch (IOException e) {
+				IJ.log(String.format(" failed (%s: %s)", CidreModelFile.FILE_NAME, e.getMessage()));
+				return null;
+			}
+		}
+
+		double[] csvArray;
+		CidreModel model = new CidreModel();
+
+		csvArray = readFromCSVFile(folder + "cidre_model_imagesize.csv", 2, 1, false);
+		if (csvArray != null) {
+			model.imageSize = new Dimension((int)csvArray[0], (int)csvArray[1]);
+		} else {
+			IJ.log(String.format(" failed (cidre_model_imagesize.csv)"));
+			return null;
+		}
+
+		csvArray = readFromCSVFile(folder + "cidre_model_imagesize_small.csv", 2, 1, false);
+		if (csvArray != null) {
+			model.imageSize_small = new Dimension((int)csvArray[0], (int)csvArray[1]);
+		} else {
+			IJ.log(String.format(" failed (cidre_model_imagesize_small.csv)"));
+			return null;
+		}
+
+		if (fullSize && new File(folder + "cidre_model_v.csv").exists()) {
+			model.v = readFromCSVFile(folder + "cidre_model_v.csv", model.imageSize.width, model.imageSize.height, true);
+			if (model.v == null) {
+				IJ.log(String.format(" failed (cidre_model_v.csv)"));
+				return null;
+			}
+			
+			model.z = readFromCSVFile(folder + "cidre_model_z.csv", model.imageSize.width, model.imageSize.height, true);
+			if (model.z == null) {
+				IJ.log(String.format(" failed (cidre_model_z.csv)"));
+				return null;
+			}
+		}
+
+		model.v_small = readFromCSVFile(folder + "cidre_model_v_small.csv", model.imageSize_small.width, model.imageSize_small.height, false);
+		if (model.v_small == null) {
+			IJ.log(String.format(" failed (cidre_model_v_small.csv)"));
+			return null;
+		}
+
+		model.z_small = readFromCSVFile(folder + "cidre_model_z_small.csv", model.imageSize_small.width, model.imageSize_small.height, false);
+		if (model.z_small == null) {
+			IJ.log(String.format(" failed (cidre_model_z_small.csv)"));
+			return null;
+		}
+		
+		return model;
+	}
+
+
+	// Helper functions
+	/*private String getExtension(String fileName)
+	{
+		int i = fileName.lastIndexOf('.');
+		int p = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+
+		if (i > p) {
+		    return fileName.substring(i+1);
+		}
+		return "";
+	}*/
+
+	private double mean(double[] a) {
+		int i;
+		double sum = 0;
+	    for (i = 0; i < a.length; i++) {
+	        sum += a[i];
+	    }
+	    return sum / a.length;
+	}
+
+	// determines a working image size based on the original image size and
+	// the desired number of pixels in the working image, N_desired 
+	private Dimension determineWorkingSize(Dimension imageSize, int Ndesired) 
+	{
+		int widthOriginal = imageSize.width;
+		int heightOriginal = imageSize.height;
+		
+		double scaleWorking = Math.sqrt((double)Ndesired / (widthOriginal * heightOriginal));
+		
+		return new Dimension((int)Math.round(widthOriginal * scaleWorking), (int)Math.round(heightOriginal * scaleWorking));
+	}
+
+	private double[][] imresize(double[][] doubleArray, int origWidth, int origHeight, int newWidth, int newHeight)
+	{
+		// Height
+		double hScale = (double)newHeight / origHeight;		    		
+		double kernel_width = 4.0;
+		if (hScale < 1.0)
+			kernel_width /= hScale;
+		double[] u = new double[newHeight];
+		int[] left = new int[newHeight];
+		for (int j = 0; j < newHeight; j++) {
+			u[j] = (j+1) / hScale + 0.5 * (1.0 - 1.0 / hScale);
+			left[j] = (int)Math.floor(u[j] - kernel_width/2.0);
+		}
+		int P = (int)Math.ceil(kernel_width) + 2;
+		int hIndices[][] = new int[P][newHeight];
+		double hWeights[][] = new double[P][newHeight];
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newHeight; j++) {
+				hIndices[p][j] = left[j] + p;
+				if (hScale < 1.0)
+					hWeights[p][j] = hScale * cubic(hScale * (u[j] - hIndices[p][j]));
+				else
+					hWeights[p][j] = cubic(u[j] - hIndices[p][j]);
+			}	    				
+		}
+		// Normalize the weights matrix so that each row sums to 1.
+		for (int j = 0; j < newHeight; j++) {
+			double sum = 0;
+			for (int p = 0; p < P; p++) {
+				sum += hWeights[p][j]; 
+			}
+			for (int p = 0; p < P; p++) {
+				hWeights[p][j] /= sum;
+			}
+		}    				
+		// Clamp out-of-range indices; has the effect of replicating end-points.
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newHeight; j++) {
+				hIndices[p][j]--;
+				if (hIndices[p][j] < 0)
+					hIndices[p][j] = 0;
+				else if (hIndices[p][j] >= origHeight - 1)
+					hIndices[p][j] = origHeight - 1;
+			}
+		}
+		
+		// resizeDimCore - height
+    	double[][] doubleArrayH = new double[origWidth][newHeight];
+		for(int j = 0; j < newHeight; j++) {
+    		for (int p = 0; p < P; p++) {
+		    	for (int i = 0; i < origWidth; i++) {
+    				doubleArrayH[i][j] += (doubleArray[i][hIndices[p][j]]) * hWeights[p][j];
+    			}
+    		}			    		
+    	}
+
+		// Width
+    	double wScale = (double)newWidth / origWidth;		    		
+		kernel_width = 4.0;
+		if (wScale < 1.0)
+			kernel_width /= wScale;
+		u = new double[newWidth];
+		left = new int[newWidth];
+		for (int j = 0; j < newWidth; j++) {
+			u[j] = (j+1) / wScale + 0.5 * (1.0 - 1.0 / wScale);
+			left[j] = (int)Math.floor(u[j] - kernel_width/2.0);
+		}
+		P = (int)Math.ceil(kernel_width) + 2;
+		int wIndices[][] = new int[P][newWidth];
+		double wWeights[][] = new double[P][newWidth];
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newWidth; j++) {
+				wIndices[p][j] = left[j] + p;
+				if (wScale < 1.0)
+					wWeights[p][j] = wScale * cubic(wScale * (u[j] - wIndices[p][j]));
+				else
+					wWeights[p][j] = cubic(u[j] - wIndices[p][j]);
+			}	    				
+		}
+		// Normalize the weights matrix so that each row sums to 1.
+		for (int j = 0; j < newWidth; j++) {
+			double sum = 0;
+			for (int p = 0; p < P; p++) {
+				sum += wWeights[p][j]; 
+			}
+			for (int p = 0; p < P; p++) {
+				wWeights[p][j] /= sum;
+			}
+		}    				
+		// Clamp out-of-range indices; has the effect of replicating end-points.
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newWidth; j++) {
+				wIndices[p][j]--;
+				if (wIndices[p][j] < 0)
+					wIndices[p][j] = 0;
+				else if (wIndices[p][j] >= origWidth - 1)
+					wIndices[p][j] = origWidth - 1;
+			}
+		}
+		
+		// resizeDimCore - width
+    	double[][] doubleArrayW = new double[newWidth][newHeight];
+    	for (int i = 0; i < newWidth; i++) {
+    		for (int p = 0; p < P; p++) {
+    			for(int j = 0; j < newHeight; j++) {
+    				doubleArrayW[i][j] += (doubleArrayH[wIndices[p][i]][j]) * wWeights[p][i];
+    			}
+    		}			    		
+    	}
+		
+		return doubleArrayW;
+	}
+
+	private double[][] imresize(double[][] doubleArray, int origWidth, int origHeight, double scale)
+	{
+		// Height
+		int newHeight = (int)Math.round(origHeight * scale);
+		double kernel_width = 4.0;
+		if (scale < 1.0)
+			kernel_width /= scale;
+		
+		double[] u = new double[newHeight];
+		int[] left = new int[newHeight];
+		for (int j = 0; j < newHeight; j++) {
+			u[j] = (j+1) / scale + 0.5 * (1.0 - 1.0 / scale);
+			left[j] = (int)Math.floor(u[j] - kernel_width/2.0);
+		}
+		int P = (int)Math.ceil(kernel_width) + 2;
+		int hIndices[][] = new int[P][newHeight];
+		double hWeights[][] = new double[P][newHeight];
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newHeight; j++) {
+				hIndices[p][j] = left[j] + p;
+				if (scale < 1.0)
+					hWeights[p][j] = scale * cubic(scale * (u[j] - hIndices[p][j]));
+				else
+					hWeights[p][j] = cubic(u[j] - hIndices[p][j]);
+
+			}	    				
+		}
+		// Normalize the weights matrix so that each row sums to 1.
+		for (int j = 0; j < newHeight; j++) {
+			double sum = 0;
+			for (int p = 0; p < P; p++) {
+				sum += hWeights[p][j]; 
+			}
+			for (int p = 0; p < P; p++) {
+				hWeights[p][j] /= sum;
+			}
+		}    				
+		// Clamp out-of-range indices; has the effect of replicating end-points.
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newHeight; j++) {
+				hIndices[p][j]--;
+				if (hIndices[p][j] < 0)
+					hIndices[p][j] = 0;
+				else if (hIndices[p][j] >= origHeight - 1)
+					hIndices[p][j] = origHeight - 1;
+			}
+		}
+		
+		// resizeDimCore - height
+    	double[][] doubleArrayH = new double[origWidth][newHeight];
+		for(int j = 0; j < newHeight; j++) {
+    		for (int p = 0; p < P; p++) {
+		    	for (int i = 0; i < origWidth; i++) {
+    				doubleArrayH[i][j] += (doubleArray[i][hIndices[p][j]]) * hWeights[p][j];
+    			}
+    		}			    		
+    	}
+
+		// Width
+		int newWidth = (int)Math.round(origWidth * scale);
+		kernel_width = 4.0;
+		if (scale < 1.0)
+			kernel_width /= scale;
+		u = new double[newWidth];
+		left = new int[newWidth];
+		for (int j = 0; j < newWidth; j++) {
+			u[j] = (j+1) / scale + 0.5 * (1.0 - 1.0 / scale);
+			left[j] = (int)Math.floor(u[j] - kernel_width/2.0);
+		}
+		P = (int)Math.ceil(kernel_width) + 2;
+		int wIndices[][] = new int[P][newWidth];
+		double wWeights[][] = new double[P][newWidth];
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newWidth; j++) {
+				wIndices[p][j] = left[j] + p;
+				if (scale < 1.0)
+					wWeights[p][j] = scale * cubic(scale * (u[j] - wIndices[p][j]));
+				else
+					wWeights[p][j] = cubic(u[j] - wIndices[p][j]);
+			}	    				
+		}
+		// Normalize the weights matrix so that each row sums to 1.
+		for (int j = 0; j < newWidth; j++) {
+			double sum = 0;
+			for (int p = 0; p < P; p++) {
+				sum += wWeights[p][j]; 
+			}
+			for (int p = 0; p < P; p++) {
+				wWeights[p][j] /= sum;
+			}
+		}    				
+		// Clamp out-of-range indices; has the effect of replicating end-points.
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newWidth; j++) {
+				wIndices[p][j]--;
+				if (wIndices[p][j] < 0)
+					wIndices[p][j] = 0;
+				else if (wIndices[p][j] >= origWidth - 1)
+					wIndices[p][j] = origWidth - 1;
+			}
+		}
+		
+		// resizeDimCore - width
+    	double[][] doubleArrayW = new double[newWidth][newHeight];
+    	for (int i = 0; i < newWidth; i++) {
+    		for (int p = 0; p < P; p++) {
+    			for(int j = 0; j < newHeight; j++) {
+    				doubleArrayW[i][j] += (doubleArrayH[wIndices[p][i]][j]) * wWeights[p][i];
+    			}
+    		}			    		
+    	}
+		
+		return doubleArrayW;
+	}
+
+	private double getLambdaVfromN(int N)
+	{
+		// sets the spatial regularization weight, lambda_vreg. For sufficient
+		// images, lambda_vreg=6 was determined empirically to be a good value. For
+		// fewer images, it helps to increase the regularization linearly
+
+		int NMAX = 200;		// empirically deteremined sufficient number of images
+		double l0 = 9.5;	// lambda_vreg for very few images
+		double l1 = 6;		// lambda_vreg for sufficient images 
+
+		if (N < NMAX) {
+			return l0 + ((l1-l0)/(NMAX)) * N;
+		} else {
+			return l1;
+		}
+	}
+	
+	private final double cubic(double x) {
+		double absx = Math.abs(x);
+		double absx2 = absx * absx;
+		double absx3 = absx2 * absx;
+		
+		return (1.5 * absx3 - 2.5 * absx2 + 1.0) * (absx <= 1.0 ? 1.0 : 0.0) +
+                (-0.5 * absx3 + 2.5 * absx2 - 4.0 * absx + 2.0) * ((1 < absx) && (absx <= 2) ? 1.0 : 0.0);
+	}
+	
+	static final double a = 0.5; // Catmull-Rom interpolation
+	private final double cubic2(double x) {
+		if (x < 0.0) x = -x;
+		double z = 0.0;
+		if (x < 1.0) 
+			z = x*x*(x*(-a+2.0) + (a-3.0)) + 1.0;
+		else if (x < 2.0) 
+			z = -a*x*x*x + 5.0*a*x*x - 8.0*a*x + 4.0*a;
+		return z;
+	}
+	
+	
+
+	private double[] resize_bicubic(double[] pixels, int srcWidth, int srcHeight, int dstWidth, int dstHeight)
+	{
+		double[] result = new double[dstWidth * dstHeight];
+
+		double srcCenterX = srcWidth / 2.0;
+		double srcCenterY = srcHeight / 2.0;
+		double dstCenterX = dstWidth / 2.0;
+		double dstCenterY = dstHeight / 2.0;		
+		double xScale = (double)dstWidth/srcWidth;
+		double yScale = (double)dstHeight/srcHeight; 
+		dstCenterX += xScale / 2.0;
+		dstCenterY += yScale / 2.0;		
+
+		int index;
+		double xs, ys;
+		int u0, v0;
+
+		for (int x = 0; x < dstWidth; x++) {
+			xs = (x - dstCenterX) / xScale + srcCenterX;
+			index = x * dstHeight;
+			for (int y = 0; y < dstHeight; y++) {
+				ys = (y - dstCenterY) / yScale + srcCenterY;
+				//getBicubicInterpolatedPixel
+				u0 = (int)Math.floor(xs);
+				v0 = (int)Math.floor(ys);
+				
+				if (u0 <= 0 || u0 >= srcWidth - 2 || v0 <= 0 || v0 >= srcHeight - 2)
+				{
+				} else {
+					double q = 0.0;
+					for (int i = 0; i <= 3; i++) {
+						int u = u0 - 1 + i;
+						double p = 0.0;
+						for (int j = 0; j <= 3; j++) {
+							int v = v0 - 1 + j;
+							p = p + pixels[u * srcHeight + v] * cubic(ys - v);
+						}
+						q = q + p * cubic(xs - u);
+					}
+					result[index + y] = q;
+				}				
+			}
+		}
+		
+		return result;
+	}
+
+	private void setDefaultOptions(CidreOptions options)
+	{
+		// set default values for options that are not specified 
+		if (options.qPercent == null) {
+			options.qPercent = 0.25; 
+		}
+		if (options.lambdaZero == null) {
+			options.lambdaZero = 0.5;
+		}
+		if (options.maxLbgfsIterations == null) {
+			options.maxLbgfsIterations = 500;
+		}
+		if (options.lambdaVreg == null) {
+			options.lambdaVreg = getLambdaVfromN(options.numImagesProvided);
+		}
+	}
+
+	private MinFuncOptions getMinFuncOptions(CidreOptions options)
+	{
+		MinFuncOptions minFuncOptions = new MinFuncOptions();
+		minFuncOptions.maxIter      = options.maxLbgfsIterations;	// max iterations for optimization
+		minFuncOptions.MaxFunEvals  = 1000;							// max evaluations of objective function
+		minFuncOptions.progTol      = 1e-5;							// progress tolerance
+		minFuncOptions.optTol       = 1e-5;							// optimality tolerance
+		minFuncOptions.Corr         = 100;							// number of corrections to store in memory (default: 100)*/
+		minFuncOptions.lineSearchBatch = (options.numThreads > 1) ? options.lineSearchBatch : 1;	// trial steps evaluated together in the line search
+		return minFuncOptions;
+	}
+
+	public void saveModel(CidreModel model, String folder)
+	{
+		saveModel(model, folder, false);
+	}
+
+	// saves the model to the binary model file of the folder, and to the CSV 
+	// files of earlier versions if exportCSV is set
+	public void saveModel(CidreModel model, String folder, boolean exportCSV)
+	{
+		try {
+			CidreModelFile.write(model, folder + CidreModelFile.FILE_NAME);
+		} catch (IOException e) {
+			IJ.log(" Cannot write " + folder + CidreModelFile.FILE_NAME + " (" + e.getMessage() + ")");
+		}
+		if (exportCSV)
+			exportModelCSV(model, folder);
+	}
+
+	private void exportModelCSV(CidreModel model, String folder)
+	{
+    	writeToCSVFile(folder + "cidre_model_imagesize.csv", new double[] {model.imageSize.width, model.imageSize.height}, 2, 1, false);
+    	writeToCSVFile(folder + "cidre_model_imagesize_small.csv", new double[] {model.imageSize_small.width, model.imageSize_small.height}, 2, 1, false);	    
+    	if (model.v != null) {
+	    	writeToCSVFile(folder + "cidre_model_v.csv", model.v, model.imageSize.width, model.imageSize.height, true);
+	    	writeToCSVFile(folder + "cidre_model_z.csv", model.z, model.imageSize.width, model.imageSize.height, true);
+    	}
+    	writeToCSVFile(folder + "cidre_model_v_small.csv", model.v_small, model.imageSize_small.width, model.imageSize_small.height, false);
+    	writeToCSVFile(folder + "cidre_model_z_small.csv", model.z_small, model.imageSize_small.width, model.imageSize_small.height, false);
+	}
+
+	private void writeSweepReport(String fileName, List<SweepResult> results)
+	{
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(new File(fileName)));
+            writer.write("configuration,lambda_v,lambda_z,q_percent,E_LS,iterations_LS,evaluations_LS,seconds_LS,E_CAUCHY,iterations_CAUCHY,evaluations_CAUCHY,seconds_CAUCHY,time_limited,seconds,model,message\n");
+            for (SweepResult result : results) {
+            	writer.write(String.format(Locale.ROOT, "%d,%f,%f,%f", result.configuration, result.lambdaVreg, result.lambdaZero, result.qPercent));
+            	boolean timeLimited = false;
+            	String msg = result.error;
+            	for (int i = 0; i < 2; i++) {
+            		if (result.model != null && i < result.model.convergence.size()) {
+            			ConvergenceInfo info = result.model.convergence.get(i);
+            			writer.write(String.format(Locale.ROOT, ",%g,%d,%d,%f", info.f, info.iterations, info.funEvals, info.seconds));
+            			timeLimited |= info.timeLimited;
+            			msg = info.msg;
+            		} else {
+            			writer.write(",,,,");
+            		}
+            	}
+            	writer.write(String.format(Locale.ROOT, ",%d,%f,%s,\"%s\"\n", timeLimited ? 1 : 0, result.seconds, 
+            			result.folder != null ? result.folder : "", msg != null ? msg.replace("\"", "'") : ""));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+			if (writer != null) {
+	            try {
+	                writer.close();
+	            } catch (IOException e) {
+					e.printStackTrace();
+	            }
+			}
+        }
+	}
+
+	private void cdr_correct(CidreModel model, CidreOptions options)
+	{
+    	CidreOptions.CorrectionMode correctionMode = (options.correctionMode != null) ? options.correctionMode : CidreOptions.CorrectionMode.zero_light_perserved;
+		
+		String folderSource = options.folderSource; 
+		String folderDestination = options.folderDestination;
+
+		// loop through all the source images, correct them, and write them to the destination folder
+		String str = "";
+		switch (correctionMode)
+		{
+		    case zero_light_perserved:
+		        str = "zero-light preserved";
+		        break;
+		    case dynamic_range_corrected:
+		    	str = "dynamic range corrected";
+		    	break;
+		    case direct:
+		        str = "direct";
+		        break;
+		}
+		IJ.log(String.format("  Writing %s corrected images to %s" , str.toUpperCase(), folderDestination));
+		if (options.outputType == CidreOptions.OutputType.float32)
+			IJ.log("  as 32-bit float images");
+		if (options.outputOffset != 0)
+			IJ.log(String.format("  with an offset of %g", options.outputOffset));
+
+	    long t1 = System.currentTimeMillis();
+	    long tCorrection = System.nanoTime();
+	    
+	   	// the source images are corrected while the folder is being listed
+    	ImageFolder images = null;
+    	try {
+    		images = ImageFolder.open(folderSource, options.fileFilterSource);
+    		if ((long)model.imageSize.width * model.imageSize.height >= options.streamingMinPixels) {
+    			// the coefficients of large images are upsampled row by row from the
+    			// small surfaces, the full-size ones would not fit in memory either
+    			CidreModel smallModel = new CidreModel();
+    			smallModel.imageSize = model.imageSize;
+    			smallModel.imageSize_small = model.imageSize_small;
+    			smallModel.v_small = model.v_small;
+    			smallModel.z_small = model.z_small;
+    			IJ.log("  streaming the images in strips");
+    			CidreCorrector corrector = new CidreCorrector(smallModel, correctionMode, options.outputType, options.outputOffset);
+    			corrector.streamFolder(folderSource, images, folderDestination, options.numThreads);
+    		} else {
+	    		CidreCorrector corrector = new CidreCorrector(model, correctionMode, options.outputType, options.outputOffset);
+	    		corrector.correctFolder(folderSource, images, folderDestination, decodePool, 
+	    				options.correctionReadThreads, options.numThreads, options.correctionWriteThreads);
+    		}
+    	} catch (IOException e) {
+			IJ.error("CIDRE:correction", "Cannot list the images of " + folderSource + " (" + e.getMessage() + ")");
+    	} finally {
+    		CidreIO.closeQuietly(images);
+    	}
+    	metrics.phaseFinished(CidreMetrics.CORRECTION, tCorrection);
+
+	    long t2 = System.currentTimeMillis();
+	    IJ.log(String.format("  finished in %1.2fs.", (t2 - t1)/1000.0));
+	}
+
+
+	// a row of the image per line, array is row-major (index y*width+x) or 
+	// column-major (index x*height+y)
+	private void writeToCSVFile(String fileName, double[] array, int width, int height, boolean rowMajor) 
+	{
+        BufferedWriter writer = null;
+        try {
+            File file = new File(fileName);
+
+            writer = new BufferedWriter(new FileWriter(file));
+            for(int y = 0; y < height; y++) {
+            	for (int x = 0; x < width; x++) {
+            		if (x > 0)
+                		writer.write(",");
+            		writer.write(String.format("%f", array[rowMajor ? y * width + x : x * height + y]));
+            	}
+                writer.write("\n");
+            }            
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+			if (writer != null) {
+	            try {
+	                writer.close();
+	            } catch (IOException e) {
+					e.printStackTrace();
+	            }
+			}
+        }
+	}
+	
+	private double[] readFromCSVFile(String fileName, int width, int height, boolean rowMajor)
+	{
+		int rows = 0;
+		double[] result = new double[width * height];
+		BufferedReader reader = null;
+		String line = "";
+		String cvsSeparator = ",";
+	 
+		try {	 
+			reader = new BufferedReader(new FileReader(fileName));
+			rows = 0;
+			
+			while ((line = reader.readLine()) != null) {
+				String[] values = line.split(cvsSeparator);
+				if (values.length != width)
+					throw new Exception("Value count: " + values.length + " (Expected: " + width + ") in line " + rows);
+				for (int i = 0; i < values.length; i++)
+					result[rowMajor ? rows * width + i : i * height + rows] = Double.parseDouble(values[i]);
+				rows++;
+				if (rows > height)
+					throw new Exception("Current row count: " + rows + " (Expected: " + height + ")");
+			}
+			if (rows != height)
+				throw new Exception("Row count: " + rows + " (Expected: " + height + ")");
+		} catch (Exception e) {
+			//e.printStackTrace();
+			result = null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					result = null;
+				}
+			}
+		}
+		return result;
+	}
+
+	// The state of a single build. A session is only used by the thread that
+	// runs the build, the optimizations it starts get their own copies.
+	private class Session
+	{
+		private List<double[][]> S = new ArrayList<double[][]>();
+		private int S_C;	// WIDTH
+		private int S_R;	// HEIGHT
+		private double STACKMIN;
+		private double[] cachedQ;			// Q restored with the stack cache
+		private double cachedQPercent;
+		private String stackFingerprint;	// key of the stack cache of the loaded source images
+		private ModelCache modelCache;		// null if the model cache is not used
+		private String modelCacheKey;
+		private CidreModel cachedModel;		// the cached model of the source images, if they did not change
+		private CidreStatistics statistics;	// saved with the model if not null, see CidreOptions.saveStatistics
+
+		private boolean loadImages(String source, String fileMask, CidreOptions options)
+		{
+			List<Future<double[][]>> decoded = new ArrayList<Future<double[][]>>();
+			try {
+				return loadImages(source, fileMask, options, decoded);
+			} finally {
+				// the images decoded while listing are not needed after a cache hit
+				for (Future<double[][]> future : decoded)
+					future.cancel(false);
+			}
+		}
+
+		private boolean loadImages(String source, String fileMask, CidreOptions options, List<Future<double[][]>> decoded)
+		{
+			double maxI = 0;
+			S.clear();
+			cachedQ = null;
+			stackFingerprint = null;
+		
+			if (source != null && source != "")
+			{
+			    // break source into a path, filter, and extension
+				File file = new File(source);
+				String pth = file.getPath() + File.separator;
+				//String filter = file.getName();
+			    //String ext = getExtension(source);
+		    
+			    // store the source path in the options structure
+			    options.folderSource = pth;    
+	    
+			   	// generate a list of source filenames searching for all valid filetypes.
+			   	// The folder is listed lazily, the first image sets the working size 
+			   	// and with a decode pool the first image of every decoding thread is
+			   	// decoded while the rest of the folder is still being listed, the 
+			   	// rest only once the plan says they fit.
+			    List<File> listOfFiles = new ArrayList<File>();
+			    boolean decodeWhileListing = (decodePool != null && !options.sampleImages);
+			    ImageFolder images = null;
+			    try {
+			    	images = ImageFolder.open(pth, fileMask);
+			    	for (String name : images) {
+			    		if (options.fileNames.isEmpty() && !readImageSize(pth + name, options))
+			    			return false;
+			    		options.fileNames.add(name);
+			    		listOfFiles.add(new File(pth, name));
+			    		if (decodeWhileListing && decoded.size() < getDecodeThreads())
+			    			decoded.add(submitDecode(pth + name, options));
+			    	}
+			    } catch (IOException e) {
+			    	IJ.error("CIDRE:loadImages", "Cannot list the images of " + pth + " (" + e.getMessage() + ")");
+			    	return false;
+			    } finally {
+			    	CidreIO.closeQuietly(images);
+			    }
+
+		    	// store the number of source images into the options structure
+		    	options.numImagesProvided = options.fileNames.size();
+		    	options.numImagesAvailable = options.numImagesProvided;
+
+		    	// the defaults depend on the number of listed images, whether the 
+		    	// images are sampled or restored from a cache or not
+		    	setDefaultOptions(options);
+
+				// the images are only kept if they fit the heap, otherwise they are
+				// folded into the quantiles batch by batch. The approximate stack of
+				// a streamed build has cache entries of its own, and a build that
+				// does not fit is only refused if the caches do not have it.
+				ResourcePlan plan = null;
+				boolean stream = Boolean.TRUE.equals(options.streamImages);
+				if (options.planResources && options.numImagesProvided > 0) {
+					plan = CidrePlanner.plan(options, options.numImagesProvided, listOfFiles.get(0).length(), getDecodeThreads(), CidrePlanner.getAvailableHeap());
+					IJ.log(CidrePlanner.describe(plan));
+					if (plan.strategy != null)
+						stream = (plan.strategy == ResourcePlan.Strategy.STREAMING);
+				}
+
+		    	String fingerprint = null;
+		    	if (options.numImagesProvided > 0 && (options.useStackCache || modelCache != null))
+		    		fingerprint = getStackFingerprint(source, listOfFiles.toArray(new File[listOfFiles.size()]), fileMask, stream, options);
+
+		    	// the caches skip the reading of the images, when the statistics are
+		    	// saved they are only used if the destination has the statistics of
+		    	// the same images already
+		    	boolean useCaches = !options.saveStatistics || (fingerprint != null && 
+		    			fingerprint.equals(CidreStatistics.readFingerprint(options.folderDestination + CidreStatistics.FILE_NAME)));
+
+		    	// a model of the same images built with the same options is not built 
+		    	// again, the images are not even read
+		    	if (fingerprint != null && modelCache != null && useCaches) {
+		    		modelCacheKey = ModelCache.getKey(fingerprint, options);
+		    		cachedModel = modelCache.get(modelCacheKey, options.fullSizeModel);
+		    		if (cachedModel != null)
+		    			return true;
+		    	}
+
+		    	// when only the optimizer settings changed since the last build, the
+		    	// preprocessed stack is restored from the cache in the destination folder
+		    	if (fingerprint != null && options.useStackCache) {
+		    		stackFingerprint = fingerprint;
+		    		if (useCaches && readStackCache(options, stackFingerprint)) {
+		    			IJ.log(" Restored the preprocessed stack of " + options.numImagesProvided + " images from " + options.folderDestination + STACK_CACHE_FILE);
+		    			return true;
+		    		}
+		    	}
+
+				if (options.numImagesProvided <= 0) {
+					IJ.error("CIDRE:loadImages", "No image file found.");
+					return false;
+				}
+
+				if (plan != null && plan.strategy == null) {
+					IJ.error("CIDRE:loadImages", CidrePlanner.getRefusal(plan));
+					return false;
+				}
+				if (stream)
+					return streamImages(fingerprint, options, decoded);
+
+			    // read the source filenames in, covert them to the working image size, 
+			    // and add them to the stack    
+			    List<double[][]> stack;
+			    if (options.sampleImages) {
+			    	stack = new ArrayList<double[][]>();
+			    	if (readSample(options, stack) == null)
+			    		return false;
+			    } else {
+			    	stack = readStack(options.folderSource, options.fileNames, options, decoded);
+			    	if (stack == null)
+			    		return false;
+			    }
+			    for (double[][] Irescaled : stack)
+			    	for (int x = 0; x < options.workingSize.width; x++) 
+			    		for (int y = 0; y < options.workingSize.height; y++)
+			    			maxI = Math.max(maxI, (int)Irescaled[x][y]);
+			    S.addAll(stack);
+			    S_C = options.workingSize.width;
+			    S_R = options.workingSize.height;
+
+			    if (options.saveStatistics)
+			    	statistics = newStatistics(new CidreStatistics(options.imageSize, S_C, S_R), fingerprint, options);
+			} else {
+				return false;
+			}
+		
+			// apply several processing steps to the image stack S
+			// Now that we have loaded the stack as an RxCxN array (where R*C ~=
+			// options.targetNumPixels), we must do check if there is sufficient
+			// intensity information in the stack, sort the intensity values at each
+			// (x,y) image location, and compress the stack in the 3rd dimension to keep
+			// the computation time manageable
+			preprocessData(maxI, options);
+		
+			return true;
+		}
+	
+		// reads the source images streamBatch at a time, or samples them, and 
+		// folds them into the quantiles of new statistics, which are preprocessed
+		// as the stack. Only one batch of the images is kept at a time.
+		private boolean streamImages(String fingerprint, CidreOptions options, List<Future<double[][]>> decoded)
+		{
+			IJ.log(String.format(" Streaming the images into %d quantiles", options.numberOfQuantiles));
+			CidreStatistics folded = options.sampleImages ? readSample(options, null) : readStatistics(options.folderSource, options.fileNames, options, decoded);
+			if (folded == null)
+				return false;
+			S_C = options.workingSize.width;
+			S_R = options.workingSize.height;
+			if (options.saveStatistics)
+				statistics = newStatistics(folded, fingerprint, options);
+			preprocessStatistics(folded, options);
+			return true;
+		}
+
+		// the statistics of the source images, saved with the model
+		private CidreStatistics newStatistics(CidreStatistics statistics, String fingerprint, CidreOptions options)
+		{
+			statistics.fingerprint = (fingerprint != null) ? fingerprint : "";
+			for (String name : options.fileNames)
+				statistics.files.add(new File(options.folderSource, name).getAbsolutePath());
+			return statistics;
+		}
+
+		// reads the first provided image, checks that it is monochromatic, stores 
+		// its size in the options structure, and determines the working image 
+		// size we will use
+		private boolean readImageSize(String fileName, CidreOptions options)
+		{
+			ImagePlus imp = IJ.openImage(fileName);
+			if (imp == null) {
+				IJ.error("CIDRE:loadImages", "Cannot open " + fileName);
+				return false;
+			}
+	    	ImageProcessor ip = imp.getProcessor();
+    	
+			if (imp.getStackSize() == 3) {
+				imp.close();
+				IJ.error("CIDRE:loadImages", "Non-monochromatic image provided. CIDRE is designed for monochromatic images. Store each channel as a separate image and re-run CIDRE.");
+				return false;
+			}
+		
+			options.imageSize = new Dimension(ip.getWidth(), ip.getHeight());
+			options.workingSize = determineWorkingSize(options.imageSize, options.targetNumPixels);
+		
+			imp.close();
+			return true;
+		}
+
+		// reads the images of the source folder that the statistics do not have
+		// yet and folds them into the statistics, returns the number of new 
+		// images or -1 if they could not be read
+		private int loadNewImages(String source, String fileMask, CidreStatistics previous, CidreOptions options)
+		{
+			statistics = previous;
+			S.clear();
+			options.folderSource = new File(source).getPath() + File.separator;
+			options.imageSize = statistics.imageSize;
+			options.workingSize = new Dimension(statistics.C, statistics.R);
+
+			Set<String> known = new HashSet<String>(statistics.files);
+			File[] listOfFiles = new File(options.folderSource).listFiles(new ImageFolder.NameFilter(fileMask));
+			if (listOfFiles != null) {
+				Arrays.sort(listOfFiles);
+				for (int i = 0; i < listOfFiles.length; i++)
+					if (!known.contains(listOfFiles[i].getAbsolutePath()))
+						options.fileNames.add(listOfFiles[i].getName());
+			}
+			int numNewImages = options.fileNames.size();
+			options.numImagesProvided = statistics.numImages + numNewImages;
+			if (numNewImages == 0)
+				return 0;
+
+			// the new images must have the size of the images of the model
+			ImagePlus imp = IJ.openImage(options.folderSource + options.fileNames.get(0));
+			if (imp == null) {
+				IJ.error("CIDRE:updateModel", "Cannot open " + options.folderSource + options.fileNames.get(0));
+				return -1;
+			}
+			Dimension imageSize = new Dimension(imp.getWidth(), imp.getHeight());
+			imp.close();
+			if (!imageSize.equals(statistics.imageSize)) {
+				IJ.error("CIDRE:updateModel", String.format("The new images are %dx%d, the images of the model %dx%d.", 
+						imageSize.width, imageSize.height, statistics.imageSize.width, statistics.imageSize.height));
+				return -1;
+			}
+
+			List<double[][]> stack = readStack(options.folderSource, options.fileNames, options);
+			if (stack == null)
+				return -1;
+			statistics.add(stack, options.numberOfQuantiles);
+			statistics.fingerprint = "";
+			for (String name : options.fileNames)
+				statistics.files.add(new File(options.folderSource, name).getAbsolutePath());
+			options.numImagesProvided = statistics.numImages;
+
+			IJ.log(String.format(" Folded %d new images into the statistics of %d images", numNewImages, statistics.numImages));
+			preprocessStatistics(statistics, options);
+			return numNewImages;
+		}
+
+		private void writeStatistics(String folder)
+		{
+			try {
+				statistics.write(folder + CidreStatistics.FILE_NAME);
+			} catch (IOException e) {
+				IJ.log(" Warning: could not write the statistics (" + e.getMessage() + ")");
+			}
+		}
+
+		// reads the source images in a random order, options.sampleBatch images
+		// at a time, until the quantiles of the locations and their mean over the
+		// locations, which Q is estimated from, change by less than 
+		// options.sampleTolerance with a batch. options.fileNames and 
+		// options.numImagesProvided are reduced to the images read. The images 
+		// are added to stack unless it is null, the quantiles of the sample are
+		// returned. Returns null if an image could not be opened.
+		private CidreStatistics readSample(CidreOptions options, List<double[][]> stack)
+		{
+			List<String> order = new ArrayList<String>(options.fileNames);
+			Collections.shuffle(order, new Random(options.sampleSeed));
+
+			CidreStatistics sample = new CidreStatistics(options.imageSize, options.workingSize.width, options.workingSize.height);
+			double[] previous = null;
+			double[] previousMean = null;
+			double changeQuantiles = Double.NaN;
+			double changeMean = Double.NaN;
+			int n = 0;
+			while (n < order.size()) {
+				int end = Math.min(order.size(), n + Math.max(1, options.sampleBatch));
+				List<double[][]> batch = readStack(options.folderSource, order.subList(n, end), options);
+				if (batch == null)
+					return null;
+				if (stack != null)
+					stack.addAll(batch);
+				sample.add(batch, options.numberOfQuantiles);
+				n = end;
+
+				double[] mean = getMeanQuantiles(sample);
+				if (previous != null && previous.length == sample.values.length) {
+					changeQuantiles = getRelativeChange(previous, sample.values);
+					changeMean = getRelativeChange(previousMean, mean);
+					if (n >= options.sampleMinImages && changeQuantiles < options.sampleTolerance && changeMean < options.sampleTolerance)
+						break;
+				}
+				previous = sample.values;
+				previousMean = mean;
+			}
+
+			options.fileNames = new ArrayList<String>(order.subList(0, n));
+			options.numImagesProvided = n;
+			IJ.log(String.format(" Sampled %d of %d images (the quantiles changed by %g, their mean by %g with the last batch)", 
+					n, order.size(), changeQuantiles, changeMean));
+			return sample;
+		}
+
+		// the mean of every quantile over the locations
+		private double[] getMeanQuantiles(CidreStatistics sample)
+		{
+			double[] mean = new double[sample.K];
+			int N = sample.C * sample.R;
+			for (int p = 0; p < N; p++)
+				for (int k = 0; k < sample.K; k++)
+					mean[k] += sample.values[p * sample.K + k] / N;
+			return mean;
+		}
+
+		// sum |a - b| / sum |b|
+		private double getRelativeChange(double[] a, double[] b)
+		{
+			double difference = 0;
+			double norm = 0;
+			for (int i = 0; i < b.length; i++) {
+				difference += Math.abs(a[i] - b[i]);
+				norm += Math.abs(b[i]);
+			}
+			return (norm > 0) ? difference / norm : 0;
+		}
+
+		// reads the images of the folder at the working size options.streamBatch
+		// at a time, continuing the decoding of the images submitted while 
+		// listing, and folds every batch into the quantiles of new statistics. 
+		// Returns null if an image could not be opened.
+		private CidreStatistics readStatistics(String folder, List<String> fileNames, CidreOptions options, List<Future<double[][]>> decoded)
+		{
+			CidreStatistics folded = new CidreStatistics(options.imageSize, options.workingSize.width, options.workingSize.height);
+			int batch = Math.max(1, options.streamBatch);
+			for (int n = 0; n < fileNames.size(); n += batch) {
+				int end = Math.min(fileNames.size(), n + batch);
+				List<Future<double[][]>> batchDecoded = new ArrayList<Future<double[][]>>(decoded.subList(Math.min(n, decoded.size()), Math.min(end, decoded.size())));
+				List<double[][]> stack = readStack(folder, fileNames.subList(n, end), options, batchDecoded);
+				if (stack == null)
+					return null;
+				folded.add(stack, options.numberOfQuantiles);
+			}
+			return folded;
+		}
+
+		// reads the images of the folder at the working size, returns null if an
+		// image could not be opened
+		private List<double[][]> readStack(String folder, List<String> fileNames, CidreOptions options)
+		{
+			return readStack(folder, fileNames, options, new ArrayList<Future<double[][]>>());
+		}
+
+		// the same, continuing the decoding of the images submitted while listing
+		private List<double[][]> readStack(String folder, List<String> fileNames, CidreOptions options, List<Future<double[][]>> decoded)
+		{
+		    IJ.log(" Reading " + fileNames.size() + " images from " + folder + "\n .");
+		    long t1 = System.currentTimeMillis();
+		    long tLoad = System.nanoTime();
+	    
+		    if (decodePool != null) {
+		    	// the images are decoded concurrently, and added to the stack in order
+		    	for (int z = decoded.size(); z < fileNames.size(); z++)
+		    		decoded.add(submitDecode(folder + fileNames.get(z), options));
+		    }
+
+		    List<double[][]> stack = new ArrayList<double[][]>();
+		    try {
+			    for (int z = 0; z < fileNames.size(); z++)
+			    {
+			        if (z > 0 && z % 100 == 0) IJ.log(".");	// progress to the command line
+			        String fileName = folder + fileNames.get(z);
+			    	double[][] Irescaled = (decodePool != null) ? decoded.get(z).get() : readWorkingImage(fileName, options.imageSize, options.workingSize);
+					if (Irescaled == null) {
+						IJ.error("CIDRE:loadImages", "Cannot open " + fileName);
+						return null;
+					}
+			    	stack.add(Irescaled);
+			    }
+		    } catch (InterruptedException e) {
+		    	Thread.currentThread().interrupt();
+		    	return null;
+		    } catch (ExecutionException e) {
+		    	throw new RuntimeException(e.getCause());
+		    } finally {
+		    	for (Future<double[][]> future : decoded)
+		    		future.cancel(false);
+		    }
+		    metrics.phaseFinished(CidreMetrics.LOAD, tLoad);
+		    long t2 = System.currentTimeMillis();
+		    IJ.log(String.format("finished in %1.2fs.", (t2 - t1)/1000.0));
+		    return stack;
+		}
+
+		private Future<double[][]> submitDecode(final String fileName, CidreOptions options)
+		{
+    		final Dimension imageSize = options.imageSize;
+    		final Dimension workingSize = options.workingSize;
+    		return decodePool.submit(new Callable<double[][]>() {
+    			@Override public double[][] call() {
+    				return readWorkingImage(fileName, imageSize, workingSize);
+    			}
+    		});
+		}
+
+		// reads an image of the source folder and converts it to the working size,
+		// returns null if the image could not be opened
+		private double[][] readWorkingImage(String fileName, Dimension imageSize, Dimension workingSize)
+		{
+			long tDecode = System.nanoTime();
+	    	ImagePlus imp = IJ.openImage(fileName);
+			if (imp == null)
+				return null;
+	    	ImageProcessor ip = imp.getProcessor();
+	    	metrics.imageRead(new File(fileName).length());
+
+	    	float[][] floatArray = ip.getFloatArray();
+    	
+	    	double[][] doubleArray = new double[ip.getWidth()][ip.getHeight()];
+    	
+	    	for (int x = 0; x < ip.getWidth(); x++) 
+	    		for (int y = 0; y < ip.getHeight(); y++)
+	    			doubleArray[x][y] = floatArray[x][y];
+	    	imp.close();
+	    	metrics.record(CidreMetrics.DECODE, tDecode);
+
+	    	long tResize = System.nanoTime();
+	    	double[][] resized = imresize(doubleArray, imageSize.width, imageSize.height, workingSize.width, workingSize.height);
+	    	metrics.record(CidreMetrics.RESIZE, tResize);
+	    	return resized;
+		}
+
+		private void getBitDepth(CidreOptions options, double maxI)
+		{
+			// Sets options.bitDepth describing the provided images as 8-bit, 12-bit, or 
+			// 16-bit. If options.bitDepth is provided, it is used. Otherwise the bit 
+			//depth is estimated from the max observed intensity, maxI.
+		
+			final int xy_2_8 = 256;
+			final int xy_2_12 = 4096;
+			final int xy_2_16 = 65536;
+
+			/*if (options.bitDepth != null)
+			{
+				    if (options.bitDepth !=	xy_2_8 || options.bitDepth != xy_2_12 || options.bitDepth != xy_2_16)
+				        IJ.error("CIDRE:loadImages", "Provide bit depth as max integer value, eg 2^12");
+				    else
+				        IJ.log(String.format(" log2 %d-bit depth", options.bitDepth));
+			} 
+			else*/
+			//{
+				    if (maxI > xy_2_12)
+				        options.bitDepth = xy_2_16;
+				    else if (maxI > xy_2_8)
+				        options.bitDepth = xy_2_12;
+				    else
+				        options.bitDepth = xy_2_8;
+				    IJ.log(String.format(" %d-bit depth images (estimated from max intensity=%1.0f)", Math.round(Math.log(options.bitDepth)/Math.log(2)), maxI));
+			//}
+		}
+	
+		// the distribution of the integer intensities of S
+		private long[] getHistogram(int bitDepth)
+		{
+			long[] hist = new long[bitDepth];
+			for (int z = 0; z < S.size(); z++) {
+		    	double[][] doubleArray = S.get(z);
+
+		    	for (int x = 0; x < S_C; x++) {
+		    		for (int y = 0; y < S_R; y++) {
+		    			// the resized images may ring slightly outside the range of the source
+		    			hist[Math.min(bitDepth - 1, Math.max(0, (int)doubleArray[x][y]))]++;
+		    		}
+		    	}
+			}
+			return hist;
+		}
+
+		private double getEntropy(long[] hist)
+		{
+			// gets the entropy of an image stack. A very low entropy indicates that
+			// there may be insufficient intensity information to build a good model.
+			// This can happen when only a few images are provided and the background
+			// does not provide helpful information. For example in low confluency
+			// fluorescence images from a glass slide, the background pixels have nearly
+			// zero contribution from incident light and do not provide useful
+			// information.
+
+			// the distribution representing all of S
+			double[] P = new double[hist.length];
+		
+			double sumP = 0;
+			for (int i = 0; i < hist.length; i++)
+				sumP += hist[i];
+
+			for (int i = 0; i < P.length; i++)
+				P[i] = hist[i] / sumP;
+		
+			// compute the entropy of the distribution
+			//if (sum(~isfinite(P(:)))) {
+			//	IJ.error("CIDRE:loadImages", "the inputs contain non-finite values!"); 
+			//}
+			//P = P(:) ./ sum(P(:));
+			//P(P == 0) = []; // In the case of p(xi) = 0 for some i, the value of the 
+				                // corresponding sum and 0 logb(0) is taken to be 0
+			double H = 0;
+			for (int i = 0; i < P.length; i++)
+			{
+				if (P[i] != 0)
+				{
+					H += P[i] * Math.log(P[i]) / Math.log(2.0);
+				}
+			}
+			H *= -1;
+
+			IJ.log(String.format(" Entropy of the stack = %1.2f", H));
+			return H;
+		}
+	
+		private void scaleSpaceResampling(double entropy, int numImages, CidreOptions options)
+		{
+			// uses scale space resampling to compensate for regions with little
+			// intensity information. if the entropy is very low, this indicates that 
+			// some (or many) have regions little useful information. resampling from
+			// a scale space transform allows us to leverage information from 
+			// neighboring locations. For example, in low confluency fluorescence images
+			// without a fluorescing medium, the background pixels contain nearly zero 
+			// contribution from incident light and do not provide useful information.
+
+			double l0 = 1;			// max lambda_vreg
+			double l1 = 0;			// stable lambda_vreg
+			double N  = numImages;	// number of images in the stack
+			double a  = 7.838e+06;	// parameters of a fitted exponential function
+			double b  = -1.948;		// parameters of a fitted exponential function
+			double c  = 20;			// parameters of a fitted exponential function
+
+			// emprical estimate of the number of images necessary at the reported entropy level
+			double N_required = a * Math.exp(b*entropy) + c; 
+
+			// alpha is a linear function from 1 (N=0) to 0 (N=N_required) and 0 
+			// (N > N_required). It informs us how strong the scale space resampling
+			// should be. alpha=1 means strong resampling, alpha=0 skips resampling
+			double alpha;
+
+		    if (N < N_required) {
+			    String warnmsg = String.format(" Warning: less than recommended number\n of images provided (%.0f < %.0f) for the\n observed image entropy=%1.2f.\n\n Using scale-space resampling to compensate.", N, (double)Math.round(N_required), entropy);
+			    options.warnings.add(warnmsg);		// shown to the user by the GUI
+			    IJ.log(String.format("\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!\n%s\n!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!\n\n", warnmsg));
+				alpha = l0 + ((l1-l0)/(N_required)) * N;
+			} else {
+				alpha = l1;
+			}
+
+			// the dimensions of the stack
+			int C1 = S_C;
+			int R1 = S_R;
+			int Z1 = S.size();
+
+			// scale space reduction of the stack into octaves. SCALE is a cell 
+			// containing the scale space reductions of the stack: {[R1xC1xZ1], [R1/2 x 
+			// C1/2 x Z1], [R1/4 x C1/4 x Z1], ...}
+			List<List<double[][]>> SCALE = new ArrayList<List<double[][]>>();	// cell containing the scale space reductions
+			int R = R1;         		// scale space reduced image height
+			int C = C1;         		// scale space reduced image width
+
+			SCALE.add(S);
+			while ((R > 1) && (C > 1))
+			{
+				List<double[][]> elementS = new ArrayList<double[][]>();
+				List<double[][]> lastElements = SCALE.get(SCALE.size() - 1);
+			
+				for (int i = 0; i < lastElements.size(); i++)
+				{
+					double[][] element = lastElements.get(i);
+					double[][] rescaledElement = imresize(element, C, R, 0.5);
+				
+					elementS.add(rescaledElement);
+				}
+				SCALE.add(elementS);
+			
+				R = SCALE.get(SCALE.size() - 1).get(0)[0].length;
+				C = SCALE.get(SCALE.size() - 1).get(0).length;
+			}
+
+			// determine the max octave we should keep, max_i as directed by the scaling
+			// strength alpha. alpha = 0 keeps only the original size. alpha = 1 uses 
+			// all available octaves
+			int max_possible_i = SCALE.size();
+			alpha = Math.max(0, alpha); alpha = Math.min(1, alpha);
+			int max_i = (int)Math.ceil(alpha * max_possible_i);
+			max_i = Math.max(max_i, 1);
+
+			// join the octaves from the scale space reduction from i=1 until i=max_i. 
+			if (max_i > 1)
+			{
+				IJ.log(" Applying scale-space resampling (intensity information is low)");
+				List<double[][]> S2 = new ArrayList<double[][]>();
+				for (int i = 0; i < max_i; i++)
+				{
+					R = SCALE.get(i).get(0)[0].length;
+					C = SCALE.get(i).get(0).length;
+				
+			        IJ.log(String.format("  octave=1/(2^%d)  size=%dx%d", i, R, C));
+		        
+			        for (int j = 0; j < S.size(); j++) 
+			        {
+			        	S2.add(imresize(SCALE.get(i).get(j), C, R, C1, R1));
+			        }
+	
+				}
+			
+				S = S2;
+			}
+			else
+			{
+				IJ.log(String.format(" Scale-space resampling NOT APPLIED (alpha = %f)", alpha));
+			}
+		}
+
+		private void resizeStack(CidreOptions options)
+		{
+			// in order keep CIDRE computationally tractable and to ease parameter 
+			// setting, we reduce the 3rd dimension of the sorted stack S to Z = 200. 
+			// Information is not discarded in the process, but several slices from the 
+			// stack are averaged into a single slice in the process.
+
+			// get the original dimensions of S
+			int C = S_C;
+			int R = S_R;
+			int Z = S.size();
+
+			// if Z < options.numberOfQuantiles, we do not want to further compress
+			// the data. leave S as is.
+			if (Z <= options.numberOfQuantiles)
+			{
+	    		return;
+			}
+			else
+			{
+			    // find regionLimits, a set of indexes that breaks Z into
+			    // options.numberOfQuantiles evenly space pieces
+			    int Zmin = 0;
+			    int Zmax = Z;
+			    int Zdiff = Zmax - Zmin;
+		    
+			    int[][] regionLimits = new int[options.numberOfQuantiles][2];
+			    for (int i = 0; i < options.numberOfQuantiles; i++) {
+			        regionLimits[i][0] = Math.round(Zmin + Zdiff*((float)i/options.numberOfQuantiles));
+			        regionLimits[i][1] = Math.round(Zmin + Zdiff*((float)(i+1)/options.numberOfQuantiles)) - 1;
+			    }
+		    
+			    // compute the mean image of each region of S defined by regionLimits,
+			    // and add the mean image to S2
+			    List<double[][]> S2 = new ArrayList<double[][]>();
+
+		    	for (int i = 0; i < options.numberOfQuantiles; i++) {
+			    	double[][] doubleArray = new double[S_C][S_R];
+
+					double[] doubleValues = new double[regionLimits[i][1] - regionLimits[i][0] + 1];
+
+			    	for (int x = 0; x < S_C; x++)
+			    		for (int y = 0; y < S_R; y++)
+			    		{
+			    			for (int z = regionLimits[i][0]; z <= regionLimits[i][1]; z++) 
+			    				doubleValues[z - regionLimits[i][0]] = S.get(z)[x][y];
+
+			    	    	doubleArray[x][y] = mean(doubleValues); 
+			    		}
+
+			    	S2.add(doubleArray);
+			    }	    	
+		    	S = S2;
+			}
+		}
+	
+		private void preprocessData(double maxI, CidreOptions options)
+		{
+			// the statistics keep the stack as it was read, for later updates
+			if (statistics != null)
+				statistics.add(S, options.numberOfQuantiles);
+
+			// determine if sufficient intensity information is provided by measuring entropy
+			getBitDepth(options, maxI);					// store the bit depth of the images in options, needed for entropy measurement
+			long t0 = System.nanoTime();
+			double entropy = getEntropy(getHistogram(options.bitDepth));		// compute the stack's entropy
+			metrics.phaseFinished(CidreMetrics.ENTROPY, t0);
+			options.entropy = entropy;
+			sortAndCompress(entropy, S.size(), options);
+		}
+
+		// preprocesses the quantiles of the statistics as if they were the stack
+		// of all the images they were built from
+		private void preprocessStatistics(CidreStatistics statistics, CidreOptions options)
+		{
+			S = statistics.getStack();
+			S_C = statistics.C;
+			S_R = statistics.R;
+			getBitDepth(options, statistics.maxI);
+			long t0 = System.nanoTime();
+			double entropy = getEntropy(statistics.getHistogram(options.bitDepth));
+			metrics.phaseFinished(CidreMetrics.ENTROPY, t0);
+			options.entropy = entropy;
+			sortAndCompress(entropy, statistics.numImages, options);
+		}
+
+		private void sortAndCompress(double entropy, int numImages, CidreOptions options)
+		{
+			long t0 = System.nanoTime();
+			scaleSpaceResampling(entropy, numImages, options); 		// resample the stack if the entropy is too high
+			metrics.phaseFinished(CidreMetrics.SCALE_SPACE, t0);
+
+			// sort the intensity values at every location in the image stack
+			// at every pixel location (r,c), we sort all the recorded intensities from
+			// the provided images and replace the stack with the new sorted values.
+			// The new S has the same data as before, but sorted in ascending order in
+			// the 3rd dimension.
+			long t1 = System.currentTimeMillis();
+			long tSort = System.nanoTime();
+			IJ.log(" Sorting intensity by pixel location and resizing...");
+
+			//S = sort(S,3);
+			double[] doubleValues = new double[S.size()];
+
+	    	for (int x = 0; x < S_C; x++) {
+	    		for (int y = 0; y < S_R; y++) {
+	    			for (int z = 0; z < S.size(); z++) 
+	    				doubleValues[z] = S.get(z)[x][y];
+
+	    	    	Arrays.sort(doubleValues);
+    	    	
+	    			for (int z = 0; z < S.size(); z++) 
+	    				S.get(z)[x][y] = doubleValues[z];
+	    		}
+	    	}    	
+	
+			// compress the stack: reduce the effective number of images for efficiency
+			resizeStack(options);
+			metrics.phaseFinished(CidreMetrics.SORT, tSort);
+		    long t2 = System.currentTimeMillis();
+		    IJ.log(String.format("finished in %1.2fs.", (t2 - t1)/1000.0));
+		}
+	
+		private ZLimitsResult getZLimits(CidreOptions cidreOptions)
+		{
+			ZLimitsResult zLimitsResult = new ZLimitsResult();
+		
+			if (cidreOptions.zLimits[0] != null) {
+				zLimitsResult.zmin = cidreOptions.zLimits[0];
+				zLimitsResult.zmax = cidreOptions.zLimits[1];
+				zLimitsResult.zx0 = (cidreOptions.zLimits[0] + cidreOptions.zLimits[1]) / 2.0;
+				zLimitsResult.zy0 = zLimitsResult.zx0;
+			} else {
+				zLimitsResult.zmin = 0;
+				zLimitsResult.zmax = STACKMIN;
+				zLimitsResult.zx0 = 0.85 * STACKMIN;
+				zLimitsResult.zy0 = zLimitsResult.zx0;
+			}
+		
+			return zLimitsResult;		
+		}
+	
+		private double[] estimateQ(double qPercent) {
+			// We estimate Q, the underlying intensity distribution, using a robust mean
+			// of the provided intensity distributions from Q
+
+			//get dimensions of the provided data stack, S
+			int C = S_C;
+			int R = S_R;
+			int Z = S.size();
+
+			// determine the number of points to use
+			long numPointInQ = Math.round(qPercent * R*C);
+			//IJ.log(String.format(" number of points used to compute Q = %d  (%1.2f%%)", numPointInQ, qPercent*100));
+
+			// sort the means of each intensity distribution
+			//meanSurf = mean(S,3);
+			double[] doubleValues = new double[Z];	// for mean
+			double[][] meanSurf = new double[C][R]; 
+
+			for (int x = 0; x < C; x++) {
+	    		for (int y = 0; y < R; y++)
+	    		{
+	    			for (int z = 0; z < Z; z++) 
+	    				doubleValues[z] = S.get(z)[x][y];
+
+	    			meanSurf[x][y] = mean(doubleValues);
+	    		}
+			}
+		
+			//[msorted inds] = sort(meanSurf(:)); %#ok<ASGLU>
+			final double[] msorted = new double[C * R];
+			final Integer[] inds = new Integer[C * R];
+
+			int i = 0;
+			for (i = 0; i < C * R; i++)
+				inds[i] = i;
+			i = 0;
+			for (int x = 0; x < C; x++)
+	    		for (int y = 0; y < R; y++)
+	    			msorted[i++] = meanSurf[x][y];
+		
+		
+			Arrays.sort(inds, new Comparator<Integer>() {
+			    @Override public int compare(final Integer o1, final Integer o2) {
+			        return Double.compare(msorted[o1], msorted[o2]);
+			    }
+			});
+
+			// locations used to compute Q (M) come from the central quantile
+			int mStart = (int)(Math.round((C*R)/2.0) - Math.round(numPointInQ/2.0)) - 1;
+			int mEnd   = (int)(Math.round((C*R)/2.0) + Math.round(numPointInQ/2.0));
+			int mLength = mEnd - mStart;
+		
+			doubleValues = new double[mLength];	// for mean
+			int[] cList = new int[mLength];
+			int[] rList = new int[mLength];
+		
+			for (i = 0; i < mLength; i++) {
+				cList[i] = inds[mStart + i] / R;
+				rList[i] = inds[mStart + i] % R;
+			}
+		
+			double[] Q = new double[Z];
+			for (int z = 0; z < Z; z++) {
+				double[][] doubleArray = S.get(z);
+				for (i = 0; i < mLength; i++) {
+					doubleValues[i] = doubleArray[cList[i]][rList[i]];
+				}
+				Q[z] = mean(doubleValues);
+			}
+			return Q;
+		}
+	
+		private void computeStackMin()
+		{
+			if (cachedQ == null)	// otherwise restored with the stack cache
+			{
+				STACKMIN = Double.MAX_VALUE;
+				for (int z = 0; z < S.size(); z++)
+				{
+					for (int c = 0; c < S_C; c++)
+						for (int r = 0; r < S_R; r++)
+							if (STACKMIN > S.get(z)[c][r])
+								STACKMIN = S.get(z)[c][r];
+				}
+			}
+		}
+
+		// get an estimate of Q, the underlying intensity distribution
+		private double[] getQ(CidreOptions options, double qPercent)
+		{
+			double[] Q;
+			if (cachedQ != null && cachedQPercent == qPercent) {
+				Q = cachedQ;
+			} else {
+				long t0 = System.nanoTime();
+				Q = estimateQ(qPercent);
+				metrics.phaseFinished(CidreMetrics.ESTIMATE_Q, t0);
+
+				// save the preprocessed stack, a rebuild with other lambdas starts from here
+				if (stackFingerprint != null) {
+					writeStackCache(options, stackFingerprint, Q, qPercent);
+					cachedQ = Q;
+					cachedQPercent = qPercent;
+				}
+			}
+			return Q;
+		}
+
+		// the correction model of the original image size
+		private CidreModel getModel(CidreOptimization optimization, double[] x, CidreOptions options)
+		{
+			CidreModel model = optimization.getModel(x);
+			model.imageSize = new Dimension(options.imageSize.width, options.imageSize.height);		
+			model.lambdaVreg = options.lambdaVreg;
+			model.lambdaZero = options.lambdaZero;
+			model.qPercent = options.qPercent;
+			model.numImages = options.numImagesProvided;
+			model.bitDepth = (options.bitDepth != null) ? options.bitDepth : 0;
+			if (options.fullSizeModel) {
+				SurfaceUpsampler upsampler = new SurfaceUpsampler(S_C, S_R, options.imageSize.width, options.imageSize.height);
+				model.v = upsampler.upsample(model.v_small);
+				model.z = upsampler.upsample(model.z_small);
+			}
+			return model;
+		}
+
+		private CidreModel cidreModel(CidreOptions options)
+		{
+			CidreModel model = null;
+
+			setDefaultOptions(options);
+			computeStackMin();
+
+			ZLimitsResult zLimitsResult = getZLimits(options);
+			double[] Q = getQ(options, options.qPercent);
+
+			// the optimization works on a copy of the stack in the pivot space, S is
+			// kept so the model can be rebuilt with other parameters
+			PivotedStack pivotedStack = CidreOptimization.pivotStack(S, S_C, S_R);
+			CidreOptimization optimization = new CidreOptimization(pivotedStack, Q, options.lambdaVreg, options.lambdaZero, zLimitsResult.zmin, zLimitsResult.zmax);
+
+			IJ.log(String.format(" Optimizing using the following parameters:\n lambda_v  = %1.2f\n lambda_z  = %1.2f\n q_percent = %1.2f\n z_limits = [%.0f %.0f]\n(this may take a few minutes)\n", options.lambdaVreg, options.lambdaZero, options.qPercent, zLimitsResult.zmin, zLimitsResult.zmax));
+
+			long t1 = System.currentTimeMillis();
+
+			double[] x0 = optimization.getInitialGuess(zLimitsResult.zx0, zLimitsResult.zy0);
+
+			// the LS phase of an updated model starts from the LS solution of the
+			// previous one. The zero-light point is not fitted in this phase, it 
+			// keeps the initial guess of the new stack the robust phase starts from.
+			if (statistics != null && statistics.solutionLS != null) {
+				IJ.log(" Starting from the previous model");
+				double[] u = statistics.solutionLS.clone();
+				u[u.length - 2] = x0[x0.length - 2];
+				u[u.length - 1] = x0[x0.length - 1];
+				x0 = optimization.pivotSolution(u);
+			}
+
+			MinFuncOptions minFuncOptions = getMinFuncOptions(options);
+			if (options.checkpointInterval > 0) {
+				minFuncOptions.checkpointFile = options.folderDestination + OPTIMIZER_CHECKPOINT_FILE;	// periodic checkpoints of the optimizer state
+				minFuncOptions.checkpointInterval = Math.round(options.checkpointInterval * 1000);
+			}
+
+			// continue a previous build from its latest checkpoint
+			OptimizerCheckpoint checkpoint = null;
+			if (options.resume) {
+				checkpoint = optimization.readOptimizerCheckpoint(options.folderDestination + OPTIMIZER_CHECKPOINT_FILE);
+			}
+
+			// every iteration of the optimizer goes to the trace file, a resumed build appends to it
+			if (options.optimizerTrace) {
+				try {
+					minFuncOptions.trace = new OptimizerTrace(options.folderDestination + OptimizerTrace.FILE_NAME, options.resume);
+				} catch (IOException e) {
+					IJ.log(" Warning: could not open the optimizer trace (" + e.getMessage() + ")");
+				}
+			}
+
+			// both phases share the time budget: the first phase may use up to half
+			// of it and the second phase gets whatever remains
+			long deadline = 0;
+			if (options.maxOptimizationTime != null) {
+				deadline = t1 + Math.max(1, Math.round(options.maxOptimizationTime * 1000));
+				IJ.log(String.format(" Time limit of the optimization = %1.1fs", options.maxOptimizationTime));
+			}
+			List<ConvergenceInfo> convergence = new ArrayList<ConvergenceInfo>();
+
+			// the objective is evaluated on all the available cores, on the shared
+			// compute pool of the engine if there is one
+			int objectiveThreads = Math.max(1, options.numThreads);
+			ExecutorService objectivePool = (computePool == null && objectiveThreads > 1) ? Executors.newFixedThreadPool(objectiveThreads) : null;
+			optimization.setObjectivePool((computePool != null) ? computePool : objectivePool, objectiveThreads);
+
+			double[] x;
+			try {
+				x = optimization.optimize(x0, minFuncOptions, deadline, checkpoint, convergence);
+			} finally {
+				if (objectivePool != null) {
+					objectivePool.shutdown();
+				}
+				CidreIO.closeQuietly(minFuncOptions.trace);
+			}
+
+			// Build the final correction model 
+			model = getModel(optimization, x, options);
+			model.convergence = convergence;
+		
+			long t2 = System.currentTimeMillis();
+		    IJ.log(String.format(" Finished in %1.2fs.", (t2 - t1)/1000.0));
+		    for (ConvergenceInfo info : convergence) {
+		    	IJ.log(String.format("  %s: %s after %d iterations, %d evaluations, E=%g, optCond=%g, %1.2fs", 
+		    			info.phase, info.timeLimited ? "stopped by the time limit" : info.msg, info.iterations, info.funEvals, info.f, info.optCond, info.seconds));
+		    }
+		
+			// Save the correction model to the destination folder
+
+			IJ.log(String.format("Saving correction model to the Destination folder... "));
+			saveModel(model, options.folderDestination, options.exportModelCSV);
+			if (statistics != null) {
+				double[] xLS = optimization.getLeastSquaresSolution();
+				if (xLS != null)
+					statistics.solutionLS = optimization.unpivotSolution(xLS);
+				writeStatistics(options.folderDestination);
+			}
+
+	    	// the optimization is complete, there is nothing left to resume
+	    	new File(options.folderDestination + OPTIMIZER_CHECKPOINT_FILE).delete();
+
+			/*// Save the correction model 'representation' images to the destination folder, experimental
+	    	ImagePlus imp;
+	    	ImageProcessor ip;
+	    	float[][] floatArray;
+
+			// V
+	    	IJ.open(options.folderSource + options.fileNames.get(0));
+	    	imp = IJ.getImage();
+	    	ip = imp.getProcessor();
+	    	floatArray = ip.getFloatArray();
+	    	float minValue = Float.MAX_VALUE;
+	    	for (int c = 0; c < ip.getWidth(); c++) { 
+	    		for (int r = 0; r < ip.getHeight(); r++) {
+	    			if (minValue > (float)(model.v[r * ip.getWidth() + c]))
+	    				minValue = (float)(model.v[r * ip.getWidth() + c]);
+	    		}    		
+	    	}    	
+	    	for (int c = 0; c < ip.getWidth(); c++) { 
+	    		for (int r = 0; r < ip.getHeight(); r++) {
+	    			floatArray[c][r] = (float)(model.v[r * ip.getWidth() + c] - minValue) * options.bitDepth;
+	    		}
+	    	}
+			ip.setFloatArray(floatArray);		
+	    	IJ.saveAs("TIFF", options.folderDestination + "cidre_model_v.tif");
+	    	imp.close();
+    	
+	    	// Z
+	    	IJ.open(options.folderSource + options.fileNames.get(0));
+	    	imp = IJ.getImage();;
+	    	ip = imp.getProcessor();
+	    	floatArray = ip.getFloatArray();	    	
+	    	for (int c = 0; c < ip.getWidth(); c++) { 
+	    		for (int r = 0; r < ip.getHeight(); r++) {
+	    			floatArray[c][r] = (float)model.z[r * ip.getWidth() + c];
+	    		}
+	    	}
+			ip.setFloatArray(floatArray);		
+	    	IJ.saveAs("TIFF", options.folderDestination + "cidre_model_z.tif");
+	    	imp.close();
+    	
+	    	// V small
+	    	IJ.open(options.folderSource + options.fileNames.get(0));
+	    	imp = IJ.getImage();
+	    	ip = imp.getProcessor();
+	    	imp.setProcessor(ip.resize(S_C, S_R));
+	    	floatArray = new float[S_C][S_R];	    	
+	    	for (int c = 0; c < S_C; c++) { 
+	    		for (int r = 0; r < S_R; r++) {
+	    			floatArray[c][r] = (float)(model.v_small[c * S_R + r] * options.bitDepth);
+	    		}
+	    	}
+			imp.getProcessor().setFloatArray(floatArray);		
+	    	IJ.saveAs("TIFF", options.folderDestination + "cidre_model_v_small.tif");
+	    	imp.close();
+    	
+	    	// Z small
+	    	IJ.open(options.folderSource + options.fileNames.get(0));
+	    	imp = IJ.getImage();
+	    	ip = imp.getProcessor();
+	    	imp.setProcessor(ip.resize(S_C, S_R));
+	    	floatArray = new float[S_C][S_R];	    	
+	    	for (int c = 0; c < S_C; c++) { 
+	    		for (int r = 0; r < S_R; r++) {
+	    			floatArray[c][r] = (float)(model.z_small[c * S_R + r]);
+	    		}
+	    	}
+			imp.getProcessor().setFloatArray(floatArray);		
+	    	IJ.saveAs("TIFF", options.folderDestination + "cidre_model_z_small.tif");
+	    	imp.close();*/
+		
+			IJ.log(String.format(" done"));
+		
+			return model;
+		}
+
+		// Parameter sweep
+		// Builds a model of the loaded stack for every combination of the given
+		// lambda_v, lambda_z and q_percent values. The configurations run 
+		// concurrently on one thread pool, each of them in a single thread, and
+		// share the pivoted stack. Every model is saved to its own sub-folder of 
+		// the destination folder, and the energies and timings of all of them to
+		// a single report.
+		private List<SweepResult> cidreSweep(final CidreOptions options, double[] lambdaVregs, double[] lambdaZeros, double[] qPercents)
+		{
+			setDefaultOptions(options);
+			computeStackMin();
+
+			final ZLimitsResult zLimitsResult = getZLimits(options);
+			final PivotedStack pivotedStack = CidreOptimization.pivotStack(S, S_C, S_R);
+
+			final List<SweepResult> results = new ArrayList<SweepResult>();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int k = 0; k < qPercents.length; k++) {
+				// Q only depends on q_percent
+				final double[] Q = getQ(options, qPercents[k]);
+				for (int i = 0; i < lambdaVregs.length; i++) {
+					for (int j = 0; j < lambdaZeros.length; j++) {
+						final SweepResult result = new SweepResult();
+						result.configuration = results.size() + 1;
+						result.lambdaVreg = lambdaVregs[i];
+						result.lambdaZero = lambdaZeros[j];
+						result.qPercent = qPercents[k];
+						results.add(result);
+						tasks.add(new Callable<Void>() {
+							@Override public Void call() {
+								cidreSweepConfiguration(result, pivotedStack, Q, zLimitsResult, options);
+								return null;
+							}
+						});
+					}
+				}
+			}
+
+			int threads = Math.max(1, Math.min(options.numThreads, tasks.size()));
+			IJ.log(String.format(" Sweeping %d parameter configurations on %d threads\n z_limits = [%.0f %.0f]\n(this may take a while)", 
+					results.size(), threads, zLimitsResult.zmin, zLimitsResult.zmax));
+			long t1 = System.currentTimeMillis();
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				for (Future<Void> future : pool.invokeAll(tasks))
+					future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+
+			long t2 = System.currentTimeMillis();
+		    IJ.log(String.format(" Finished in %1.2fs.", (t2 - t1)/1000.0));
+
+			writeSweepReport(options.folderDestination + SWEEP_REPORT_FILE, results);
+			IJ.log(" The sweep report was written to " + options.folderDestination + SWEEP_REPORT_FILE);
+			return results;
+		}
+
+		// a failing configuration is recorded in its result, the others continue
+		private void cidreSweepConfiguration(SweepResult result, PivotedStack pivotedStack, double[] Q, ZLimitsResult zLimitsResult, CidreOptions options)
+		{
+			long tStart = System.currentTimeMillis();
+			try {
+				CidreOptimization optimization = new CidreOptimization(pivotedStack, Q, result.lambdaVreg, result.lambdaZero, zLimitsResult.zmin, zLimitsResult.zmax);
+				optimization.setLogIterations(false);
+
+				MinFuncOptions minFuncOptions = getMinFuncOptions(options);
+				minFuncOptions.lineSearchBatch = 1;		// the threads are already used by the other configurations
+
+				// the time limit applies to every configuration
+				long deadline = 0;
+				if (options.maxOptimizationTime != null)
+					deadline = tStart + Math.max(1, Math.round(options.maxOptimizationTime * 1000));
+
+				List<ConvergenceInfo> convergence = new ArrayList<ConvergenceInfo>();
+				double[] x = optimization.optimize(optimization.getInitialGuess(zLimitsResult.zx0, zLimitsResult.zy0), minFuncOptions, deadline, null, convergence);
+				result.model = getModel(optimization, x, options);
+				result.model.lambdaVreg = result.lambdaVreg;
+				result.model.lambdaZero = result.lambdaZero;
+				result.model.qPercent = result.qPercent;
+				result.model.convergence = convergence;
+
+				result.folder = String.format("sweep_%03d", result.configuration);
+				File folder = new File(options.folderDestination + result.folder);
+				folder.mkdirs();
+				saveModel(result.model, folder.getPath() + File.separator, options.exportModelCSV);
+			} catch (RuntimeException e) {
+				result.error = e.toString();
+			}
+			result.seconds = (System.currentTimeMillis() - tStart) / 1000.0;
+
+			if (result.error == null) {
+				ConvergenceInfo info = result.model.convergence.get(result.model.convergence.size() - 1);
+				IJ.log(String.format("  [%d] lambda_v=%1.2f lambda_z=%1.2f q_percent=%1.2f: E=%g, %1.2fs", 
+						result.configuration, result.lambdaVreg, result.lambdaZero, result.qPercent, info.f, result.seconds));
+			} else {
+				IJ.log(String.format("  [%d] lambda_v=%1.2f lambda_z=%1.2f q_percent=%1.2f: failed (%s)", 
+						result.configuration, result.lambdaVreg, result.lambdaZero, result.qPercent, result.error));
+			}
+		}
+
+		// Stack cache
+		// The preprocessed stack is written to a binary file in the destination 
+		// folder, so that a rebuild with other parameters or an interrupted build
+		// does not start from scratch. The optimizer checkpoints are written by
+		// CidreOptimization. Each file is first written to a temporary file and 
+		// then moved in place, so a crash while writing never destroys the 
+		// previous one.
+		// the stack cache is keyed by the source folder, the names, sizes and 
+		// modification times of the source images and by the settings that the 
+		// preprocessing depends on
+		private String getStackFingerprint(String source, File[] files, String fileMask, boolean stream, CidreOptions options)
+		{
+			File[] sortedFiles = files.clone();
+			Arrays.sort(sortedFiles);
+
+			StringBuilder key = new StringBuilder();
+			key.append(getCanonicalPath(source)).append('\n');
+			key.append(fileMask != null ? fileMask : "").append('\n');
+			key.append(options.targetNumPixels).append('\n');
+			key.append(options.numberOfQuantiles).append('\n');
+			if (options.sampleImages)
+				key.append("sample ").append(options.sampleBatch).append(' ').append(options.sampleMinImages).append(' ').append(options.sampleTolerance).append(' ').append(options.sampleSeed).append('\n');
+			if (stream)
+				key.append("stream ").append(options.streamBatch).append('\n');
+			for (int i = 0; i < sortedFiles.length; i++)
+				key.append(sortedFiles[i].getName()).append('\t').append(sortedFiles[i].length()).append('\t').append(sortedFiles[i].lastModified()).append('\n');
+
+			return CidreIO.sha1(key.toString());
+		}
+
+		// two paths of the same folder give the same key
+		private String getCanonicalPath(String folder)
+		{
+			try {
+				return new File(folder).getCanonicalPath();
+			} catch (IOException e) {
+				return new File(folder).getAbsolutePath();
+			}
+		}
+
+		private void writeStackCache(CidreOptions options, String fingerprint, double[] Q, double qPercent)
+		{
+			String fileName = options.folderDestination + STACK_CACHE_FILE;
+			File tmpFile = new File(fileName + ".tmp");
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+				out.writeInt(STACK_CACHE_MAGIC);
+				out.writeInt(STACK_CACHE_VERSION);
+				out.writeUTF(fingerprint);
+				out.writeInt(options.imageSize.width);
+				out.writeInt(options.imageSize.height);
+				out.writeInt(options.workingSize.width);
+				out.writeInt(options.workingSize.height);
+				out.writeInt(options.numImagesProvided);
+				out.writeInt(options.bitDepth);
+				out.writeDouble(options.entropy);
+				out.writeDouble(STACKMIN);
+				out.writeDouble(qPercent);
+				CidreIO.writeDoubles(out, Q);
+				out.writeInt(S_C);
+				out.writeInt(S_R);
+				out.writeInt(S.size());
+				for (int z = 0; z < S.size(); z++)
+					for (int c = 0; c < S_C; c++)
+						for (int r = 0; r < S_R; r++)
+							out.writeDouble(S.get(z)[c][r]);
+				out.close();
+				out = null;
+				Files.move(tmpFile.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				IJ.log(" Warning: could not write the stack cache (" + e.getMessage() + ")");
+			} finally {
+				CidreIO.closeQuietly(out);
+			}
+		}
+
+		// restores the preprocessed stack if the cache was written for the same 
+		// source images and preprocessing settings
+		private boolean readStackCache(CidreOptions options, String fingerprint)
+		{
+			String fileName = options.folderDestination + STACK_CACHE_FILE;
+			if (!new File(fileName).exists())
+				return false;
+
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+				if (in.readInt() != STACK_CACHE_MAGIC || in.readInt() != STACK_CACHE_VERSION)
+					throw new IOException("unknown file format");
+				if (!in.readUTF().equals(fingerprint)) {
+					IJ.log(" The source images changed since the stack cache was written, reading them again");
+					return false;
+				}
+				Dimension imageSize = new Dimension(in.readInt(), in.readInt());
+				Dimension workingSize = new Dimension(in.readInt(), in.readInt());
+				int numImagesProvided = in.readInt();
+				int bitDepth = in.readInt();
+				double entropy = in.readDouble();
+				double stackMin = in.readDouble();
+				double qPercent = in.readDouble();
+				double[] q = CidreIO.readDoubles(in);
+				int C = in.readInt();
+				int R = in.readInt();
+				int Z = in.readInt();
+				List<double[][]> stack = new ArrayList<double[][]>();
+				for (int z = 0; z < Z; z++) {
+					double[][] doubleArray = new double[C][R];
+					for (int c = 0; c < C; c++)
+						for (int r = 0; r < R; r++)
+							doubleArray[c][r] = in.readDouble();
+					stack.add(doubleArray);
+				}
+
+				S = stack;
+				S_C = C;
+				S_R = R;
+				STACKMIN = stackMin;
+				cachedQ = q;
+				cachedQPercent = qPercent;
+				options.imageSize = imageSize;
+				options.workingSize = workingSize;
+				options.numImagesProvided = numImagesProvided;
+				options.bitDepth = bitDepth;
+				options.entropy = entropy;
+				return true;
+			} catch (IOException e) {
+				IJ.log(" Warning: could not read the stack cache (" + e.getMessage() + ")");
+				return false;
+			} finally {
+				CidreIO.closeQuietly(in);
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Accuracy against speed of the modes of the engine on a synthetic dataset of
+// CidreSynthetic. Every mode runs the whole pipeline on the images, loading, 
+// optimization and correction, into a subfolder of the work folder named 
+// after the mode, and its model is compared to the ground truth. The modes 
+// are listed in a file, one per line:
+//
+//   name[;option=value...]
+//
+// with the options of the batch manifest (see CidreBatch). The models of the
+// modes are always built, the model and the stack caches are not used, and 
+// the full-size surfaces are kept unless full_size_model=false is given. All
+// the modes run one after the other in the same process, so the first one 
+// also pays for warming up the JIT; list a mode twice to see by how much.
+public class CidreHarness
+{
+	public static final String REPORT_FILE = "cidre_harness_report.csv";
+
+	// the modes compared when no file is given
+	private static final String[] DEFAULT_MODES = {
+		"default",
+		"small_model;full_size_model=false",
+		"sample;sample=true;sample_min=100",
+		"fast;max_iterations=100;quantiles=100",
+	};
+
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+
+	// reads the modes of a file, returns null if the file is invalid
+	public static List<HarnessResult> readModes(String fileName)
+	{
+		List<HarnessResult> modes = new ArrayList<HarnessResult>();
+		BufferedReader reader = null;
+		int lineNumber = 0;
+		try {
+			reader = new BufferedReader(new FileReader(fileName));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				modes.add(parseMode(line, lineNumber));
+			}
+		} catch (IOException e) {
+			IJ.log("Cannot read the modes " + fileName + " (" + e.getMessage() + ")");
+			return null;
+		} catch (IllegalArgumentException e) {
+			IJ.log("Invalid mode in line " + lineNumber + " of " + fileName + " (" + e.getMessage() + ")");
+			return null;
+		} finally {
+			CidreIO.closeQuietly(reader);
+		}
+		return modes;
+	}
+
+	public static List<HarnessResult> getDefaultModes()
+	{
+		List<HarnessResult> modes = new ArrayList<HarnessResult>();
+		for (int i = 0; i < DEFAULT_MODES.length; i++)
+			modes.add(parseMode(DEFAULT_MODES[i], i + 1));
+		return modes;
+	}
+
+	private static HarnessResult parseMode(String line, int lineNumber)
+	{
+		String[] fields = line.split(";");
+		HarnessResult mode = new HarnessResult();
+		mode.line = lineNumber;
+		mode.name = fields[0].trim();
+		if (mode.name.isEmpty() || !mode.name.matches("[A-Za-z0-9_.-]+"))
+			throw new IllegalArgumentException("invalid name of the mode " + mode.name);
+		mode.correct = true;
+		mode.options = new CidreOptions();
+		mode.options.useModelCache = false;
+		mode.options.useStackCache = false;
+
+		for (int i = 1; i < fields.length; i++) {
+			if (fields[i].trim().isEmpty())
+				continue;
+			int separator = fields[i].indexOf('=');
+			if (separator < 0)
+				throw new IllegalArgumentException("option=value expected instead of " + fields[i].trim());
+			CidreBatch.parseOption(mode, fields[i].substring(0, separator).trim(), fields[i].substring(separator + 1).trim());
+		}
+		return mode;
+	}
+
+	// runs the modes on the images of the dataset folder, which has the ground
+	// truth in its CidreSynthetic.TRUTH_FOLDER, and writes the report to the
+	// work folder. A failing mode is recorded in its result and does not stop 
+	// the others. Returns null if the ground truth cannot be read.
+	public List<HarnessResult> run(String datasetFolder, String workFolder, List<HarnessResult> modes)
+	{
+		CidreEngine engine = new CidreEngine();
+		CidreModel truth = engine.loadModel(datasetFolder + CidreSynthetic.TRUTH_FOLDER + File.separator, true);
+		if (truth == null) {
+			IJ.error("CIDRE:harness", "Cannot read the ground truth of " + datasetFolder);
+			return null;
+		}
+		IJ.log(String.format("Harness of %d modes on %s, non-uniformity without correction %.4f", 
+				modes.size(), datasetFolder, getNonUniformity(truth, null, null)));
+
+		for (HarnessResult mode : modes) {
+			mode.options.folderSource = datasetFolder;
+			mode.options.fileFilterSource = "synthetic_*.tif";
+			mode.options.folderDestination = workFolder + mode.name + File.separator;
+			mode.options.numThreads = numThreads;
+			new File(mode.options.folderDestination).mkdirs();
+			runMode(mode, truth);
+		}
+
+		writeReport(workFolder + REPORT_FILE, modes);
+		IJ.log(" The harness report was written to " + workFolder + REPORT_FILE);
+		return modes;
+	}
+
+	private void runMode(HarnessResult mode, CidreModel truth)
+	{
+		IJ.log("Mode " + mode.name);
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pools.add(pool);
+
+		// the peaks of the previous modes must not count
+		System.gc();
+		for (MemoryPoolMXBean pool : pools)
+			pool.resetPeakUsage();
+
+		try {
+			CidreEngine engine = new CidreEngine();
+			long t1 = System.currentTimeMillis();
+			mode.model = engine.buildModel(mode.options);
+			mode.secondsBuild = (System.currentTimeMillis() - t1) / 1000.0;
+			if (mode.model == null) {
+				mode.error = "cannot load the images";
+				return;
+			}
+			if (mode.correct) {
+				long t2 = System.currentTimeMillis();
+				engine.correctImages(mode.model, mode.options);
+				mode.secondsCorrect = (System.currentTimeMillis() - t2) / 1000.0;
+			}
+		} catch (RuntimeException e) {
+			mode.error = e.toString();
+			return;
+		} finally {
+			for (MemoryPoolMXBean pool : pools)
+				mode.peakHeapBytes += pool.getPeakUsage().getUsed();
+		}
+
+		double[] v = mode.model.v;
+		double[] z = mode.model.z;
+		if (v == null) {
+			SurfaceUpsampler upsampler = new SurfaceUpsampler(mode.model.imageSize_small.width, mode.model.imageSize_small.height, 
+					truth.imageSize.width, truth.imageSize.height);
+			v = upsampler.upsample(mode.model.v_small);
+			z = upsampler.upsample(mode.model.z_small);
+		}
+		double meanV = mean(v);
+		double meanTrueV = mean(truth.v);
+		double sumV = 0;
+		double sumZ = 0;
+		for (int i = 0; i < v.length; i++) {
+			double dv = v[i] / meanV - truth.v[i] / meanTrueV;
+			double dz = z[i] - truth.z[i];
+			sumV += dv * dv;
+			sumZ += dz * dz;
+		}
+		mode.vError = Math.sqrt(sumV / v.length);
+		mode.zError = Math.sqrt(sumZ / v.length);
+		mode.nonUniformity = getNonUniformity(truth, v, z);
+		IJ.log(String.format(" v error %.4f, z error %.2f, non-uniformity %.4f, %.1fs", mode.vError, mode.zError, mode.nonUniformity, mode.secondsBuild + mode.secondsCorrect));
+	}
+
+	// the coefficient of variation of a uniform scene, at half the maximum 
+	// intensity of the dataset, after the zero-light preserving correction with
+	// v and z. Without v the scene is not corrected.
+	private static double getNonUniformity(CidreModel truth, double[] v, double[] z)
+	{
+		int n = truth.v.length;
+		double q = (Math.pow(2, truth.bitDepth) - 1) / 2.0 / mean(truth.v);
+		double meanV = (v != null) ? mean(v) : 0;
+		double meanZ = (z != null) ? mean(z) : 0;
+		double sum = 0;
+		double sum2 = 0;
+		for (int i = 0; i < n; i++) {
+			double I = truth.v[i] * q + truth.z[i];
+			if (v != null)
+				I = (I - z[i]) / v[i] * meanV + meanZ;
+			sum += I;
+			sum2 += I * I;
+		}
+		double mean = sum / n;
+		return Math.sqrt(Math.max(0, sum2 / n - mean * mean)) / mean;
+	}
+
+	private static double mean(double[] a)
+	{
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i];
+		return sum / a.length;
+	}
+
+	private static void writeReport(String fileName, List<HarnessResult> modes)
+	{
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(new File(fileName)));
+			writer.write("mode,images,seconds_build,seconds_correct,peak_heap_mb,v_error,z_error,non_uniformity,error\n");
+			for (HarnessResult mode : modes) {
+				if (mode.model != null && mode.error == null)
+					writer.write(String.format(Locale.ROOT, "%s,%d,%f,%f,%.1f,%g,%g,%g,\n", mode.name, mode.model.numImages, 
+							mode.secondsBuild, mode.secondsCorrect, mode.peakHeapBytes / 1048576.0, mode.vError, mode.zError, mode.nonUniformity));
+				else
+					writer.write(String.format(Locale.ROOT, "%s,,,,%.1f,,,,\"%s\"\n", mode.name, mode.peakHeapBytes / 1048576.0, 
+							mode.error != null ? mode.error.replace("\"", "'") : ""));
+			}
+		} catch (IOException e) {
+			IJ.log("Cannot write the harness report " + fileName + " (" + e.getMessage() + ")");
+		} finally {
+			CidreIO.closeQuietly(writer);
+		}
+	}
+}
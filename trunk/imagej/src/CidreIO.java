@@ -0,0 +1,71 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// helpers for the binary files written by the plugin
+public class CidreIO
+{
+	public static void writeDoubles(DataOutputStream out, double[] array) throws IOException
+	{
+		out.writeInt(array.length);
+		for (int i = 0; i < array.length; i++)
+			out.writeDouble(array[i]);
+	}
+
+	public static double[] readDoubles(DataInputStream in) throws IOException
+	{
+		double[] array = new double[in.readInt()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = in.readDouble();
+		return array;
+	}
+
+	// the SHA-1 digest of the text as a hexadecimal string, the keys of the 
+	// cache files
+	public static String sha1(String text)
+	{
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < digest.length; i++)
+				result.append(String.format("%02x", digest[i]));
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// closes in a finally block, a failing close is only logged
+	public static void closeQuietly(Closeable closeable)
+	{
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				IJ.log(" Warning: could not close a file (" + e.getMessage() + ")");
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// The durations of the phases of the builds and the corrections of the 
+// process and their counters, for monitoring long-running jobs. The engine, 
+// the optimization and the corrector record into the default instance. The 
+// durations are wall-clock seconds summed over the builds running at the same
+// time, the decoding and resizing of the images over the threads reading 
+// them. Listeners are told when a phase of a build or a correction ends, on 
+// the thread that ran it, and register() publishes the metrics as the MBean 
+// cidre:type=Metrics.
+public class CidreMetrics implements CidreMetricsMBean
+{
+	public static final String OBJECT_NAME = "cidre:type=Metrics";
+
+	// the phases, in the order they run
+	public static final String LOAD = "load";			// reading the source images of a build
+	public static final String DECODE = "decode";		// opening a single image, part of load
+	public static final String RESIZE = "resize";		// resizing a single image to the working size, part of load
+	public static final String ENTROPY = "entropy";
+	public static final String SCALE_SPACE = "scale_space";
+	public static final String SORT = "sort";			// sorting and compressing the stack
+	public static final String ESTIMATE_Q = "estimate_q";
+	public static final String LS = "LS";				// the phases of the optimization
+	public static final String CAUCHY = "CAUCHY";
+	public static final String CORRECTION = "correction";
+	public static final String[] PHASES = { LOAD, DECODE, RESIZE, ENTROPY, SCALE_SPACE, SORT, ESTIMATE_Q, LS, CAUCHY, CORRECTION };
+
+	public interface Listener
+	{
+		void phaseFinished(String phase, double seconds, CidreMetrics metrics);
+	}
+
+	private static final CidreMetrics DEFAULT = new CidreMetrics();
+
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES.length);
+	private final AtomicLong optimizations = new AtomicLong();
+	private final AtomicLong objectiveEvaluations = new AtomicLong();
+	private final AtomicLong lineSearchEvaluations = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong imagesRead = new AtomicLong();
+	private final AtomicLong imagesCorrected = new AtomicLong();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private boolean registered;
+
+	public static CidreMetrics getDefault()
+	{
+		return DEFAULT;
+	}
+
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	// registers the metrics with the platform MBean server, once
+	public synchronized void register() throws JMException
+	{
+		if (registered)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(this, name);
+		registered = true;
+	}
+
+	// a phase that started at startNanos (System.nanoTime) ended now, the 
+	// listeners are told
+	public void phaseFinished(String phase, long startNanos)
+	{
+		long nanos = System.nanoTime() - startNanos;
+		phaseNanos.addAndGet(indexOf(phase), nanos);
+		if (phase.equals(CAUCHY))
+			optimizations.incrementAndGet();
+		for (Listener listener : listeners)
+			listener.phaseFinished(phase, nanos / 1e9, this);
+	}
+
+	// the same for the phases of every single image, without telling the
+	// listeners
+	public void record(String phase, long startNanos)
+	{
+		phaseNanos.addAndGet(indexOf(phase), System.nanoTime() - startNanos);
+	}
+
+	public void addObjectiveEvaluations(int n)
+	{
+		objectiveEvaluations.addAndGet(n);
+	}
+
+	public void addLineSearchEvaluations(int n)
+	{
+		lineSearchEvaluations.addAndGet(n);
+	}
+
+	public void imageRead(long bytes)
+	{
+		imagesRead.incrementAndGet();
+		bytesRead.addAndGet(bytes);
+	}
+
+	public void imageCorrected()
+	{
+		imagesCorrected.incrementAndGet();
+	}
+
+	public double getSeconds(String phase)
+	{
+		return phaseNanos.get(indexOf(phase)) / 1e9;
+	}
+
+	private static int indexOf(String phase)
+	{
+		for (int i = 0; i < PHASES.length; i++)
+			if (PHASES[i].equals(phase))
+				return i;
+		throw new IllegalArgumentException("Unknown phase " + phase);
+	}
+
+	@Override public double getLoadSeconds() { return getSeconds(LOAD); }
+	@Override public double getDecodeSeconds() { return getSeconds(DECODE); }
+	@Override public double getResizeSeconds() { return getSeconds(RESIZE); }
+	@Override public double getEntropySeconds() { return getSeconds(ENTROPY); }
+	@Override public double getScaleSpaceSeconds() { return getSeconds(SCALE_SPACE); }
+	@Override public double getSortSeconds() { return getSeconds(SORT); }
+	@Override public double getEstimateQSeconds() { return getSeconds(ESTIMATE_Q); }
+	@Override public double getLsSeconds() { return getSeconds(LS); }
+	@Override public double getCauchySeconds() { return getSeconds(CAUCHY); }
+	@Override public double getCorrectionSeconds() { return getSeconds(CORRECTION); }
+
+	// every optimization ends with the CAUCHY phase
+	@Override public long getOptimizations() { return optimizations.get(); }
+	@Override public long getObjectiveEvaluations() { return objectiveEvaluations.get(); }
+	@Override public long getLineSearchEvaluations() { return lineSearchEvaluations.get(); }
+	@Override public long getBytesRead() { return bytesRead.get(); }
+	@Override public long getImagesRead() { return imagesRead.get(); }
+	@Override public long getImagesCorrected() { return imagesCorrected.get(); }
+
+	// the throughput of the loading and the correction phases
+	@Override public double getImagesReadPerSecond()
+	{
+		double seconds = getSeconds(LOAD);
+		return (seconds > 0) ? imagesRead.get() / seconds : 0;
+	}
+
+	@Override public double getImagesCorrectedPerSecond()
+	{
+		double seconds = getSeconds(CORRECTION);
+		return (seconds > 0) ? imagesCorrected.get() / seconds : 0;
+	}
+
+	@Override public void reset()
+	{
+		for (int i = 0; i < PHASES.length; i++)
+			phaseNanos.set(i, 0);
+		optimizations.set(0);
+		objectiveEvaluations.set(0);
+		lineSearchEvaluations.set(0);
+		bytesRead.set(0);
+		imagesRead.set(0);
+		imagesCorrected.set(0);
+	}
+}
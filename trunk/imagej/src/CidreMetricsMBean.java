@@ -0,0 +1,40 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+// the attributes of CidreMetrics in JMX, the seconds are summed over all the
+// builds and corrections since the start or the last reset
+public interface CidreMetricsMBean
+{
+	double getLoadSeconds();
+	double getDecodeSeconds();
+	double getResizeSeconds();
+	double getEntropySeconds();
+	double getScaleSpaceSeconds();
+	double getSortSeconds();
+	double getEstimateQSeconds();
+	double getLsSeconds();
+	double getCauchySeconds();
+	double getCorrectionSeconds();
+
+	long getOptimizations();		// of the builds and the configurations of sweeps
+	long getObjectiveEvaluations();
+	long getLineSearchEvaluations();
+	long getBytesRead();
+	long getImagesRead();
+	long getImagesCorrected();
+	double getImagesReadPerSecond();
+	double getImagesCorrectedPerSecond();
+
+	void reset();
+}
@@ -1,25 +1,41 @@
-// From the CIDRE project, an illumination correction method for optical
-// microscopy (https://github.com/smithk/cidre).
-// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
-// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
-// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
-// Switzerland. All rights reserved.
-//
-// CIDRE is free software; you can redistribute it and/or modify it 
-// under the terms of the GNU General Public License version 2 (or higher) 
-// as published by the Free Software Foundation. See the license file in
-// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
-// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
-// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
-
-import java.awt.Dimension;
-
-public class CidreModel {	
-	public Dimension imageSize;
-	public double[] v;
-	public double[] z;
-	
-	public Dimension imageSize_small;
-	public double[] v_small;
-	public double[] z_small;
-}
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CidreModel {	
+	// the surfaces of the image size are row-major (index y*width+x) like the
+	// pixels of the images, the small surfaces of the optimization are 
+	// column-major (index x*height+y). v and z are null if the model only keeps
+	// the small surfaces.
+	public Dimension imageSize;
+	public double[] v;
+	public double[] z;
+	
+	public Dimension imageSize_small;
+	public double[] v_small;
+	public double[] z_small;
+
+	// the parameters the model was built with
+	public double lambdaVreg;
+	public double lambdaZero;
+	public double qPercent;
+	public double[] zLimits = new double[2];
+	public int numImages;
+	public int bitDepth;
+
+	public List<ConvergenceInfo> convergence = new ArrayList<ConvergenceInfo>();
+}
@@ -0,0 +1,172 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// The binary model file, cidre_model.bin. A fixed little-endian header with 
+// the sizes and the parameters of the model is followed by the float64 
+// little-endian surfaces v_small and z_small (column-major) and, if the model
+// has them, v and z of the image size (row-major). Every surface starts at a
+// multiple of 8 bytes. The surfaces are mapped a chunk at a time and copied 
+// into the arrays of the model, each process keeps its own copy.
+//
+//   0  magic "CDRM", version, header size, flags (1: v and z of the image size)
+//  16  width, height, small width, small height
+//  32  lambda_v, lambda_z, q_percent, z_min, z_max
+//  72  number of images, bit depth
+//  80  reserved up to the header size
+public class CidreModelFile
+{
+	public static final String FILE_NAME = "cidre_model.bin";
+
+	private static final int MAGIC = 0x4D524443;	// "CDRM" in little-endian
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 128;
+	private static final int FLAG_FULL_SIZE = 1;
+	private static final int CHUNK_DOUBLES = 1 << 20;	// doubles written or mapped at a time
+	private static final int MAX_SURFACE_LENGTH = Integer.MAX_VALUE - 8;	// the largest array most VMs allocate
+
+	public static void write(CidreModel model, String fileName) throws IOException
+	{
+		boolean fullSize = (model.v != null);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(fullSize ? FLAG_FULL_SIZE : 0);
+		header.putInt(model.imageSize.width).putInt(model.imageSize.height);
+		header.putInt(model.imageSize_small.width).putInt(model.imageSize_small.height);
+		header.putDouble(model.lambdaVreg).putDouble(model.lambdaZero).putDouble(model.qPercent);
+		header.putDouble(model.zLimits[0]).putDouble(model.zLimits[1]);
+		header.putInt(model.numImages).putInt(model.bitDepth);
+		header.position(HEADER_SIZE);
+		header.flip();
+
+		// written to a temporary file first, a reader never sees half a model
+		File file = new File(fileName);
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			FileOutputStream stream = new FileOutputStream(tmpFile);
+			try {
+				FileChannel channel = stream.getChannel();
+				write(channel, header);
+				writeSurface(channel, model.v_small);
+				writeSurface(channel, model.z_small);
+				if (fullSize) {
+					writeSurface(channel, model.v);
+					writeSurface(channel, model.z);
+				}
+			} finally {
+				stream.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmpFile.delete();	// left over only if the model could not be written
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void writeSurface(FileChannel channel, double[] surface) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(8 * Math.min(CHUNK_DOUBLES, surface.length)).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < surface.length; i += CHUNK_DOUBLES) {
+			int n = Math.min(CHUNK_DOUBLES, surface.length - i);
+			buffer.clear();
+			buffer.asDoubleBuffer().put(surface, i, n);
+			buffer.limit(8 * n);
+			write(channel, buffer);
+		}
+	}
+
+	// reads a model file, the surfaces of the image size only if fullSize is set
+	public static CidreModel read(String fileName, boolean fullSize) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("Not a CIDRE model file");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC)
+				throw new IOException("Not a CIDRE model file");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported version " + version + " of the model file");
+			int headerSize = header.getInt();
+			int flags = header.getInt();
+
+			CidreModel model = new CidreModel();
+			model.imageSize = new Dimension(header.getInt(), header.getInt());
+			model.imageSize_small = new Dimension(header.getInt(), header.getInt());
+			model.lambdaVreg = header.getDouble();
+			model.lambdaZero = header.getDouble();
+			model.qPercent = header.getDouble();
+			model.zLimits[0] = header.getDouble();
+			model.zLimits[1] = header.getDouble();
+			model.numImages = header.getInt();
+			model.bitDepth = header.getInt();
+
+			long smallLength = (long)model.imageSize_small.width * model.imageSize_small.height;
+			long length = (long)model.imageSize.width * model.imageSize.height;
+			if (model.imageSize.width < 0 || model.imageSize.height < 0 || model.imageSize_small.width < 0 || model.imageSize_small.height < 0)
+				throw new IOException("Not a CIDRE model file");
+			// the surfaces are read into arrays, indexed by int
+			if (Math.max(smallLength, length) > MAX_SURFACE_LENGTH)
+				throw new IOException(String.format("The %dx%d surfaces of the model file are too large for an array", model.imageSize.width, model.imageSize.height));
+			long expectedSize = headerSize + 8 * (2 * smallLength + (((flags & FLAG_FULL_SIZE) != 0) ? 2 * length : 0));
+			if (channel.size() != expectedSize)
+				throw new IOException("The model file has " + channel.size() + " bytes instead of " + expectedSize);
+
+			long position = headerSize;
+			model.v_small = readSurface(channel, position, (int)smallLength);
+			position += 8 * smallLength;
+			model.z_small = readSurface(channel, position, (int)smallLength);
+			position += 8 * smallLength;
+			if (fullSize && (flags & FLAG_FULL_SIZE) != 0) {
+				model.v = readSurface(channel, position, (int)length);
+				position += 8 * length;
+				model.z = readSurface(channel, position, (int)length);
+			}
+			return model;
+		} finally {
+			file.close();
+		}
+	}
+
+	// the surfaces are mapped a chunk at a time, a mapping is limited to 2 GB
+	private static double[] readSurface(FileChannel channel, long position, int length) throws IOException
+	{
+		double[] surface = new double[length];
+		for (int i = 0; i < length; i += CHUNK_DOUBLES) {
+			int n = Math.min(CHUNK_DOUBLES, length - i);
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position + 8L * i, 8L * n);
+			DoubleBuffer doubles = mapped.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			doubles.get(surface, i, n);
+		}
+		return surface;
+	}
+}
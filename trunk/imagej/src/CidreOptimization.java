@@ -0,0 +1,1786 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// The optimization of the correction model for one set of parameters. All the 
+// state of cdr_objective and minFunc is kept here, so several optimizations of
+// the same pivoted stack can run concurrently.
+public class CidreOptimization
+{
+	private enum Mestimator { LS, CAUCHY };
+
+	private static final int OPTIMIZER_CHECKPOINT_MAGIC = 0x4344524f;	// "CDRO"
+	private static final int CHECKPOINT_VERSION = 1;
+
+	// the pivoted stack, shared by all the optimizations of the same data
+	private final double[] S;			// S[(c * S_R + r) * Z + z]
+	private final int S_C;	// WIDTH
+	private final int S_R;	// HEIGHT
+	private final int Z;
+	private final double[] PivotShiftY;	// shift on the q axis into the pivot space 
+
+	private final double[] Q;			// Q in the pivot space
+
+	// cdr_cidreModel and cdr_objective shared objects
+	private double CAUCHY_W;		// width of the Cauchy function used for robust regression 
+	private double PivotShiftX;		// shift on the Q axis into the pivot space 
+	private int ITER;				// iteration count for the optimization
+	private Mestimator MESTIMATOR;	// specifies "CAUCHY" or "LS" (least squares) 
+	private int TERMSFLAG;			// flag specifing which terms to include in the energy function 
+	private double LAMBDA_VREG;		// coefficient for the v regularization 
+	private double LAMBDA_ZERO;		// coefficient for the zero-light term
+	private double ZMIN;			// minimum possible value for Z
+	private double ZMAX;			// maximum possible value for Z
+	private double[][][] LoGKernels;	// LoG kernels of the v regularization, built for the working size
+	private double[] X_LS;			// the solution of the last LS phase
+
+	private ExecutorService objectivePool;	// evaluates the objective in parallel, null for a single thread
+	private int objectiveThreads = 1;
+	private boolean logIterations = true;	// log the progress of the iterations
+	private static final long LOG_INTERVAL = 1000;	// milliseconds between the progress lines of minFunc
+	private final CidreMetrics metrics = CidreMetrics.getDefault();
+
+	// lambdaVreg and lambdaZero are the exponents of the coefficients, Q is the
+	// estimated intensity distribution of the unpivoted stack
+	public CidreOptimization(PivotedStack stack, double[] Q, double lambdaVreg, double lambdaZero, double zmin, double zmax)
+	{
+		this.S = stack.S;
+		this.S_C = stack.C;
+		this.S_R = stack.R;
+		this.Z = stack.Z;
+		this.PivotShiftY = stack.PivotShiftY;
+
+		// Transform Q to the pivot space, the same shift of the origin to the
+		// median datum that was applied to the stack
+		int mid_ind = (Z - 1) / 2;
+		PivotShiftX = Q[mid_ind];
+
+		this.Q = new double[Q.length];
+		for (int i = 0; i < Q.length; i++)
+			this.Q[i] = Q[i] - PivotShiftX;
+
+		LAMBDA_VREG = Math.pow(10, lambdaVreg);
+		LAMBDA_ZERO = Math.pow(10, lambdaZero);
+		ZMIN = zmin;
+		ZMAX = zmax;
+	}
+
+	// Transform S (which contains q) to the pivot space. The pivot space is just
+	// a shift of the origin to the median datum. The pivoted stack does not 
+	// depend on the optimization parameters, the stack S itself is left unchanged.
+	public static PivotedStack pivotStack(List<double[][]> S, int S_C, int S_R)
+	{
+		int Z = S.size();
+		int mid_ind = (Z - 1) / 2;
+
+		PivotedStack stack = new PivotedStack();
+		stack.C = S_C;
+		stack.R = S_R;
+		stack.Z = Z;
+
+		// the shift for each location q
+		double[][] doubleArray;
+		stack.PivotShiftY = new double[S_C * S_R];
+		doubleArray = S.get(mid_ind);
+		for (int x = 0; x < S_C; x++)
+			for (int y = 0; y < S_R; y++)
+				stack.PivotShiftY[x * S_R + y] = doubleArray[x][y];		
+
+		// the intensities of each location are stored together, in the order
+		// they are read by the fitting term
+		stack.S = new double[S_C * S_R * Z];
+		for (int z = 0; z < Z; z++) {
+			doubleArray = S.get(z);
+			for (int c = 0; c < S_C; c++) {
+				for (int r = 0; r < S_R; r++) {
+					stack.S[(c * S_R + r) * Z + z] = doubleArray[c][r] - stack.PivotShiftY[c * S_R + r];
+				}
+			}
+		}
+		return stack;
+	}
+
+	// the objective is evaluated on the given pool, null evaluates it in the
+	// calling thread
+	public void setObjectivePool(ExecutorService pool, int threads)
+	{
+		objectivePool = pool;
+		objectiveThreads = Math.max(1, threads);
+	}
+
+	public void setLogIterations(boolean logIterations)
+	{
+		this.logIterations = logIterations;
+	}
+
+	// the initial guess x0 = [v0(:); b0(:); zx0; zy0] with a flat v and no offset
+	public double[] getInitialGuess(double zx0, double zy0)
+	{
+		// initial guesses for the correction surfaces
+		double[] v0 = new double[S_C * S_R];
+		double[] b0 = new double[S_C * S_R];
+		for (int c = 0; c < S_C; c++) {
+				for (int r = 0; r < S_R; r++) {
+					v0[c * S_R + r] = 1.0;
+					b0[c * S_R + r] = 0.0;
+				}
+		}
+
+		// also, account for the pivot shift in b0
+		//b0 = b0 + PivotShiftX*v0 - PivotShiftY;
+		for (int c = 0; c < S_C; c++)
+			for (int r = 0; r < S_R; r++)
+				b0[c * S_R + r] = b0[c * S_R + r] + PivotShiftX * v0[c * S_R + r] - PivotShiftY[c * S_R + r];
+
+		// vector containing initial values of the variables we want to estimate
+		//x0 = [v0(:); b0(:); zx0; zy0];
+		double[] x0 = new double[2 * S_C * S_R + 2];
+		
+		int pX = 0;
+		for (int i = 0; i < v0.length; i++)
+			x0[pX++] = v0[i];
+		for (int i = 0; i < b0.length; i++)
+			x0[pX++] = b0[i];
+		x0[pX++] = zx0;
+		x0[pX++] = zy0;		
+		return x0;
+	}
+
+	// x = [v; b; zx; zy] from the model surfaces u = [v; z; zx; zy] of the 
+	// working size, the inverse of unpivotSolution. A solution of other data
+	// becomes a warm start on this stack.
+	public double[] pivotSolution(double[] u)
+	{
+		int N = S_C * S_R;
+		double zx = u[2 * N];
+		double[] x = u.clone();
+		for (int i = 0; i < N; i++)
+			x[N + i] = u[N + i] - zx * u[i] - PivotShiftY[i] + PivotShiftX * u[i];
+		return x;
+	}
+
+	// the model surfaces u = [v; z; zx; zy] of the optimized x = [v; b; zx; zy]
+	public double[] unpivotSolution(double[] x)
+	{
+		int N = S_C * S_R;
+		double zx = x[2 * N];
+		double[] u = x.clone();
+		for (int i = 0; i < N; i++)
+			u[N + i] = PivotShiftY[i] + x[N + i] - PivotShiftX * x[i] + zx * x[i];
+		return u;
+	}
+
+	// the solution of the LS phase of the last optimize, null if the phase was
+	// restored from a checkpoint
+	public double[] getLeastSquaresSolution()
+	{
+		return X_LS;
+	}
+
+	// runs the two phases of the optimization from x0, a least squares fit 
+	// followed by the regularized robust fit. A checkpoint of a previous run 
+	// continues the phase it was written in. The phases share the time budget
+	// until deadline (0 for none): the first phase may use up to half of it.
+	// Returns the optimized x = [v; b; zx; zy], b in the pivot space.
+	public double[] optimize(double[] x0, MinFuncOptions minFuncOptions, long deadline, OptimizerCheckpoint checkpoint, List<ConvergenceInfo> convergence)
+	{
+		long t1 = System.currentTimeMillis();
+		long tPhase;
+		MinFuncResult minFuncResult;
+		double[] x;
+		double[] x1;
+
+		ITER = 1;
+		MESTIMATOR = Mestimator.LS;
+		TERMSFLAG = 0;
+		X_LS = null;
+
+		if (checkpoint != null && checkpoint.phase == 1) {
+			// the LS phase was completed before the checkpoint was written
+			IJ.log(" Skipping the LS phase (restored from the checkpoint)");
+			CAUCHY_W = checkpoint.CAUCHY_W;
+			x1 = (checkpoint.state != null) ? checkpoint.state.x : checkpoint.x;
+		} else {
+			if (checkpoint != null) {
+				IJ.log(String.format(" Resuming the LS phase from iteration %d", checkpoint.state.iteration));
+				ITER = checkpoint.ITER;
+				x0 = checkpoint.state.x;
+			}
+			minFuncOptions.deadline = (deadline > 0) ? t1 + (deadline - t1) / 2 : 0;
+			tPhase = System.currentTimeMillis();
+			long tLS = System.nanoTime();
+			minFuncResult = minFunc(x0, minFuncOptions, (checkpoint != null) ? checkpoint.state : null);		
+			convergence.add(getConvergenceInfo("LS", minFuncResult, tPhase));
+			metrics.phaseFinished(CidreMetrics.LS, tLS);
+			x = minFuncResult.x;
+
+			// unpack
+			double[] v1 = Arrays.copyOfRange(x, 0, S_C * S_R);
+			double[] b1 = Arrays.copyOfRange(x, S_C * S_R, 2*S_C * S_R);
+			double zx1 = x[2 * S_C * S_R];
+			double zy1 = x[2 * S_C * S_R + 1];
+		
+			// 2nd optimization using REGULARIZED ROBUST fitting
+			// use the mean standard error of the LS fitting to set the width of the
+			// CAUCHY function
+			double mse = computeStandardError(v1, b1);
+			CAUCHY_W = mse;
+
+			// vector containing initial values of the variables we want to estimate
+			x1 = new double[2 * S_C * S_R + 2];
+		
+			int pX1 = 0;
+			for (int i = 0; i < v1.length; i++)
+				x1[pX1++] = v1[i];
+			for (int i = 0; i < b1.length; i++)
+				x1[pX1++] = b1[i];
+			x1[pX1++] = zx1;
+			x1[pX1++] = zy1;		
+			X_LS = x1;
+		}
+
+		// assign the remaining global variables needed in cdr_objective
+		ITER = 1;
+		MESTIMATOR = Mestimator.CAUCHY;
+		TERMSFLAG = 1;                          
+
+		MinFuncState resumeState = null;
+		if (checkpoint != null && checkpoint.phase == 1 && checkpoint.state != null) {
+			IJ.log(String.format(" Resuming the CAUCHY phase from iteration %d", checkpoint.state.iteration));
+			ITER = checkpoint.ITER;
+			resumeState = checkpoint.state;
+		} else if (minFuncOptions.checkpointFile != null) {
+			// the start of the 2nd phase is saved, so the LS phase is not repeated
+			writeOptimizerCheckpoint(minFuncOptions.checkpointFile, x1, null);
+		}
+
+		minFuncOptions.deadline = deadline;
+		tPhase = System.currentTimeMillis();
+		long tCauchy = System.nanoTime();
+		minFuncResult = minFunc(x1, minFuncOptions, resumeState);		
+		convergence.add(getConvergenceInfo("CAUCHY", minFuncResult, tPhase));
+		metrics.phaseFinished(CidreMetrics.CAUCHY, tCauchy);
+		return minFuncResult.x;
+	}
+
+	// builds the correction surfaces of the working size from the optimized x
+	public CidreModel getModel(double[] x)
+	{
+		// unpack the optimized v surface, b surface, xc, and yc from the vector x
+		double[] v = Arrays.copyOfRange(x, 0, S_C * S_R);
+		double[] b_pivoted = Arrays.copyOfRange(x, S_C * S_R, 2*S_C * S_R);
+		double zx = x[2 * S_C * S_R];
+
+		// Unpivot b: move pivot point back to the original location
+		double[] b_unpivoted = new double[S_C * S_R];
+		for (int c = 0; c < S_C; c++)
+			for (int r = 0; r < S_R; r++)
+				b_unpivoted[c * S_R + r] = PivotShiftY[c * S_R + r] + b_pivoted[c * S_R + r] - PivotShiftX * v[c * S_R + r];
+
+		// shift the b surface to the zero-light surface
+		double[] z = new double[S_C * S_R];
+		for (int c = 0; c < S_C; c++)
+			for (int r = 0; r < S_R; r++)
+				z[c * S_R + r] = b_unpivoted[c * S_R + r] + zx * v[c * S_R + r];
+
+		CidreModel model = new CidreModel();
+		model.imageSize_small = new Dimension(S_C, S_R);
+		model.v_small = v;
+		model.z_small = z;
+		model.zLimits[0] = ZMIN;
+		model.zLimits[1] = ZMAX;
+		return model;
+	}
+
+	private double computeStandardError(double[] v, double[] b) {
+		// computes the mean standard error of the regression
+
+		// initialize a matrix to contain all the standard error calculations
+		double[] se = new double[S_C * S_R];
+
+		// compute the standard error at each location
+		double[] q = new double[Z];
+		double[] fitvals = new double[Z];
+		double[] residuals = new double[Z];
+		for (int c = 0; c < S_C; c++) { 
+			for (int r = 0; r < S_R; r++) {
+				
+		        double vi = v[c * S_R + r];
+		        double bi = b[c * S_R + r];
+
+		        for (int z = 0; z < Z; z++) {
+		        	q[z] = S[(c * S_R + r) * Z + z];
+		        	fitvals[z] = bi + Q[z] * vi;
+		        	residuals[z] = q[z] - fitvals[z];
+		        }
+		        double sum_residuals2 = 0;
+		        for (int z = 0; z < Z; z++) {
+		        	sum_residuals2 += residuals[z] * residuals[z];
+		        }		        
+		        se[c * S_R + r] = Math.sqrt(sum_residuals2 / (Z-2));
+			}
+		}
+		double sum = 0;
+		for (int i = 0; i < se.length; i++)
+			sum += se[i];
+		return sum / se.length;
+	}
+	
+	private double[] theBarrierFunction(double x, double xmin, double xmax, double width)
+	{
+		// the barrier function has a well shape. It has quadratically increasing
+		// energy below xmin, zero energy between xmin and xmax, and quadratically
+		// increasing energy above xmax. The rate of increase is determined by width
+
+		double[] result = new double[] {0.0, 0.0}; // E G
+		
+		double xl1 = xmin;
+		double xl2 = xl1 + width;
+
+		double xh2 = xmax;
+		double xh1 = xh2 - width;
+
+		if (x <= xl1) {
+			result[0] = ((x-xl2)/(xl2-xl1)) * ((x-xl2)/(xl2-xl1));
+			result[1] = (2*(x-xl2)) / ((xl2-xl1)*(xl2-xl1));
+		}		 
+		else if ((x >= xl1) && (x <= xl2)) {
+			result[0] = ((x-xl2)/(xl2-xl1))*((x-xl2)/(xl2-xl1));
+			result[1] = (2*(x-xl2))  / ((xl2-xl1)*(xl2-xl1));
+		}
+		else if ((x > xl2) && (x < xh1)) {
+			result[0] = 0;
+			result[1] = 0;
+		}
+		else if ((x >= xh1) && (x < xh2)) {
+			result[0] = ((x-xh1)/(xh2-xh1))*((x-xh1)/(xh2-xh1));
+			result[1] = (2*(x-xh1))  / ((xh2-xh1)*(xh2-xh1));
+		}
+		else {
+			result[0] = ((x-xh1)/(xh2-xh1))*((x-xh1)/(xh2-xh1));
+			result[1] = (2*(x-xh1))  / ((xh2-xh1)*(xh2-xh1));
+		}
+		
+		return result;
+	}
+	
+	private double[] imfilter_symmetric(double[] pixels, int width, int height, double[][] k)
+	{
+		int kc = k.length / 2;
+		double[] kernel = new double[k.length * k.length];
+
+		double[] result = new double[width*height];
+		
+		for (int i = 0; i < k.length; i++)
+			for (int j = 0; j < k.length; j++)
+				kernel[i * k.length + j] = k[i][j];
+		
+		double sum;
+		int offset, i;
+		int edgeDiff;
+		boolean edgePixel;
+		int xedge = width - kc;
+		int yedge = height - kc;
+		int nx, ny;
+		
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				sum = 0;
+				i = 0;
+				edgePixel = x < kc || x >= xedge || y < kc || y >= yedge;
+				for (int u = -kc; u <= kc; u++) {
+					offset = (x+u)*height + y;
+					for (int v = -kc; v <= kc; v++) {
+						if (edgePixel) {
+							nx = x + u;
+							ny = y + v;
+							edgeDiff = 0;
+							if (nx < 0)
+								edgeDiff = (-2*nx - 1) * height;
+							else if (nx >= width)
+								edgeDiff = (-2 * (nx - width) - 1) * height;
+								
+							if (ny < 0)
+								edgeDiff += -2*ny - 1;
+							else if (ny >= height)
+								edgeDiff += -2 * (ny - height) - 1;
+
+							sum += pixels[offset + v + edgeDiff] * kernel[i++];
+						}
+						else
+						{
+							sum += pixels[offset + v] * kernel[i++];
+						}
+					}
+				}
+				result[x * height + y] = sum;
+			}
+		}
+		
+		return result;
+	}
+	
+	public CdrObjectiveResult cdr_objective(double[] x)
+	{
+		return cdr_objective(new double[][] {x})[0];
+	}
+
+	// evaluates the objective at several points x in a single sweep over the
+	// stack S. The fitting term is split into column chunks and the remaining
+	// terms of each point are computed independently, both on the objective
+	// thread pool when one is available.
+	public CdrObjectiveResult[] cdr_objective(final double[][] xs)
+	{
+		final int K = xs.length;
+		metrics.addObjectiveEvaluations(K);
+
+		//--------------------------------------------------------------------------
+		// fitting energy
+		// We compute the energy of the fitting term given v,b,zx,zy. We also
+		// compute its gradient wrt the random variables.
+
+		final double[][] energy_fit  = new double[K][S_C * S_R];		// accumulates the fit energy
+		final double[][] deriv_v_fit = new double[K][S_C * S_R];		// derivative of fit term wrt v
+		final double[][] deriv_b_fit = new double[K][S_C * S_R];		// derivative of fit term wrt b
+
+		int numChunks = (objectivePool != null) ? Math.min(objectiveThreads, S_C) : 1;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < numChunks; i++) {
+			final int cStart = (int)((long)S_C * i / numChunks);
+			final int cEnd = (int)((long)S_C * (i + 1) / numChunks);
+			tasks.add(new Callable<Void>() {
+				@Override public Void call() {
+					cdr_objective_fit(xs, cStart, cEnd, energy_fit, deriv_v_fit, deriv_b_fit);
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+
+		// the remaining terms only depend on the point itself
+		final double[][][] h = getLoGKernels();
+		final CdrObjectiveResult[] results = new CdrObjectiveResult[K];
+		tasks.clear();
+		for (int k = 0; k < K; k++) {
+			final int kk = k;
+			tasks.add(new Callable<Void>() {
+				@Override public Void call() {
+					results[kk] = cdr_objective_terms(xs[kk], h, energy_fit[kk], deriv_v_fit[kk], deriv_b_fit[kk]);
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+
+		ITER += K;		// the progress is logged by minFunc, at most once per LOG_INTERVAL
+		return results;
+	}
+
+	private void cdr_objective_fit(double[][] xs, int cStart, int cEnd, double[][] energy_fit, double[][] deriv_v_fit, double[][] deriv_b_fit)
+	{
+		double w = CAUCHY_W;  // width of the Cauchy function
+		double[] q = new double[Z];
+
+		for (int c = cStart; c < cEnd; c++) {
+			for (int r = 0; r < S_R; r++) {
+		        // get the quantile fit for this location, shared by all the points
+		        System.arraycopy(S, (c * S_R + r) * Z, q, 0, Z);
+
+		        int I = c * S_R + r;
+		        for (int k = 0; k < xs.length; k++) {
+			        double v = xs[k][I];
+			        double b = xs[k][S_C * S_R + I];
+			        double energy = 0;
+			        double deriv_v = 0;
+			        double deriv_b = 0;
+
+			        switch (MESTIMATOR) {
+			            case LS:
+			            	for (int z = 0; z < Z; z++) {
+			            		double val = Q[z] * v + b - q[z];
+			            		energy += val * val;
+			            		deriv_v += Q[z] * val;
+			            		deriv_b += val;
+			            	}
+			                break;
+			            case CAUCHY:
+			            	for (int z = 0; z < Z; z++) {
+			            		double val = Q[z] * v + b - q[z];
+			            		energy += w*w * Math.log(1 + (val*val) / (w*w)) / 2.0;
+			            		deriv_v += (Q[z]*val) / (1.0 + (val*val) / (w*w));
+			            		deriv_b += val / (1.0 + (val*val) / (w*w));
+			            	}
+			                break;
+			        }
+			        energy_fit[k][I] = energy;
+			        deriv_v_fit[k][I] = deriv_v;
+			        deriv_b_fit[k][I] = deriv_b;
+		        }
+			}
+		}
+	}
+
+	// the LoG kernels only depend on the working size, so they are built once
+	private synchronized double[][][] getLoGKernels()
+	{
+		if (LoGKernels != null)
+			return LoGKernels;
+
+		// determine the widths we will use for the LoG filter
+		int max_exp = (int)Math.max(1.0, Math.log(Math.floor(Math.max(S_C,  S_R) / 50.0))/Math.log(2.0));
+
+		double[] sigmas = new double[max_exp + 2];
+		for (int i = -1; i <= max_exp; i++)
+			sigmas[i + 1] = Math.pow(2, i);
+
+		double[][][] h = new double[sigmas.length][][];
+		for (int i = 0; i < sigmas.length; i++)
+		{
+		    // define the kernel size, make certain dimension is odd
+		    int hsize = 6 * (int)Math.ceil(sigmas[i]);
+		    if (hsize % 2 == 0)
+		        hsize++;
+		    double std2 = sigmas[i] * sigmas[i];
+
+		    // h{n} = sigmas(n)^2 * fspecial('log', hsize, sigmas(n))
+		    h[i] = new double[hsize][hsize];
+		    double[][] h1 = new double[hsize][hsize];
+		    double sumh = 0.0;
+		    for (int c = 0; c < hsize; c++) {
+		    	for (int r = 0; r < hsize; r++) {
+		    		double arg = -1.0 * ((c-hsize/2)*(c-hsize/2) + (r-hsize/2)*(r-hsize/2)) / (2.0*std2);
+		    		h[i][c][r] = Math.exp(arg);
+		    		sumh += h[i][c][r];
+		    	}
+		    }
+		    // calculate Laplacian
+		    double sumh1 = 0.0;
+		    for (int c = 0; c < hsize; c++) {
+		    	for (int r = 0; r < hsize; r++) {
+		    		h[i][c][r] /= sumh;
+		    		h1[c][r] = h[i][c][r] * ((c-hsize/2)*(c-hsize/2) + (r-hsize/2)*(r-hsize/2) - 2 * std2) / (std2 * std2);
+		    		sumh1 += h1[c][r];
+		    	}
+		    }
+		    for (int c = 0; c < hsize; c++) {
+		    	for (int r = 0; r < hsize; r++) {
+		    		h[i][c][r] = (h1[c][r] - sumh1/(hsize*hsize)) * (sigmas[i] * sigmas[i]); // h{n} = sigmas(n)^2 * fspecial('log', hsize, sigmas(n));
+		    	}
+		    }
+		}
+		LoGKernels = h;
+		return LoGKernels;
+	}
+
+	private CdrObjectiveResult cdr_objective_terms(double[] x, double[][][] h, double[] energy_fit, double[] deriv_v_fit, double[] deriv_b_fit)
+	{
+		double E = 0.0;
+		double[] G = null;
+
+		// some basic definitions
+		int N_stan = 200;				// the standard number of quantiles used for empirical parameter setting
+		double LAMBDA_BARR = 1e6;		// the barrier term coefficient
+
+		// unpack
+		double[] v_vec = Arrays.copyOfRange(x, 0, S_C * S_R);
+		double[] b_vec = Arrays.copyOfRange(x, S_C * S_R, 2 * S_C * S_R);
+		double zx = x[2 * S_C * S_R];
+		double zy = x[2 * S_C * S_R + 1];
+
+		// move the zero-light point to the pivot space (zx,zy) -> (px,py)
+		double px = zx - PivotShiftX;		// a scalar
+		double[] py = new double[S_C * S_R];
+		int pPy = 0;
+		for (int c = 0; c < S_C; c++)
+			for (int r = 0; r < S_R; r++)
+				py[pPy++] = zy - PivotShiftY[c * S_R + r];
+
+		double E_fit = 0;
+		double[] G_V_fit = new double[S_C * S_R];
+		double[] G_B_fit = new double[S_C * S_R];
+
+		// normalize the contribution from fitting energy term by the number of data
+		// points in S (so our balancing of the energy terms is invariant)
+		int data_size_factor = N_stan/Z;
+		int I = 0;
+		for (int c = 0; c < S_C; c++) {
+			for (int r = 0; r < S_R; r++) {
+				E_fit += energy_fit[I];
+				G_V_fit[I] = deriv_v_fit[I] * data_size_factor;	// fit term derivative wrt v
+				G_B_fit[I] = deriv_b_fit[I] * data_size_factor;	// fit term derivative wrt b
+				I++;
+			}
+		}
+		E_fit *= data_size_factor;		// fit term energy
+
+		//--------------------------------------------------------------------------
+		// spatial regularization of v
+		// We compute the energy of the regularization term given v,b,zx,zy. We also
+		// compute its gradient wrt the random variables.
+
+		double[] energy_vreg = new double[h.length];			// accumulates the vreg energy
+		double[] deriv_v_vreg = new double[S_C * S_R];			// derivative of vreg term wrt v
+		double[] deriv_b_vreg = new double[S_C * S_R];			// derivative of vreg term wrt b
+
+		// apply the scale-invariant LoG filter to v for all scales in SIGMAS
+		for (int i = 0; i < h.length; i++)
+		{
+		    // apply a LoG filter to v_img to penalize disagreements between neighbors
+		    double[] v_LoG = imfilter_symmetric(v_vec, S_C, S_R, h[i]);
+		    for (int c = 0; c < v_LoG.length; c++)
+		    	v_LoG[c] /= h.length;	// normalize by the # of sigmas used
+
+		    // energy is quadratic LoG response
+		    energy_vreg[i] = 0;
+		    for (int c = 0; c < v_LoG.length; c++)
+			    energy_vreg[i] += v_LoG[c]*v_LoG[c];
+
+		    for (int c = 0; c < v_LoG.length; c++)
+			    v_LoG[c] *= 2;
+		    double[] v_LoG2 = imfilter_symmetric(v_LoG, S_C, S_R, h[i]);
+		    for (int c = 0; c < v_LoG2.length; c++)
+		    	deriv_v_vreg[c] += v_LoG2[c];
+		}
+
+		double E_vreg = 0;							// vreg term energy
+		for (int i = 0; i < h.length; i++)
+			E_vreg += energy_vreg[i];
+		double[] G_V_vreg = deriv_v_vreg;			// vreg term gradient wrt v
+		double[] G_B_vreg = deriv_b_vreg;			// vreg term gradient wrt b
+		//--------------------------------------------------------------------------
+
+		//--------------------------------------------------------------------------
+		// The ZERO-LIGHT term
+		// We compute the energy of the zero-light term given v,b,zx,zy. We also
+		// compute its gradient wrt the random variables.
+
+		double[] residual = new double[S_C * S_R];
+		for (int i = 0; i < residual.length; i++)
+			residual[i] = v_vec[i] * px + b_vec[i] - py[i];
+
+		double[] deriv_v_zero = new double[S_C * S_R];
+		double[] deriv_b_zero = new double[S_C * S_R];
+		double deriv_zx_zero = 0.0;
+		double deriv_zy_zero = 0.0;
+		for (int i = 0; i < S_C * S_R; i++) {
+			double val = b_vec[i] + v_vec[i] * px - py[i];
+			deriv_v_zero[i] = 2 * px * val;
+			deriv_b_zero[i] = 2 * val;
+			deriv_zx_zero += 2 * v_vec[i] * val;
+			deriv_zy_zero += -2 * val;
+		}
+
+		double E_zero = 0;	// zero light term energy
+		for (int i = 0; i < residual.length; i++)
+			E_zero += residual[i] * residual[i];
+
+		double[] G_V_zero = deriv_v_zero;		// zero light term gradient wrt v
+		double[] G_B_zero = deriv_b_zero;		// zero light term gradient wrt b
+		double G_ZX_zero = deriv_zx_zero;		// zero light term gradient wrt zx
+		double G_ZY_zero = deriv_zy_zero;		// zero light term gradient wrt zy
+		//--------------------------------------------------------------------------
+
+		//--------------------------------------------------------------------------
+		// The BARRIER term
+		// We compute the energy of the barrier term given v,b,zx,zy. We also
+		// compute its gradient wrt the random variables.
+
+		double Q_UPPER_LIMIT = ZMAX;	// upper limit - transition from zero energy to quadratic increase
+		double Q_LOWER_LIMIT = ZMIN;	// lower limit - transition from quadratic to zero energy
+		double Q_RATE = 0.001;			// rate of increase in energy
+
+		// barrier term gradients and energy components
+		double[] barrierResult = theBarrierFunction(zx, Q_LOWER_LIMIT, Q_UPPER_LIMIT, Q_RATE);
+		double E_barr_xc = barrierResult[0];
+		double G_ZX_barr = barrierResult[1];
+
+		barrierResult = theBarrierFunction(zy, Q_LOWER_LIMIT, Q_UPPER_LIMIT, Q_RATE);
+		double E_barr_yc = barrierResult[0];
+		double G_ZY_barr = barrierResult[1];
+
+		double E_barr = E_barr_xc + E_barr_yc;		// barrier term energy
+
+		//--------------------------------------------------------------------------
+
+		//--------------------------------------------------------------------------
+		// The total energy
+		// Find the sum of all components of the energy. TERMSFLAG switches on and
+		// off different components of the energy.
+		switch (TERMSFLAG) {
+		    case 0:
+		        E = E_fit;
+		        break;
+		    case 1:
+		        E = E_fit + LAMBDA_VREG*E_vreg + LAMBDA_ZERO*E_zero + LAMBDA_BARR*E_barr;
+		        break;
+		}
+		//--------------------------------------------------------------------------
+
+		//--------------------------------------------------------------------------
+		// The gradient of the energy
+		double[] G_V = null;
+		double[] G_B = null;
+		double G_ZX = 0;
+		double G_ZY = 0;
+
+		switch (TERMSFLAG) {
+		    case 0:
+		        G_V = G_V_fit;
+		        G_B = G_B_fit;
+		        G_ZX = 0;
+		        G_ZY = 0;
+		        break;
+		    case 1:
+		    	for (int i = 0; i < G_V_fit.length; i++) {
+		    		G_V_fit[i] = G_V_fit[i] + LAMBDA_VREG*G_V_vreg[i] + LAMBDA_ZERO*G_V_zero[i];
+		    		G_B_fit[i] = G_B_fit[i] + LAMBDA_VREG*G_B_vreg[i] + LAMBDA_ZERO*G_B_zero[i];
+		    	}
+		    	G_V = G_V_fit;
+		    	G_B = G_B_fit;
+		        G_ZX = LAMBDA_ZERO*G_ZX_zero + LAMBDA_BARR*G_ZX_barr;
+		        G_ZY = LAMBDA_ZERO*G_ZY_zero + LAMBDA_BARR*G_ZY_barr;
+		        break;
+		}
+
+		// vectorize the gradient
+		G = new double[x.length];
+
+		int pG = 0;
+		for (int i = 0; i < G_V.length; i++)
+			G[pG++] = G_V[i];
+		for (int i = 0; i < G_B.length; i++)
+			G[pG++] = G_B[i];
+		G[pG++] = G_ZX;
+		G[pG++] = G_ZY;
+
+		//--------------------------------------------------------------------------
+
+		CdrObjectiveResult result = new CdrObjectiveResult();
+		result.E = E;
+		result.G = G;
+		return result;
+	}
+
+	// runs the tasks on the objective thread pool, or in the calling thread
+	// when there is no pool
+	private void invokeAll(List<Callable<Void>> tasks)
+	{
+		try {
+			if (objectivePool == null || tasks.size() == 1) {
+				for (Callable<Void> task : tasks)
+					task.call();
+			} else {
+				for (Future<Void> future : objectivePool.invokeAll(tasks))
+					future.get();
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private double polyinterp(double[] points, Double xminBound, Double xmaxBound)
+	{
+		double xmin = Math.min(points[0], points[3]);
+		double xmax = Math.max(points[0], points[3]);
+		
+		// Compute Bounds of Interpolation Area
+		if (xminBound == null)
+		    xminBound = xmin;
+		if (xmaxBound == null)
+		    xmaxBound = xmax;		
+		
+		// Code for most common case:
+		//   - cubic interpolation of 2 points
+		//       w/ function and derivative values for both
+
+		// Solution in this case (where x2 is the farthest point):
+		// d1 = g1 + g2 - 3*(f1-f2)/(x1-x2);
+		// d2 = sqrt(d1^2 - g1*g2);
+		// minPos = x2 - (x2 - x1)*((g2 + d2 - d1)/(g2 - g1 + 2*d2));
+		// t_new = min(max(minPos,x1),x2);
+		
+		int minPos;
+		int notMinPos;
+		if (points[0] < points[3])
+		{
+			minPos = 0;
+		} else {
+			minPos = 1;
+		}
+		notMinPos = (1 - minPos) * 3;
+		double d1 = points[minPos + 2] + points[notMinPos + 2] - 3*(points[minPos + 1]-points[notMinPos + 1])/(points[minPos]-points[notMinPos]);
+		double d2_2 = d1*d1 - points[minPos+2]*points[notMinPos+2];
+		
+		if (d2_2 >= 0.0) 
+		{
+		    double d2 = Math.sqrt(d2_2);
+	        double t = points[notMinPos] - (points[notMinPos] - points[minPos])*((points[notMinPos + 2] + d2 - d1)/(points[notMinPos + 2] - points[minPos + 2] + 2*d2));
+	        return Math.min(Math.max(t, xminBound), xmaxBound);
+		} else {
+			return (xmaxBound+xminBound)/2.0;
+		}
+	}
+
+	private WolfeLineSearchResult WolfeLineSearch(double[] x, double t, double[] d, double f, double[] g, double gtd, double c1, double c2, 
+			int LS_interp, int LS_multi, int maxLS, double progTol, int saveHessianComp, int batchSize)
+	{
+		
+		
+		double[] x2 = new double[x.length];
+		for (int j = 0; j < x.length; j++)
+			x2[j] = x[j] + t * d[j];
+		CdrObjectiveResult cdrObjectiveResult = cdr_objective(x2);
+		double f_new = cdrObjectiveResult.E;
+		double[] g_new = cdrObjectiveResult.G;
+		int funEvals = 1;
+	
+		double gtd_new = 0.0;			
+		for (int j = 0; j < g.length; j++)
+			gtd_new += g_new[j] * d[j];
+		
+		// Bracket an Interval containing a point satisfying the
+		// Wolfe criteria
+
+		int LSiter = 0;
+		double t_prev = 0.0;
+		double f_prev = f;
+		double[] g_prev = new double[g.length];
+		for (int j = 0; j < g.length; j++)
+			g_prev[j] = g[j];
+		double gtd_prev = gtd;
+		double nrmD = Double.MIN_VALUE;
+		for (int j = 0; j < d.length; j++)
+		{
+			double absValD = Math.abs(d[j]);
+			if (nrmD < absValD)
+				nrmD = absValD;
+		}
+		boolean done = false;
+		
+		int bracketSize = 0;
+		double[] bracket = new double[2];
+		double[] bracketFval = new double[2];
+		double[] bracketGval = new double[2 * x.length];
+
+		// trial steps of the current bracketing round and their evaluations
+		double[] batchSteps = new double[0];
+		CdrObjectiveResult[] batchResults = null;
+		int batchIndex = 0;
+		int discardedEvals = 0;		// evaluated trial steps that were not used
+		
+		while (LSiter < maxLS)
+		{
+		    if (f_new > f + c1*t*gtd || (LSiter > 1 && f_new >= f_prev))
+		    {
+		    	bracketSize = 2;
+		    	bracket[0] = t_prev; bracket[1] = t;
+		    	bracketFval[0] = f_prev; bracketFval[1] = f_new;
+		    	for (int j = 0; j < g_prev.length; j++)
+		    		bracketGval[j] = g_prev[j];
+		    	for (int j = 0; j < g_new.length; j++)
+		    		bracketGval[g_prev.length + j] = g_new[j];		    	
+		    	break;
+		    }
+		    else if (Math.abs(gtd_new) <= -c2*gtd)
+		    {
+		    	bracketSize = 1;
+		        bracket[0] = t;
+		        bracketFval[0] = f_new;
+		    	for (int j = 0; j < g_new.length; j++)
+		    		bracketGval[j] = g_new[j];
+		        done = true;
+		        break;
+		    }
+		    else if (gtd_new >= 0)
+		    {
+		    	bracketSize = 2;
+		    	bracket[0] = t_prev; bracket[1] = t;
+		    	bracketFval[0] = f_prev; bracketFval[1] = f_new;
+		    	for (int j = 0; j < g_prev.length; j++)
+		    		bracketGval[j] = g_prev[j];
+		    	for (int j = 0; j < g_new.length; j++)
+		    		bracketGval[g_prev.length + j] = g_new[j];		    	
+		    	break;
+		    }
+	    
+		    double temp = t_prev;
+		    t_prev = t;
+		    if (batchIndex + 1 < batchSteps.length)
+		    {
+		    	// the next extrapolation step has already been evaluated
+		    	batchIndex++;
+		    	t = batchSteps[batchIndex];
+		    	funEvals++;
+		    	discardedEvals--;
+		    }
+		    else
+		    {
+			    double minStep = t + 0.01*(t-temp);
+			    double maxStep = t*10;
+			    if (LS_interp <= 1)
+			    	t = maxStep;
+			    else if (LS_interp == 2)
+			    {
+			    	double[] points = new double[2*3];
+			    	points[0] = temp; points[1] = f_prev; points[2] = gtd_prev;
+			    	points[3] = t;    points[4] = f_new;  points[5] = gtd_new;
+			    	t = polyinterp(points, minStep, maxStep);
+			    }
+
+			    // evaluate the step together with the following extrapolation steps
+			    // t*10, t*100, ... in one sweep, so that the interval is bracketed in
+			    // fewer rounds. Steps that are not needed are discarded, only the
+			    // steps used count against the evaluations of minFunc.
+			    int numSteps = Math.max(1, Math.min(batchSize, maxLS - LSiter));
+			    batchSteps = new double[numSteps];
+			    batchSteps[0] = t;
+			    for (int k = 1; k < numSteps; k++)
+			    	batchSteps[k] = batchSteps[k-1] * 10;
+
+			    double[][] xs = new double[numSteps][x.length];
+			    for (int k = 0; k < numSteps; k++)
+			    	for (int j = 0; j < x.length; j++)
+			    		xs[k][j] = x[j] + batchSteps[k] * d[j];
+			    batchResults = cdr_objective(xs);
+			    funEvals++;
+			    discardedEvals += numSteps - 1;
+			    batchIndex = 0;
+		    }
+	    
+		    f_prev = f_new;
+		    for (int j = 0; j < g_new.length; j++)
+		    	g_prev[j] = g_new[j];
+		    gtd_prev = gtd_new;
+		    
+			f_new = batchResults[batchIndex].E;
+			g_new = batchResults[batchIndex].G;
+			gtd_new = 0.0;			
+			for (int j = 0; j < g.length; j++)
+				gtd_new += g_new[j] * d[j];
+			LSiter++;
+		}
+		
+		if (LSiter == maxLS)
+		{
+	    	bracketSize = 2;
+	    	bracket[0] = 0; bracket[1] = t;
+	    	bracketFval[0] = f; bracketFval[1] = f_new;
+	    	for (int j = 0; j < g.length; j++)
+	    		bracketGval[j] = g[j];
+	    	for (int j = 0; j < g_new.length; j++)
+	    		bracketGval[g.length + j] = g_new[j];		    	
+		}
+		
+		// Zoom Phase
+
+		// We now either have a point satisfying the criteria, or a bracket
+		// surrounding a point satisfying the criteria
+		// Refine the bracket until we find a point satisfying the criteria
+		boolean insufProgress = false;
+		//int Tpos = 1;
+		//int LOposRemoved = 0;
+		int LOpos;
+		int HIpos;
+		double f_LO;
+
+		while (!done && LSiter < maxLS)
+		{
+		    // Find High and Low Points in bracket
+		    //[f_LO LOpos] = min(bracketFval);
+		    //HIpos = -LOpos + 3;
+			
+			if (bracketSize < 2)
+			{
+				f_LO = bracketFval[0];
+				LOpos = 0; HIpos = 1;
+			} 
+			else 
+			{
+				if (bracketFval[0] <= bracketFval[1])
+				{
+					f_LO = bracketFval[0];
+					LOpos = 0; HIpos = 1;
+				} else {
+					f_LO = bracketFval[1];
+					LOpos = 1; HIpos = 0;
+				}
+			}
+			
+			// LS_interp == 2
+			//t = polyinterp([bracket(1) bracketFval(1) bracketGval(:,1)'*d
+			//            bracket(2) bracketFval(2) bracketGval(:,2)'*d],doPlot);
+			            
+		    {
+				double val0 = 0.0;			
+				for (int j = 0; j < g.length; j++)
+					val0 += bracketGval[j] * d[j];
+				
+				double val1 = 0.0;			
+				for (int j = 0; j < g.length; j++)
+					val1 += bracketGval[g.length + j] * d[j];
+		    	
+		    	double[] points = new double[2*3];
+		    	points[0] = bracket[0]; points[1] = bracketFval[0]; points[2] = val0;
+		    	points[3] = bracket[1]; points[4] = bracketFval[1];  points[5] = val1;
+		    	t = polyinterp(points, null, null);
+		    }
+		    
+		    // Test that we are making sufficient progress
+		    if (Math.min(Math.max(bracket[0], bracket[1])-t,t-Math.min(bracket[0], bracket[1]))/(Math.max(bracket[0], bracket[1])-Math.min(bracket[0], bracket[1])) < 0.1)
+		    {
+		        if (insufProgress || t>=Math.max(bracket[0], bracket[1]) || t <= Math.min(bracket[0], bracket[1]))
+		        {
+		            if (Math.abs(t-Math.max(bracket[0], bracket[1])) < Math.abs(t-Math.min(bracket[0], bracket[1])))
+		            {
+		                t = Math.max(bracket[0], bracket[1])-0.1*(Math.max(bracket[0], bracket[1])-Math.min(bracket[0], bracket[1]));
+		            } else {
+		                t = Math.min(bracket[0], bracket[1])+0.1*(Math.max(bracket[0], bracket[1])-Math.min(bracket[0], bracket[1]));
+		            }
+		            insufProgress = false;
+		        } else {
+		            insufProgress = true;
+		        }
+		    } else {
+		        insufProgress = false;
+		    }
+
+		    // Evaluate new point
+			x2 = new double[x.length];
+			for (int j = 0; j < x.length; j++)
+				x2[j] = x[j] + t * d[j];
+		    cdrObjectiveResult = cdr_objective(x2);
+			f_new = cdrObjectiveResult.E;
+			g_new = cdrObjectiveResult.G;
+			funEvals++;
+			gtd_new = 0.0;			
+			for (int j = 0; j < g.length; j++)
+				gtd_new += g_new[j] * d[j];
+			LSiter++;
+
+			boolean armijo = f_new < f + c1*t*gtd;
+		    if (!armijo || f_new >= f_LO)
+		    {
+		        // Armijo condition not satisfied or not lower than lowest point
+		        bracket[HIpos] = t;
+		        bracketFval[HIpos] = f_new;
+		    	for (int j = 0; j < g.length; j++)
+		    		bracketGval[g.length * HIpos + j] = g_new[j];    	
+		        //Tpos = HIpos;
+		    } else {
+		        if (Math.abs(gtd_new) <= - c2*gtd)
+		        {
+		            // Wolfe conditions satisfied
+		            done = true;
+		        } else if (gtd_new*(bracket[HIpos]-bracket[LOpos]) >= 0)
+		        {
+		            // Old HI becomes new LO
+		            bracket[HIpos] = bracket[LOpos];
+		            bracketFval[HIpos] = bracketFval[LOpos];
+			    	for (int j = 0; j < g.length; j++)
+			    		bracketGval[g.length * HIpos + j] = bracketGval[g.length * LOpos + j];	    	
+		        }
+		        // New point becomes new LO
+		        bracket[LOpos] = t;
+		        bracketFval[LOpos] = f_new;
+		    	for (int j = 0; j < g.length; j++)
+		    		bracketGval[g.length * LOpos + j] = g_new[j];
+		        //Tpos = LOpos;
+		    }
+
+		    if (!done && Math.abs(bracket[0]-bracket[1])*nrmD < progTol)
+		    	break;
+		}
+		
+		if (bracketSize < 2)
+		{
+			f_LO = bracketFval[0];
+			LOpos = 0; HIpos = 1;
+		} 
+		else 
+		{
+			if (bracketFval[0] <= bracketFval[1])
+			{
+				f_LO = bracketFval[0];
+				LOpos = 0; HIpos = 1;
+			} else {
+				f_LO = bracketFval[1];
+				LOpos = 1; HIpos = 0;
+			}
+		}
+	
+		t = bracket[LOpos];
+		f_new = bracketFval[LOpos];
+    	for (int j = 0; j < g.length; j++)
+    		g_new[j] = bracketGval[g.length * LOpos + j];
+		
+    	WolfeLineSearchResult wolfeLineSearchResult = new WolfeLineSearchResult();
+    	wolfeLineSearchResult.t = t;
+    	wolfeLineSearchResult.f_new = f_new;
+    	wolfeLineSearchResult.g_new = g_new;
+    	wolfeLineSearchResult.funEvals = funEvals;
+    	metrics.addLineSearchEvaluations(funEvals + discardedEvals);
+    	return wolfeLineSearchResult;
+	}
+
+	private LbfgsAddResult lbfgsAdd(double[] y, double[] s, double[][] S, double[][] Y, double[] YS, int lbfgs_start, int lbfgs_end, double Hdiag)
+	{
+		double ys = 0.0;
+		for (int j = 0; j < y.length; j++)
+			ys += y[j] * s[j];
+		boolean skipped = false;
+		int corrections = S[0].length;
+		if (ys > 1e-10d)
+		{
+			if (lbfgs_end < corrections - 1)
+			{
+				lbfgs_end = lbfgs_end+1;
+				if (lbfgs_start != 0)
+				{
+					if (lbfgs_start == corrections - 1)
+						lbfgs_start = 0;
+					else
+						lbfgs_start = lbfgs_start+1;
+				}
+			} else {
+				lbfgs_start = Math.min(1, corrections);
+				lbfgs_end = 0;
+			}
+			
+			for (int j = 0; j < s.length; j++)
+			{
+				S[j][lbfgs_end] = s[j];
+				Y[j][lbfgs_end] = y[j];
+			}
+			YS[lbfgs_end] = ys;
+			
+			// Update scale of initial Hessian approximation
+			double yy = 0.0;
+			for (int j = 0; j < y.length; j++)
+				yy += y[j]*y[j];
+			Hdiag = ys/yy;
+		} else {
+			skipped = false;
+		}
+		
+		LbfgsAddResult lbfgsAddResult = new LbfgsAddResult();
+		lbfgsAddResult.S = S;
+		lbfgsAddResult.Y = Y;
+		lbfgsAddResult.YS = YS;
+		lbfgsAddResult.lbfgs_start = lbfgs_start;
+		lbfgsAddResult.lbfgs_end = lbfgs_end;
+		lbfgsAddResult.Hdiag = Hdiag;
+		lbfgsAddResult.skipped = skipped;
+
+		return lbfgsAddResult;
+	}
+	
+	private double[] lbfgsProd(double[] g, double[][] S, double[][] Y, double[] YS, int lbfgs_start, int lbfgs_end, double Hdiag)
+	{
+		// BFGS Search Direction
+		// This function returns the (L-BFGS) approximate inverse Hessian,
+		// multiplied by the negative gradient
+
+		// Set up indexing
+		int nVars = S.length;
+		int maxCorrections = S[0].length;
+		int nCor;
+		int[] ind;
+		if (lbfgs_start == 0)
+		{
+			ind = new int[lbfgs_end];
+			for (int j = 0; j < ind.length; j++)
+				ind[j] = j;
+			nCor = lbfgs_end-lbfgs_start+1;
+		} else {
+			ind = new int[maxCorrections];
+			for (int j = lbfgs_start; j < maxCorrections; j++)
+				ind[j - lbfgs_start] = j;
+			for (int j = 0; j <= lbfgs_end; j++)
+				ind[j + maxCorrections - lbfgs_start] = j;			
+			nCor = maxCorrections;			
+		}
+
+		double[] al = new double[nCor];
+		double[] be = new double[nCor];
+
+		double[] d = new double[g.length];
+		for (int j = 0; j < g.length; j++)
+			d[j] = -g[j];
+		for (int j = 0; j < ind.length; j++)
+		{
+			int i = ind[ind.length-j-1];
+			double sumSD = 0.0;
+			for (int k = 0; k < S.length; k++)
+				sumSD += (S[k][i] * d[k]) / YS[i];
+			al[i] = sumSD;
+
+			for (int k = 0; k < d.length; k++)
+				d[k] -= al[i] * Y[k][i];
+		}
+
+		// Multiply by Initial Hessian
+		for (int j = 0; j < d.length; j++)
+			d[j] = Hdiag * d[j];
+
+		for (int i = 0; i < ind.length; i++)
+		{
+			double sumYd = 0.0;
+			for (int j = 0; j < Y.length; j++)
+				sumYd += Y[j][ind[i]] * d[j];
+			be[ind[i]] = sumYd / YS[ind[i]];
+			
+			for (int j = 0; j < d.length; j++)
+				d[j] += S[j][ind[i]] * (al[ind[i]] - be[ind[i]]);
+		}
+		return d;
+	}
+	
+	private MinFuncResult minFunc(double[] x0, MinFuncOptions minFuncOptions)
+	{
+		return minFunc(x0, minFuncOptions, null);
+	}
+
+	// minimizes cdr_objective starting from x0, or continues from the state
+	// of a checkpoint when resumeState is given
+	private MinFuncResult minFunc(double[] x0, MinFuncOptions minFuncOptions, MinFuncState resumeState)
+	{
+		double[] x = null;
+		double f = 0.0;
+		
+		int maxIter      = minFuncOptions.maxIter;
+		int MaxFunEvals  = minFuncOptions.MaxFunEvals;
+		double progTol   = minFuncOptions.progTol;
+		double optTol    = minFuncOptions.optTol;
+		int corrections  = minFuncOptions.Corr;
+		int lineSearchBatch = Math.max(1, minFuncOptions.lineSearchBatch);
+		
+		int maxFunEvals = 1000;
+		double c1 = 1e-4;
+		double c2 = 0.9;
+		int LS_interp = 2;
+		int LS_multi = 0;
+	
+		int exitflag = 0;
+		String msg = null;
+		MinFuncResult.ExitReason reason = null;
+		OptimizerTrace trace = minFuncOptions.trace;
+		int phase = (MESTIMATOR == Mestimator.CAUCHY) ? 1 : 0;
+		
+		// Initialize
+		int p = x0.length;
+		double[] d;
+		double t;
+		double[] g;
+		double[] g_old;
+		int funEvals;
+		double optCond;
+		
+		// If necessary, form numerical differentiation functions
+		int funEvalMultiplier = 1;
+		int numDiffType = 0;
+
+		int computeHessian = 0;
+
+		double[] xBest;
+		double fBest;
+		double optCondBest;
+		int iterations;
+
+		double[][] S;
+		double[][] Y;
+		double[]  YS;
+		int lbfgs_start;
+		int lbfgs_end;
+		double Hdiag;
+		int iStart;
+
+		if (resumeState == null)
+		{
+			d = new double[p];
+			x = new double[x0.length];
+			for (int i = 0; i < x0.length; i++)
+				x[i] = x0[i];
+			t = 1.0d;
+
+			// Evaluate Initial Point
+			CdrObjectiveResult cdrObjectiveResult = cdr_objective(x);
+			f = cdrObjectiveResult.E;
+			g = cdrObjectiveResult.G;
+			g_old = new double[g.length];
+			
+			funEvals = 1;
+	
+			// Compute optimality of initial point
+			optCond = Double.MIN_VALUE;
+			for (int j = 0; j < g.length; j++)
+			{
+				double absValue = Math.abs(g[j]);
+				if (optCond < absValue)
+					optCond = absValue;
+			}
+			
+			if (trace != null)
+				trace.record(phase, 0, funEvals, f, optCond, 0);
+
+			// Exit if initial point is optimal
+			if (optCond <= optTol)
+			{
+			    exitflag=1;
+			    msg = "Optimality Condition below optTol";
+			    MinFuncResult minFuncResult = new MinFuncResult();
+			    minFuncResult.x = x;
+			    minFuncResult.f = f;
+			    minFuncResult.exitflag = exitflag;
+			    minFuncResult.msg = msg;
+			    minFuncResult.reason = MinFuncResult.ExitReason.OPTIMALITY;
+			    minFuncResult.funEvals = funEvals;
+			    minFuncResult.optCond = optCond;
+			    return minFuncResult;
+			}
+	
+			// the best iterate is kept, so that a valid result can be returned
+			// whenever the optimization is stopped
+			xBest = Arrays.copyOf(x, x.length);
+			fBest = f;
+			optCondBest = optCond;
+			iterations = 0;
+	
+			S = new double[p][corrections]; 
+			Y = new double[p][corrections]; 
+			YS = new double[corrections]; 
+			lbfgs_start = 0;
+			lbfgs_end = 0;
+			Hdiag = 1.0;
+			iStart = 0;
+		}
+		else
+		{
+			// Continue from the state saved in a checkpoint
+			x = resumeState.x;
+			f = resumeState.f;
+			g = resumeState.g;
+			g_old = resumeState.g_old;
+			d = resumeState.d;
+			t = resumeState.t;
+			funEvals = resumeState.funEvals;
+			xBest = resumeState.xBest;
+			fBest = resumeState.fBest;
+			optCondBest = resumeState.optCondBest;
+			iterations = resumeState.iterations;
+			S = resumeState.S;
+			Y = resumeState.Y;
+			YS = resumeState.YS;
+			lbfgs_start = resumeState.lbfgs_start;
+			lbfgs_end = resumeState.lbfgs_end;
+			Hdiag = resumeState.Hdiag;
+			iStart = resumeState.iteration;
+		}
+		long lastCheckpoint = System.currentTimeMillis();
+		long lastLog = 0;
+	
+		// Perform up to a maximum of 'maxIter' descent steps:
+		for (int i = iStart; i < maxIter; i++)
+		{
+			// Check the time budget; it is checked between iterations, so it can
+			// be overrun by at most one line search
+			if (minFuncOptions.deadline > 0 && System.currentTimeMillis() >= minFuncOptions.deadline)
+			{
+				exitflag = -1;
+				msg = "Reached the Time Limit";
+				reason = MinFuncResult.ExitReason.TIME_LIMIT;
+				break;
+			}
+
+			// LBFGS
+			if (i == 0)
+			{
+					// Initially use steepest descent direction
+					for (int j = 0; j < g.length; j++)
+						d[j] = -g[j];
+					lbfgs_start = 0;
+					lbfgs_end = -1;
+					Hdiag = 1.0;
+			}
+			else
+			{
+				double[] gMg_old = new double[g.length];
+				for (int j = 0; j < g.length; j++)
+					gMg_old[j] = g[j] - g_old[j];
+				
+				double[] tPd = new double[d.length];
+				for (int j = 0; j < d.length; j++)
+					tPd[j] = t * d[j];
+
+				LbfgsAddResult lbfgsAddResult = lbfgsAdd(gMg_old, tPd, S, Y, YS, lbfgs_start, lbfgs_end, Hdiag);
+				S = lbfgsAddResult.S;
+				Y = lbfgsAddResult.Y;
+				YS = lbfgsAddResult.YS;
+				lbfgs_start = lbfgsAddResult.lbfgs_start;
+				lbfgs_end = lbfgsAddResult.lbfgs_end;
+				Hdiag = lbfgsAddResult.Hdiag;
+				boolean skipped = lbfgsAddResult.skipped;
+
+				d = lbfgsProd(g, S, Y, YS, lbfgs_start, lbfgs_end, Hdiag);
+			}
+			for (int j = 0; j < g.length; j++)
+				g_old[j] = g[j];
+
+		    // ****************** COMPUTE STEP LENGTH ************************
+
+		    // Directional Derivative
+			double gtd = 0.0;			
+			for (int j = 0; j < g.length; j++)
+				gtd += g[j] * d[j];
+
+		    // Check that progress can be made along direction
+		    if (gtd > -progTol)
+		    {
+		        exitflag = 2;
+		        msg = "Directional Derivative below progTol";
+		        reason = MinFuncResult.ExitReason.DIRECTIONAL_DERIVATIVE;
+		        break;
+		    }
+		    
+		    // Select Initial Guess
+		    if (i == 0)
+		    {
+		    	double sumAbsG = 0.0;
+				for (int j = 0; j < g.length; j++)
+					sumAbsG += Math.abs(g[j]);
+				t = Math.min(1.0, 1.0/sumAbsG);
+		    } else {
+		        //if (LS_init == 0)
+		    	// Newton step
+		    	t = 1.0;		    	
+		    }
+		    double f_old = f;
+		    double gtd_old = gtd;
+		    
+		    int Fref = 1;
+		    double fr;
+		    // Compute reference fr if using non-monotone objective
+		    if (Fref == 1)
+		    {
+		        fr = f;
+		    }
+		    
+		    computeHessian = 0; 
+
+		    // Line Search
+		    f_old = f;
+
+		    WolfeLineSearchResult wolfeLineSearchResult = WolfeLineSearch(x,t,d,f,g,gtd,c1,c2,LS_interp,LS_multi,25,progTol,1,lineSearchBatch);
+		    t = wolfeLineSearchResult.t;
+		    f = wolfeLineSearchResult.f_new;
+		    g = wolfeLineSearchResult.g_new;
+		    int LSfunEvals = wolfeLineSearchResult.funEvals;
+		    
+		    funEvals = funEvals + LSfunEvals;
+		    for (int j = 0; j < x.length; j++)
+		    	x[j] += t * d[j];
+		    iterations = i + 1;
+					    
+			// Compute Optimality Condition
+			optCond = Double.MIN_VALUE;
+			for (int j = 0; j < g.length; j++)
+			{
+				double absValG = Math.abs(g[j]);
+				if (optCond < absValG)
+					optCond = absValG;
+			}
+
+			if (f < fBest)
+			{
+				System.arraycopy(x, 0, xBest, 0, x.length);
+				fBest = f;
+				optCondBest = optCond;
+			}
+
+			// the trace records every iteration, the log only some of them
+			if (trace != null)
+				trace.record(phase, iterations, funEvals, f, optCond, t);
+			if (logIterations && System.currentTimeMillis() - lastLog >= LOG_INTERVAL)
+			{
+				IJ.log(String.format("iter = %d  %s %s    zx,zy=(%1.2f,%1.2f)    E=%g    max|g|=%g    t=%g    evals=%d", 
+						iterations, MESTIMATOR, (TERMSFLAG == 0) ? "fitting only" : "all terms", x[2 * S_C * S_R], x[2 * S_C * S_R + 1], f, optCond, t, funEvals));
+				lastLog = System.currentTimeMillis();
+			}
+			
+		    // Check Optimality Condition
+		    if (optCond <= optTol)
+		    {
+		        exitflag=1;
+		        msg = "Optimality Condition below optTol";
+		        reason = MinFuncResult.ExitReason.OPTIMALITY;
+		        break;
+		    }
+		    
+		    // ******************* Check for lack of progress *******************
+
+			double maxAbsTD = Double.MIN_VALUE;
+			for (int j = 0; j < d.length; j++)
+			{
+				double absValG = Math.abs(t * d[j]);
+				if (maxAbsTD < absValG)
+					maxAbsTD = absValG;
+			}
+		    if (maxAbsTD <= progTol)
+		    {
+		    	exitflag=2;
+		        msg = "Step Size below progTol";
+		        reason = MinFuncResult.ExitReason.STEP_SIZE;
+		        break;
+			}
+
+		    if (Math.abs(f-f_old) < progTol)
+		    {
+		        exitflag=2;
+		        msg = "Function Value changing by less than progTol";
+		        reason = MinFuncResult.ExitReason.FUNCTION_VALUE;
+		        break;
+		    }
+		    
+		    // ******** Check for going over iteration/evaluation limit *******************
+
+		    if (funEvals*funEvalMultiplier >= maxFunEvals)
+		    {
+		        exitflag = 0;
+		        msg = "Reached Maximum Number of Function Evaluations";
+		        reason = MinFuncResult.ExitReason.MAX_EVALUATIONS;
+		        break;
+		    }
+
+		    if (i == maxIter)
+		    {
+		        exitflag = 0;
+		        msg="Reached Maximum Number of Iterations";
+		        reason = MinFuncResult.ExitReason.MAX_ITERATIONS;
+		        break;
+		    }
+
+		    // ******************* Save a checkpoint of the state *******************
+
+		    if (minFuncOptions.checkpointFile != null && System.currentTimeMillis() - lastCheckpoint >= minFuncOptions.checkpointInterval)
+		    {
+		    	MinFuncState state = new MinFuncState();
+		    	state.iteration = i + 1;
+		    	state.iterations = iterations;
+		    	state.funEvals = funEvals;
+		    	state.x = x;
+		    	state.f = f;
+		    	state.g = g;
+		    	state.g_old = g_old;
+		    	state.d = d;
+		    	state.t = t;
+		    	state.S = S;
+		    	state.Y = Y;
+		    	state.YS = YS;
+		    	state.lbfgs_start = lbfgs_start;
+		    	state.lbfgs_end = lbfgs_end;
+		    	state.Hdiag = Hdiag;
+		    	state.xBest = xBest;
+		    	state.fBest = fBest;
+		    	state.optCondBest = optCondBest;
+		    	writeOptimizerCheckpoint(minFuncOptions.checkpointFile, null, state);
+		    	lastCheckpoint = System.currentTimeMillis();
+		    }
+		}
+		
+		if (msg == null)
+		{
+			exitflag = 0;
+			msg = "Reached Maximum Number of Iterations";
+			reason = MinFuncResult.ExitReason.MAX_ITERATIONS;
+		}
+		if (logIterations)
+			IJ.log(String.format("Msg: %s (%d iterations, %d evaluations, E=%g)", msg, iterations, funEvals, fBest));
+		
+	    MinFuncResult minFuncResult = new MinFuncResult();
+	    minFuncResult.x = xBest;
+	    minFuncResult.f = fBest;
+	    minFuncResult.exitflag = exitflag;
+	    minFuncResult.msg = msg;
+	    minFuncResult.reason = reason;
+	    minFuncResult.iterations = iterations;
+	    minFuncResult.funEvals = funEvals;
+	    minFuncResult.optCond = optCondBest;
+	    return minFuncResult;
+	}
+
+	private ConvergenceInfo getConvergenceInfo(String phase, MinFuncResult minFuncResult, long tStart)
+	{
+		ConvergenceInfo info = new ConvergenceInfo();
+		info.phase = phase;
+		info.exitflag = minFuncResult.exitflag;
+		info.msg = minFuncResult.msg;
+		info.reason = minFuncResult.reason;
+		info.iterations = minFuncResult.iterations;
+		info.funEvals = minFuncResult.funEvals;
+		info.f = minFuncResult.f;
+		info.optCond = minFuncResult.optCond;
+		info.seconds = (System.currentTimeMillis() - tStart) / 1000.0;
+		info.timeLimited = minFuncResult.exitflag == -1;
+		return info;
+	}
+
+	// writes the optimizer state of the current phase, either the starting point
+	// x of the phase or the L-BFGS state after an iteration
+	private void writeOptimizerCheckpoint(String fileName, double[] x, MinFuncState state)
+	{
+		File tmpFile = new File(fileName + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(OPTIMIZER_CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+
+			// the settings the state is only valid for
+			out.writeInt(S_C);
+			out.writeInt(S_R);
+			out.writeInt(Z);
+			out.writeDouble(LAMBDA_VREG);
+			out.writeDouble(LAMBDA_ZERO);
+			out.writeDouble(ZMIN);
+			out.writeDouble(ZMAX);
+			CidreIO.writeDoubles(out, Q);
+
+			out.writeInt(MESTIMATOR == Mestimator.CAUCHY ? 1 : 0);
+			out.writeInt(ITER);
+			out.writeDouble(CAUCHY_W);
+			out.writeBoolean(x != null);
+			if (x != null)
+				CidreIO.writeDoubles(out, x);
+			out.writeBoolean(state != null);
+			if (state != null) {
+				out.writeInt(state.iteration);
+				out.writeInt(state.iterations);
+				out.writeInt(state.funEvals);
+				out.writeDouble(state.f);
+				out.writeDouble(state.t);
+				out.writeDouble(state.Hdiag);
+				out.writeInt(state.lbfgs_start);
+				out.writeInt(state.lbfgs_end);
+				out.writeDouble(state.fBest);
+				out.writeDouble(state.optCondBest);
+				CidreIO.writeDoubles(out, state.x);
+				CidreIO.writeDoubles(out, state.g);
+				CidreIO.writeDoubles(out, state.g_old);
+				CidreIO.writeDoubles(out, state.d);
+				CidreIO.writeDoubles(out, state.xBest);
+				CidreIO.writeDoubles(out, state.YS);
+				out.writeInt(state.S.length);
+				for (int j = 0; j < state.S.length; j++)
+					CidreIO.writeDoubles(out, state.S[j]);
+				for (int j = 0; j < state.Y.length; j++)
+					CidreIO.writeDoubles(out, state.Y[j]);
+			}
+			out.close();
+			out = null;
+			Files.move(tmpFile.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			IJ.log(" Warning: could not write the optimizer checkpoint (" + e.getMessage() + ")");
+		} finally {
+			CidreIO.closeQuietly(out);
+		}
+	}
+
+	// reads the optimizer checkpoint, returns null if there is none or if it was
+	// written with other settings than the current ones
+	public OptimizerCheckpoint readOptimizerCheckpoint(String fileName)
+	{
+		if (!new File(fileName).exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+			if (in.readInt() != OPTIMIZER_CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION)
+				throw new IOException("unknown file format");
+
+			if (in.readInt() != S_C || in.readInt() != S_R || in.readInt() != Z
+					|| in.readDouble() != LAMBDA_VREG || in.readDouble() != LAMBDA_ZERO
+					|| in.readDouble() != ZMIN || in.readDouble() != ZMAX
+					|| !Arrays.equals(CidreIO.readDoubles(in), Q)) {
+				IJ.log(" The optimizer checkpoint was written with other parameters, ignoring it");
+				return null;
+			}
+
+			OptimizerCheckpoint checkpoint = new OptimizerCheckpoint();
+			checkpoint.phase = in.readInt();
+			checkpoint.ITER = in.readInt();
+			checkpoint.CAUCHY_W = in.readDouble();
+			if (in.readBoolean())
+				checkpoint.x = CidreIO.readDoubles(in);
+			if (in.readBoolean()) {
+				MinFuncState state = new MinFuncState();
+				state.iteration = in.readInt();
+				state.iterations = in.readInt();
+				state.funEvals = in.readInt();
+				state.f = in.readDouble();
+				state.t = in.readDouble();
+				state.Hdiag = in.readDouble();
+				state.lbfgs_start = in.readInt();
+				state.lbfgs_end = in.readInt();
+				state.fBest = in.readDouble();
+				state.optCondBest = in.readDouble();
+				state.x = CidreIO.readDoubles(in);
+				state.g = CidreIO.readDoubles(in);
+				state.g_old = CidreIO.readDoubles(in);
+				state.d = CidreIO.readDoubles(in);
+				state.xBest = CidreIO.readDoubles(in);
+				state.YS = CidreIO.readDoubles(in);
+				int p = in.readInt();
+				state.S = new double[p][];
+				for (int j = 0; j < p; j++)
+					state.S[j] = CidreIO.readDoubles(in);
+				state.Y = new double[p][];
+				for (int j = 0; j < p; j++)
+					state.Y[j] = CidreIO.readDoubles(in);
+				checkpoint.state = state;
+			}
+			if (checkpoint.x == null && checkpoint.state == null)
+				throw new IOException("no optimizer state");
+			return checkpoint;
+		} catch (IOException e) {
+			IJ.log(" Warning: could not read the optimizer checkpoint (" + e.getMessage() + ")");
+			return null;
+		} finally {
+			CidreIO.closeQuietly(in);
+		}
+	}
+}
@@ -1,39 +1,72 @@
-// From the CIDRE project, an illumination correction method for optical
-// microscopy (https://github.com/smithk/cidre).
-// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
-// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
-// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
-// Switzerland. All rights reserved.
-//
-// CIDRE is free software; you can redistribute it and/or modify it 
-// under the terms of the GNU General Public License version 2 (or higher) 
-// as published by the Free Software Foundation. See the license file in
-// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
-// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
-// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
-
-import java.awt.Dimension;
-import java.util.ArrayList;
-import java.util.List;
-
-public class CidreOptions
-{
-	public enum CorrectionMode  { zero_light_perserved, dynamic_range_corrected, direct};
-	
-	public Double lambdaVreg = null;
-	public Double lambdaZero = null;
-	public Integer maxLbgfsIterations = null;
-	public Double qPercent = null;
-	public Double[] zLimits = new Double[2];
-	public Dimension imageSize;
-	public String folderSource;
-	public String fileFilterSource;
-	public String folderDestination;
-	public List<String> fileNames = new ArrayList<String>();
-	public int numImagesProvided;
-	public Integer bitDepth = null;
-	public CorrectionMode correctionMode = null;
-	public int targetNumPixels = 9400;
-	public Dimension workingSize;
-	public int numberOfQuantiles = 200;	
-}
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CidreOptions
+{
+	public enum CorrectionMode  { zero_light_perserved, dynamic_range_corrected, direct};
+	public enum OutputType  { source_bit_depth, float32 };
+	
+	public Double lambdaVreg = null;
+	public Double lambdaZero = null;
+	public Integer maxLbgfsIterations = null;
+	public Double maxOptimizationTime = null;	// wall-clock budget of the optimization in seconds
+	public Double qPercent = null;
+	public Double[] zLimits = new Double[2];
+	public Dimension imageSize;
+	public String folderSource;
+	public String fileFilterSource;
+	public String folderDestination;
+	public List<String> fileNames = new ArrayList<String>();
+	public int numImagesProvided;		// images the model is built from
+	public int numImagesAvailable;		// images matching the file mask, more than numImagesProvided if sampled
+	public Integer bitDepth = null;
+	public double entropy;
+	public CorrectionMode correctionMode = null;
+	public OutputType outputType = OutputType.source_bit_depth;	// pixel type of the corrected images
+	public double outputOffset = 0;		// added to the corrected intensities before rounding
+	public int targetNumPixels = 9400;
+	public Dimension workingSize;
+	public int numberOfQuantiles = 200;	
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	public int lineSearchBatch = 1;		// trial steps evaluated together while bracketing, more than 1 changes the model
+	public int correctionReadThreads = 2;	// threads reading and writing the images of a correction, the
+	public int correctionWriteThreads = 2;	// correction itself runs on numThreads threads
+	public long streamingMinPixels = 50000000;	// images of at least this many pixels are corrected strip by strip
+	public double checkpointInterval = 60;	// seconds between optimizer checkpoints, 0 to disable checkpoints
+	public boolean resume = false;			// continue from the checkpoints in folderDestination
+	public boolean optimizerTrace = true;	// record every iteration of the optimizer in folderDestination
+	public boolean useStackCache = true;	// reuse the preprocessed stack of the same source images
+	public boolean fullSizeModel = true;	// keep and save the surfaces of the image size, the correction upsamples the small ones otherwise
+	public boolean exportModelCSV = false;	// also save the model to the CSV files of earlier versions
+	public boolean useModelCache = true;	// return the model of an earlier build of the same images with the same options
+	public String modelCacheFolder = null;	// null for ModelCache.getDefaultFolder()
+	public long modelCacheMaxBytes = 2L << 30;
+	public double modelCacheMaxAgeDays = 30;
+	public double watchSettleTime = 2;		// seconds a watched file must stay unchanged before it is corrected
+	public double watchIdleTimeout = 0;	// seconds without new files after which watching stops, 0 to watch until stopped
+	public boolean sampleImages = false;	// read a random sample of the images, until their quantiles converge
+	public int sampleBatch = 100;			// images read between the convergence checks of the sample
+	public int sampleMinImages = 500;
+	public double sampleTolerance = 0.002;	// relative change of the quantiles with a batch at which sampling stops
+	public long sampleSeed = 0;
+	public boolean planResources = true;	// estimate the heap of a build before reading the images, refuse it if it does not fit
+	public Boolean streamImages = null;		// fold the images into the quantiles batch by batch, null to let CidrePlanner decide
+	public int streamBatch = 100;			// images read at a time when streaming
+	public boolean saveStatistics = false;	// save the statistics the model can be updated from with new images
+	public List<String> warnings = new ArrayList<String>();	// warnings of the build for the user
+}
@@ -0,0 +1,213 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+import java.util.Locale;
+
+// Estimates the peak heap and the runtime of a build from the number and the 
+// size of the images, the working size and the number of quantiles, before 
+// the images are read, and picks how the images are kept:
+//
+//   IN_MEMORY  all the images of the working size are kept, sorted and 
+//              compressed to the quantiles, as the build always did
+//   STREAMING  the images are read options.streamBatch at a time and folded
+//              into the quantiles of a CidreStatistics, as an update does, so
+//              only one batch is kept
+//
+// The entropy that decides the scale-space resampling is only known once the
+// images are read, so unless an earlier build set options.entropy the 
+// estimate assumes the strongest resampling the number of images allows. The
+// runtime of the reading is calibrated with CidreMetrics once the process has
+// read images, the rest uses rates measured on a single core.
+public class CidrePlanner
+{
+	private static final double HEAP_FRACTION = 0.8;	// of the available heap a plan may use, the rest is left to the GC
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 8;
+	private static final int CORRECTIONS = 100;			// the L-BFGS history of CidreEngine.getMinFuncOptions
+
+	private static final double READ_NS_PER_PIXEL = 40;	// decoding and resizing an image of the source size
+	private static final double SCALE_SPACE_NS = 110;	// per value of the stack
+	private static final double SORT_NS = 25;			// per value of the stack and comparison
+	private static final double EVALUATION_NS = 27;		// per value of the compressed stack and objective evaluation
+	private static final int EVALUATIONS = 150;			// typical evaluations of both phases of the optimization
+
+	// the heap that is neither used nor reserved for the GC
+	public static long getAvailableHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	// plans a build of numImages images of options.imageSize at 
+	// options.workingSize, the images are imageBytes large on disk and decoded
+	// on decodeThreads threads at the same time
+	public static ResourcePlan plan(CidreOptions options, int numImages, long imageBytes, int decodeThreads, long availableBytes)
+	{
+		ResourcePlan plan = new ResourcePlan();
+		plan.numImages = numImages;
+		plan.imageSize = options.imageSize;
+		plan.workingSize = options.workingSize;
+		plan.availableBytes = availableBytes;
+
+		int W = options.imageSize.width;
+		int H = options.imageSize.height;
+		int C = options.workingSize.width;
+		int R = options.workingSize.height;
+		int K = options.numberOfQuantiles;
+		long N = numImages;
+		double image = doubles2D(C, R);
+
+		// the scale-space reductions of an image, see scaleSpaceResampling
+		double pyramid = 0;
+		int numOctaves = 1;
+		for (int c = C, r = R; c > 1 && r > 1; numOctaves++) {
+			c = (int)Math.round(c * 0.5);
+			r = (int)Math.round(r * 0.5);
+			pyramid += doubles2D(c, r);
+		}
+		plan.octaves = getOctaves(options.entropy, numImages, numOctaves);
+		int Zin = (int)Math.min(Integer.MAX_VALUE, (plan.octaves > 1) ? plan.octaves * N : N);
+		plan.quantiles = Math.min(K, Zin);
+		int Kstream = (int)Math.min(K, N);
+		int Zstream = (plan.octaves > 1) ? plan.octaves * Kstream : Kstream;
+
+		// the images being decoded, their pixels in ImageJ, as floats and as
+		// doubles, and the first pass of the resizing
+		double decode = Math.max(1, decodeThreads) * ((double)W * H * (4 + 4 + 8) + 8.0 * W * R + image);
+		double statistics = 8.0 * C * R * Kstream;
+		double saved = options.saveStatistics ? 2 * statistics : 0;
+
+		plan.stackBytes = (long)(N * image);
+		plan.scaleSpaceBytes = (long)(N * pyramid + ((plan.octaves > 1) ? Zin * image : 0));
+		plan.optimizationBytes = (long)getOptimizationBytes(options, Math.min(K, Zin));
+		double scaleSpaceStreaming = Kstream * pyramid + ((plan.octaves > 1) ? Zstream * image : 0);
+
+		plan.peakBytesInMemory = (long)max(
+				plan.stackBytes + decode,
+				plan.stackBytes + plan.scaleSpaceBytes + saved,
+				(double)Zin * image + plan.quantiles * image + saved,
+				plan.quantiles * image + plan.optimizationBytes + saved);
+		int batch = Math.max(1, options.sampleImages ? options.sampleBatch : options.streamBatch);
+		plan.peakBytesStreaming = (long)max(
+				Math.min(batch, N) * image + decode + 2 * statistics + 8.0 * batch,
+				Kstream * image + scaleSpaceStreaming + statistics,
+				(double)Zstream * image + Math.min(K, Zstream) * image + statistics,
+				Math.min(K, Zstream) * image + getOptimizationBytes(options, Math.min(K, Zstream)) + statistics);
+
+		long usable = (long)(availableBytes * HEAP_FRACTION);
+		boolean inMemory = plan.peakBytesInMemory <= usable;
+		boolean streaming = plan.peakBytesStreaming <= usable;
+		if (options.streamImages == null)
+			plan.strategy = inMemory ? ResourcePlan.Strategy.IN_MEMORY : streaming ? ResourcePlan.Strategy.STREAMING : null;
+		else if (options.streamImages)
+			plan.strategy = streaming ? ResourcePlan.Strategy.STREAMING : null;
+		else
+			plan.strategy = inMemory ? ResourcePlan.Strategy.IN_MEMORY : null;
+
+		// the reading as fast as the images read so far by the process
+		CidreMetrics metrics = CidreMetrics.getDefault();
+		if (metrics.getBytesRead() > 0 && imageBytes > 0)
+			plan.secondsRead = metrics.getSeconds(CidreMetrics.LOAD) / metrics.getBytesRead() * imageBytes * N;
+		else
+			plan.secondsRead = N * W * H * READ_NS_PER_PIXEL * 1e-9 / Math.max(1, decodeThreads);
+		// the folding of the batches when streaming, the scale-space reduction 
+		// and the sorting of the stack
+		boolean stream = (plan.strategy == ResourcePlan.Strategy.STREAMING);
+		int Zsorted = stream ? Zstream : Zin;
+		double values = stream ? (double)N * C * R * SORT_NS * log2(Kstream + batch) + (double)Kstream * C * R * SCALE_SPACE_NS : (double)N * C * R * SCALE_SPACE_NS;
+		plan.secondsPreprocess = (values + (double)Zsorted * C * R * SORT_NS * log2(Zsorted)) * 1e-9;
+		plan.secondsOptimization = (double)EVALUATIONS * Math.min(K, Zsorted) * C * R * EVALUATION_NS * 1e-9 / Math.max(1, options.numThreads);
+		return plan;
+	}
+
+	// the octaves the scale-space resampling keeps, as scaleSpaceResampling 
+	// decides it from the entropy, the lowest possible if it is not known yet
+	private static int getOctaves(double entropy, int numImages, int numOctaves)
+	{
+		double N_required = 7.838e+06 * Math.exp(-1.948 * Math.max(0, entropy)) + 20;
+		double alpha = (numImages < N_required) ? 1 - numImages / N_required : 0;
+		alpha = Math.max(0, Math.min(1, alpha));
+		return Math.max(1, (int)Math.ceil(alpha * numOctaves));
+	}
+
+	// the pivoted stack, the L-BFGS history, the vectors of minFunc and of the
+	// objective, and the model
+	private static double getOptimizationBytes(CidreOptions options, int Z)
+	{
+		int C = options.workingSize.width;
+		int R = options.workingSize.height;
+		double p = 2.0 * C * R + 2;
+		double bytes = 8.0 * C * R * (Z + 1);
+		bytes += 2 * doubles2D(p, CORRECTIONS);
+		bytes += 8 * p * (24 + 4 * Math.max(1, options.lineSearchBatch));
+		bytes += 8.0 * 4 * C * R;
+		if (options.fullSizeModel) {
+			double W = options.imageSize.width;
+			double H = options.imageSize.height;
+			bytes += 8 * (2 * W * H + W * R);
+		}
+		return bytes;
+	}
+
+	// the size of a double[width][height]
+	private static double doubles2D(double width, double height)
+	{
+		return ARRAY_HEADER + REFERENCE * width + width * (ARRAY_HEADER + 8 * height);
+	}
+
+	private static double log2(double x)
+	{
+		return Math.log(Math.max(2, x)) / Math.log(2);
+	}
+
+	private static double max(double... values)
+	{
+		double max = 0;
+		for (double value : values)
+			max = Math.max(max, value);
+		return max;
+	}
+
+	// the plan for the log
+	public static String describe(ResourcePlan plan)
+	{
+		return String.format(Locale.ROOT, " Planned %d images of %dx%d at %dx%d: %s, peak heap %s in memory, %s streaming, %s available, about %s (reading %1.0fs, preprocessing %1.0fs, optimization %1.0fs)",
+				plan.numImages, plan.imageSize.width, plan.imageSize.height, plan.workingSize.width, plan.workingSize.height, 
+				(plan.strategy != null) ? plan.strategy.toString().toLowerCase(Locale.ROOT) : "no strategy fits", 
+				megabytes(plan.peakBytesInMemory), megabytes(plan.peakBytesStreaming), megabytes(plan.availableBytes),
+				duration(plan.getSeconds()), plan.secondsRead, plan.secondsPreprocess, plan.secondsOptimization);
+	}
+
+	// why a build cannot start, and what would let it
+	public static String getRefusal(ResourcePlan plan)
+	{
+		return String.format(Locale.ROOT, "A model of %d images of %dx%d needs about %s of heap (%s when streaming the images), but only %s are available. " + 
+				"Give Java more memory (-Xmx), or use a smaller working size (target pixels), fewer quantiles or a model of the small surfaces only.",
+				plan.numImages, plan.imageSize.width, plan.imageSize.height, megabytes(plan.peakBytesInMemory), megabytes(plan.peakBytesStreaming), 
+				megabytes(plan.availableBytes));
+	}
+
+	private static String megabytes(long bytes)
+	{
+		return String.format(Locale.ROOT, "%dMB", (bytes + (1 << 20) - 1) >> 20);
+	}
+
+	private static String duration(double seconds)
+	{
+		if (seconds < 120)
+			return String.format(Locale.ROOT, "%1.0fs", seconds);
+		return String.format(Locale.ROOT, "%1.0fmin", seconds / 60);
+	}
+}
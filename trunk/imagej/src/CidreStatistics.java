@@ -0,0 +1,245 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The state of a model that new images are folded into, cidre_statistics.bin. 
+// At every location of the working size it keeps the sorted intensities of 
+// all the images read so far, compressed to at most numberOfQuantiles values
+// of equal weight, together with the intensity histogram of the entropy, the 
+// files that were read and the LS solution of the last optimization, the 
+// warm start of the next one.
+public class CidreStatistics
+{
+	public static final String FILE_NAME = "cidre_statistics.bin";
+
+	private static final int MAGIC = 0x43445354;	// "CDST"
+	private static final int VERSION = 1;
+	private static final int MAX_INTENSITY = 1 << 16;	// the largest bit depth of the engine, brighter values are counted there
+
+	public String fingerprint = "";		// stack fingerprint of the source images, empty after an update
+	public Dimension imageSize;
+	public int C;						// working size
+	public int R;
+	public int numImages;
+	public int K;						// quantiles per location
+	public double[] values = new double[0];	// values[(c * R + r) * K + k], ascending in k
+	public long[] histogram = new long[0];	// counts of the integer intensities of the working images
+	public int maxI;
+	public List<String> files = new ArrayList<String>();	// absolute paths of the images read
+	public double[] solutionLS;			// [v; z; zx; zy] of the LS phase, null if not optimized yet
+
+	public CidreStatistics(Dimension imageSize, int C, int R)
+	{
+		this.imageSize = imageSize;
+		this.C = C;
+		this.R = R;
+	}
+
+	// folds the images of the working size into the quantiles. The sorted old
+	// quantiles and new intensities of each location are merged, and their 
+	// weights are spread over min(maxQuantiles, numImages) bins of equal 
+	// weight. As long as there are no more images than maxQuantiles the 
+	// values are the exact sorted intensities.
+	public void add(List<double[][]> images, int maxQuantiles)
+	{
+		int M = images.size();
+		if (M == 0)
+			return;
+
+		long N = (long)numImages + M;
+		int newK = (int)Math.min(maxQuantiles, N);
+		double oldWeight = (K > 0) ? (double)numImages / K : 0;
+		double binWidth = (double)N / newK;
+
+		double[] newValues = new double[C * R * newK];
+		double[] added = new double[M];
+		double[] sums = new double[newK];
+		for (int c = 0; c < C; c++) {
+			for (int r = 0; r < R; r++) {
+				for (int m = 0; m < M; m++) {
+					double value = images.get(m)[c][r];
+					added[m] = value;
+					count((int)value);
+				}
+				Arrays.sort(added);
+
+				int p = c * R + r;
+				int i = 0;
+				int j = 0;
+				int bin = 0;
+				double room = binWidth;
+				Arrays.fill(sums, 0);
+				while (i < K || j < M) {
+					double value;
+					double weight;
+					if (j >= M || (i < K && values[p * K + i] <= added[j])) {
+						value = values[p * K + i++];
+						weight = oldWeight;
+					} else {
+						value = added[j++];
+						weight = 1;
+					}
+					while (weight > 0) {
+						double w = (bin == newK - 1) ? weight : Math.min(weight, room);
+						sums[bin] += w * value;
+						weight -= w;
+						room -= w;
+						if (room <= 1e-9 * binWidth && bin < newK - 1) {
+							bin++;
+							room = binWidth;
+						}
+					}
+				}
+				for (int k = 0; k < newK; k++)
+					newValues[p * newK + k] = sums[k] / binWidth;
+			}
+		}
+
+		values = newValues;
+		K = newK;
+		numImages = (int)N;
+	}
+
+	private void count(int value)
+	{
+		int index = Math.min(MAX_INTENSITY - 1, Math.max(0, value));
+		if (index >= histogram.length)
+			histogram = Arrays.copyOf(histogram, Math.min(MAX_INTENSITY, Math.max(index + 1, 2 * histogram.length)));
+		histogram[index]++;
+		maxI = Math.max(maxI, value);
+	}
+
+	// the histogram of the bit depth, the brighter values counted in its last
+	// bin as the histogram of the stack does
+	public long[] getHistogram(int bitDepth)
+	{
+		long[] hist = new long[bitDepth];
+		for (int i = 0; i < histogram.length; i++)
+			hist[Math.min(bitDepth - 1, i)] += histogram[i];
+		return hist;
+	}
+
+	// the quantiles as a sorted stack of K images of the working size
+	public List<double[][]> getStack()
+	{
+		List<double[][]> stack = new ArrayList<double[][]>();
+		for (int k = 0; k < K; k++) {
+			double[][] doubleArray = new double[C][R];
+			for (int c = 0; c < C; c++)
+				for (int r = 0; r < R; r++)
+					doubleArray[c][r] = values[(c * R + r) * K + k];
+			stack.add(doubleArray);
+		}
+		return stack;
+	}
+
+	public void write(String fileName) throws IOException
+	{
+		File file = new File(fileName);
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(fingerprint);
+			out.writeInt(imageSize.width);
+			out.writeInt(imageSize.height);
+			out.writeInt(C);
+			out.writeInt(R);
+			out.writeInt(numImages);
+			out.writeInt(K);
+			out.writeInt(maxI);
+			out.writeInt(histogram.length);
+			for (int i = 0; i < histogram.length; i++)
+				out.writeLong(histogram[i]);
+			CidreIO.writeDoubles(out, values);
+			CidreIO.writeDoubles(out, (solutionLS != null) ? solutionLS : new double[0]);
+			out.writeInt(files.size());
+			for (String name : files)
+				out.writeUTF(name);
+			out.close();
+			out = null;
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			CidreIO.closeQuietly(out);
+			tmpFile.delete();
+		}
+	}
+
+	public static CidreStatistics read(String fileName) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a CIDRE statistics file");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported version " + version + " of the statistics file");
+			String fingerprint = in.readUTF();
+			Dimension imageSize = new Dimension(in.readInt(), in.readInt());
+			CidreStatistics statistics = new CidreStatistics(imageSize, in.readInt(), in.readInt());
+			statistics.fingerprint = fingerprint;
+			statistics.numImages = in.readInt();
+			statistics.K = in.readInt();
+			statistics.maxI = in.readInt();
+			statistics.histogram = new long[in.readInt()];
+			for (int i = 0; i < statistics.histogram.length; i++)
+				statistics.histogram[i] = in.readLong();
+			statistics.values = CidreIO.readDoubles(in);
+			if (statistics.values.length != statistics.C * statistics.R * statistics.K)
+				throw new IOException("The statistics file is damaged");
+			double[] solutionLS = CidreIO.readDoubles(in);
+			statistics.solutionLS = (solutionLS.length > 0) ? solutionLS : null;
+			int numFiles = in.readInt();
+			for (int i = 0; i < numFiles; i++)
+				statistics.files.add(in.readUTF());
+			return statistics;
+		} finally {
+			in.close();
+		}
+	}
+
+	// the fingerprint of the statistics file, null if there is none
+	public static String readFingerprint(String fileName)
+	{
+		if (!new File(fileName).exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			return in.readUTF();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			CidreIO.closeQuietly(in);
+		}
+	}
+}
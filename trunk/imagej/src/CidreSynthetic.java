@@ -0,0 +1,226 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// A synthetic dataset with a known illumination, the ground truth of the 
+// accuracy of the engine (see CidreHarness). Every image follows the model of
+// CIDRE, I = v * q + z, with a smooth off-center vignetting v, a zero-light 
+// surface z with a gentle gradient and a scene q of cells on a dim background.
+// The cells are disks of random size and brightness placed until they cover
+// the confluency, and the intensities get shot noise and Gaussian read noise
+// before they are rounded and clipped to the bit depth. The images are written
+// to the folder as synthetic_00000.tif..., and the true v and z as the model
+// of the ground_truth subfolder, which loadModel reads like any other model.
+// The same seed gives the same images.
+public class CidreSynthetic
+{
+	public static final String TRUTH_FOLDER = "ground_truth";
+
+	public Dimension imageSize = new Dimension(1392, 1040);
+	public int numImages = 500;
+	public int bitDepth = 12;			// stored in 16-bit images above 8 bits
+	public double vignetting = 0.5;		// loss of gain in the farthest corner, v is 1 at the center
+	public double zeroLight = 100;		// mean of z
+	public double brightness = 0.4;		// mean intensity of a cell as a fraction of the maximum intensity
+	public double background = 0.05;	// intensity of the background as a fraction of the cell brightness
+	public double confluency = 0.3;		// fraction of every image covered by cells
+	public double cellRadius = 15;		// mean radius of the cells in pixels
+	public double noise = 2;			// standard deviation of the read noise
+	public boolean shotNoise = true;	// Poisson noise of the intensities, approximated by a Gaussian
+	public long seed = 0;
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private static final double CENTER_X = 0.45;	// center of the vignetting, relative to the image size
+	private static final double CENTER_Y = 0.55;
+
+	// writes the images and the ground truth to the folder, returns false if
+	// an image could not be written
+	public boolean generate(String folder)
+	{
+		if (bitDepth < 8 || bitDepth > 16)
+			throw new IllegalArgumentException("The bit depth must be between 8 and 16");
+		final String destination = folder.endsWith(File.separator) ? folder : folder + File.separator;
+		new File(destination + TRUTH_FOLDER).mkdirs();
+
+		IJ.log(String.format("Generating %d synthetic images of %dx%d, %d bits, confluency %.2f, in %s", 
+				numImages, imageSize.width, imageSize.height, bitDepth, confluency, destination));
+		long t1 = System.currentTimeMillis();
+
+		CidreModel truth = getTruth();
+		try {
+			CidreModelFile.write(truth, destination + TRUTH_FOLDER + File.separator + CidreModelFile.FILE_NAME);
+		} catch (IOException e) {
+			IJ.log(" Cannot write the ground truth (" + e.getMessage() + ")");
+			return false;
+		}
+
+		final double[] v = truth.v;
+		final double[] z = truth.z;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<Future<Boolean>> images = new ArrayList<Future<Boolean>>();
+		try {
+			for (int k = 0; k < numImages; k++) {
+				final int index = k;
+				images.add(pool.submit(new Callable<Boolean>() {
+					@Override public Boolean call() {
+						String fileName = destination + String.format("synthetic_%05d.tif", index);
+						ImagePlus imp = new ImagePlus(fileName, getImage(index, v, z));
+						IJ.save(imp, fileName);
+						if (!new File(fileName).exists()) {
+							IJ.log(" Cannot write " + fileName);
+							return false;
+						}
+						return true;
+					}
+				}));
+			}
+			boolean ok = true;
+			for (Future<Boolean> image : images)
+				ok &= image.get();
+			IJ.log(String.format(" finished in %1.2fs.", (System.currentTimeMillis() - t1) / 1000.0));
+			return ok;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			IJ.log(" Cannot generate the synthetic images (" + e.getCause() + ")");
+			return false;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// the true model, its small surfaces sampled at about the working size of
+	// the engine
+	public CidreModel getTruth()
+	{
+		int width = imageSize.width;
+		int height = imageSize.height;
+		double scale = Math.min(1.0, Math.sqrt(9400.0 / ((double)width * height)));
+		int smallWidth = Math.max(1, (int)Math.round(width * scale));
+		int smallHeight = Math.max(1, (int)Math.round(height * scale));
+
+		CidreModel model = new CidreModel();
+		model.imageSize = new Dimension(width, height);
+		model.imageSize_small = new Dimension(smallWidth, smallHeight);
+		model.v = new double[width * height];
+		model.z = new double[width * height];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				model.v[y * width + x] = getV((x + 0.5) / width, (y + 0.5) / height);
+				model.z[y * width + x] = getZ((x + 0.5) / width, (y + 0.5) / height);
+			}
+		model.v_small = new double[smallWidth * smallHeight];
+		model.z_small = new double[smallWidth * smallHeight];
+		for (int x = 0; x < smallWidth; x++)
+			for (int y = 0; y < smallHeight; y++) {
+				model.v_small[x * smallHeight + y] = getV((x + 0.5) / smallWidth, (y + 0.5) / smallHeight);
+				model.z_small[x * smallHeight + y] = getZ((x + 0.5) / smallWidth, (y + 0.5) / smallHeight);
+			}
+		model.numImages = numImages;
+		model.bitDepth = bitDepth;
+		return model;
+	}
+
+	// v and z at the relative position (u, t) of the image
+	private double getV(double u, double t)
+	{
+		double aspect = (double)imageSize.height / imageSize.width;
+		double du = u - CENTER_X;
+		double dt = (t - CENTER_Y) * aspect;
+		double farthest = Math.max(CENTER_X, 1 - CENTER_X);
+		double r2max = farthest * farthest + Math.pow(Math.max(CENTER_Y, 1 - CENTER_Y) * aspect, 2);
+		return Math.max(0.05, 1 - vignetting * (du * du + dt * dt) / r2max);
+	}
+
+	private double getZ(double u, double t)
+	{
+		return zeroLight * (0.9 + 0.2 * u + 0.05 * Math.sin(Math.PI * t));
+	}
+
+	// the image with the given index, always the same for the same seed
+	private ImageProcessor getImage(int index, double[] v, double[] z)
+	{
+		int width = imageSize.width;
+		int height = imageSize.height;
+		Random random = new Random(seed * 1000003L + index);
+		double maxI = Math.pow(2, bitDepth) - 1;
+		double cellMean = brightness * maxI;
+
+		double[] q = new double[width * height];
+		Arrays.fill(q, background * cellMean);
+
+		// cells until they cover the confluency, a limit on the attempts for the
+		// confluencies close to 1
+		long covered = 0;
+		long target = Math.round(Math.min(1.0, Math.max(0.0, confluency)) * width * height);
+		for (int attempt = 0; covered < target && attempt < 100000; attempt++) {
+			double radius = cellRadius * (0.6 + 0.8 * random.nextDouble());
+			double cx = random.nextDouble() * width;
+			double cy = random.nextDouble() * height;
+			double intensity = cellMean * Math.exp(0.4 * random.nextGaussian() - 0.08);
+			int x0 = Math.max(0, (int)(cx - radius - 1));
+			int x1 = Math.min(width - 1, (int)(cx + radius + 1));
+			int y0 = Math.max(0, (int)(cy - radius - 1));
+			int y1 = Math.min(height - 1, (int)(cy + radius + 1));
+			for (int y = y0; y <= y1; y++)
+				for (int x = x0; x <= x1; x++) {
+					double d = Math.sqrt((x + 0.5 - cx) * (x + 0.5 - cx) + (y + 0.5 - cy) * (y + 0.5 - cy));
+					if (d >= radius)
+						continue;
+					// cells are domes, brightest in the middle, without the sharp
+					// edges the resizing of the working images would ring at
+					double weight = 1 - (d / radius) * (d / radius);
+					int i = y * width + x;
+					if (q[i] == background * cellMean)
+						covered++;
+					q[i] = Math.max(q[i], background * cellMean + weight * intensity);
+				}
+		}
+
+		byte[] bytes = (bitDepth <= 8) ? new byte[width * height] : null;
+		short[] shorts = (bitDepth <= 8) ? null : new short[width * height];
+		for (int i = 0; i < width * height; i++) {
+			double I = v[i] * q[i] + z[i];
+			double sigma2 = noise * noise + (shotNoise ? Math.max(0, I - z[i]) : 0);
+			I += Math.sqrt(sigma2) * random.nextGaussian();
+			int value = (int)Math.round(Math.max(0, Math.min(maxI, I)));
+			if (bytes != null)
+				bytes[i] = (byte)value;
+			else
+				shorts[i] = (short)value;
+		}
+		if (bytes != null)
+			return new ByteProcessor(width, height, bytes, null);
+		return new ShortProcessor(width, height, shorts, null);
+	}
+}
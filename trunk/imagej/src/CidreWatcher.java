@@ -0,0 +1,351 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Corrects the images of options.folderSource as they are written, until it 
+// is stopped or nothing happened for options.watchIdleTimeout seconds. The 
+// folder is watched for new and modified files matching the file mask, and a
+// file is corrected once its size and modification time did not change for 
+// options.watchSettleTime seconds, in the order the files appeared. The
+// corrected image is written under a temporary name and renamed, and only 
+// then added to the progress file in the destination folder. After a restart
+// the files of the progress file are skipped unless they changed since, and
+// the files written in the meantime are found by the scan of the folder at
+// the start.
+public class CidreWatcher
+{
+	public static final String PROGRESS_FILE = "cidre_watch_progress.txt";
+
+	private static final long RESCAN_INTERVAL = 30000;	// full scans of the folder in case events were missed, ms
+	private static final String TMP_PREFIX = ".cidre_tmp_";
+
+	private final CidreCorrector corrector;
+	private final boolean streaming;		// large images are corrected in strips
+	private final String folderSource;
+	private final String folderDestination;
+	private final ImageFolder.NameFilter filter;
+	private final long settleMillis;
+	private final long idleMillis;
+	private final int numThreads;
+
+	// the state below is guarded by this
+	private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();	// in the order they appeared
+	private final Set<String> inProgress = new HashSet<String>();
+	private final Map<String, String> corrected = new HashMap<String, String>();	// signatures of the corrected versions
+	private final Map<String, String> failed = new HashMap<String, String>();		// signatures of versions that could not be read
+	private Writer progress;
+	private int numCorrected;
+	private long lastActivity;
+
+	private volatile boolean stopped;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	// a file that is being written, or waits for its correction
+	private static class Pending
+	{
+		long size;
+		long modified;
+		long since;			// time the size and modification time were last seen changing
+	}
+
+	public CidreWatcher(CidreModel model, CidreOptions options)
+	{
+		CidreOptions.CorrectionMode correctionMode = (options.correctionMode != null) ? options.correctionMode : CidreOptions.CorrectionMode.zero_light_perserved;
+		streaming = ((long)model.imageSize.width * model.imageSize.height >= options.streamingMinPixels);
+		if (streaming) {
+			// as in cdr_correct, the coefficients are upsampled from the small surfaces
+			CidreModel smallModel = new CidreModel();
+			smallModel.imageSize = model.imageSize;
+			smallModel.imageSize_small = model.imageSize_small;
+			smallModel.v_small = model.v_small;
+			smallModel.z_small = model.z_small;
+			model = smallModel;
+		}
+		corrector = new CidreCorrector(model, correctionMode, options.outputType, options.outputOffset);
+		folderSource = options.folderSource;
+		folderDestination = options.folderDestination;
+		filter = new ImageFolder.NameFilter(options.fileFilterSource);
+		settleMillis = Math.round(options.watchSettleTime * 1000);
+		idleMillis = Math.round(options.watchIdleTimeout * 1000);
+		numThreads = Math.max(1, options.numThreads);
+	}
+
+	// watches the folder until stop is called or the idle timeout, returns the
+	// number of corrected images
+	public int run() throws IOException
+	{
+		WatchService watchService = FileSystems.getDefault().newWatchService();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			new File(folderSource).toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			readProgress();
+			progress = new OutputStreamWriter(new FileOutputStream(folderDestination + PROGRESS_FILE, true), "UTF-8");
+			IJ.log(" Watching " + folderSource + " for new images, " + corrected.size() + " corrected before");
+
+			lastActivity = System.currentTimeMillis();
+			scan();
+			long lastScan = System.currentTimeMillis();
+			long pollMillis = Math.max(50, settleMillis / 4);
+			while (!stopped) {
+				WatchKey key;
+				try {
+					key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ClosedWatchServiceException e) {
+					break;
+				}
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							scan();
+						else
+							touch(((Path)event.context()).getFileName().toString());
+					}
+					if (!key.reset())
+						throw new IOException("The folder " + folderSource + " cannot be watched any more");
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastScan >= RESCAN_INTERVAL) {
+					scan();
+					lastScan = now;
+				}
+				submitReady(pool, now);
+
+				synchronized (this) {
+					if (idleMillis > 0 && pending.isEmpty() && inProgress.isEmpty() && now - lastActivity >= idleMillis) {
+						IJ.log(String.format(" No new images for %1.0fs, stopped watching", idleMillis / 1000.0));
+						break;
+					}
+				}
+			}
+
+			// the images in progress are finished
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				return numCorrected;
+			}
+		} finally {
+			pool.shutdownNow();
+			watchService.close();
+			synchronized (this) {
+				CidreIO.closeQuietly(progress);
+			}
+			terminated.countDown();
+		}
+	}
+
+	// stops watching, the images in progress are still finished
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	// waits until run returned, false after the timeout
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return terminated.await(timeout, unit);
+	}
+
+	private void scan()
+	{
+		String[] names = new File(folderSource).list(filter);
+		if (names == null)
+			return;
+		Arrays.sort(names);
+		for (String name : names)
+			touch(name);
+	}
+
+	// records a new or modified file
+	private synchronized void touch(String name)
+	{
+		if (name.startsWith(TMP_PREFIX) || !filter.accept(name))
+			return;
+		File file = new File(folderSource + name);
+		if (!file.isFile() || inProgress.contains(name))
+			return;
+
+		long size = file.length();
+		long modified = file.lastModified();
+		String signature = size + "\t" + modified;
+		if (signature.equals(corrected.get(name)) || signature.equals(failed.get(name)))
+			return;
+
+		Pending entry = pending.get(name);
+		if (entry == null) {
+			entry = new Pending();
+			pending.put(name, entry);
+		} else if (entry.size == size && entry.modified == modified) {
+			return;
+		}
+		entry.size = size;
+		entry.modified = modified;
+		entry.since = System.currentTimeMillis();
+		lastActivity = entry.since;
+	}
+
+	// submits the files that did not change for the settle time, in order, 
+	// while fewer than two per thread are in progress
+	private synchronized void submitReady(ExecutorService pool, long now)
+	{
+		Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+		while (it.hasNext() && inProgress.size() < 2 * numThreads) {
+			Map.Entry<String, Pending> e = it.next();
+			final String name = e.getKey();
+			Pending entry = e.getValue();
+
+			File file = new File(folderSource + name);
+			if (!file.isFile()) {
+				it.remove();		// deleted before it was corrected
+				continue;
+			}
+			long size = file.length();
+			long modified = file.lastModified();
+			if (size != entry.size || modified != entry.modified) {
+				entry.size = size;
+				entry.modified = modified;
+				entry.since = now;
+				lastActivity = now;
+				continue;
+			}
+			if (now - entry.since < settleMillis)
+				continue;
+
+			it.remove();
+			final String signature = size + "\t" + modified;
+			if (size == 0) {
+				// an empty placeholder, watched again only once it is written to
+				failed.put(name, signature);
+				continue;
+			}
+			inProgress.add(name);
+			pool.execute(new Runnable() {
+				@Override public void run() {
+					String error = null;
+					try {
+						if (!correct(name))
+							error = "cannot be opened";
+					} catch (Throwable t) {
+						error = t.toString();
+					}
+					finished(name, signature, error);
+				}
+			});
+		}
+	}
+
+	// corrects a file to a temporary file of the destination folder, which is
+	// then renamed, returns false if the file cannot be opened
+	private boolean correct(String name) throws IOException
+	{
+		long t0 = System.nanoTime();
+		File tmpFile = new File(folderDestination + TMP_PREFIX + name);
+		try {
+			if (!streaming || !corrector.correctFile(folderSource, name, folderDestination, tmpFile.getName())) {
+				ImagePlus imp = IJ.openImage(folderSource + name);
+				if (imp == null)
+					return false;
+				corrector.correct(imp);
+				IJ.save(imp, tmpFile.getPath());
+				imp.close();
+			}
+			Files.move(tmpFile.toPath(), new File(folderDestination + name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmpFile.delete();	// left over only if the file could not be corrected
+		}
+		CidreMetrics.getDefault().phaseFinished(CidreMetrics.CORRECTION, t0);
+		return true;
+	}
+
+	// error is null if the file was corrected
+	private synchronized void finished(String name, String signature, String error)
+	{
+		inProgress.remove(name);
+		lastActivity = System.currentTimeMillis();
+		if (error != null) {
+			// tried again only if the file changes
+			IJ.log(" Could not correct " + folderSource + name + " (" + error + ")");
+			failed.put(name, signature);
+			return;
+		}
+		corrected.put(name, signature);
+		numCorrected++;
+		try {
+			progress.write(name + "\t" + signature + "\n");
+			progress.flush();
+		} catch (IOException e) {
+			IJ.log(" Warning: could not write the progress file (" + e.getMessage() + ")");
+		}
+		if (numCorrected % 100 == 0)
+			IJ.log(" " + numCorrected + " images corrected");
+	}
+
+	// the files corrected by earlier runs, the last line of a file wins
+	private void readProgress() throws IOException
+	{
+		File file = new File(folderDestination + PROGRESS_FILE);
+		if (!file.exists())
+			return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0 && line.indexOf('\t', tab + 1) > 0)
+					corrected.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
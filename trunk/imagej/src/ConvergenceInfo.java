@@ -0,0 +1,26 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+public class ConvergenceInfo {
+	public String phase;			// "LS" or "CAUCHY" minFunc phase
+	public int exitflag;			// minFunc exit flag, -1 when stopped by the time limit
+	public String msg;				// minFunc exit message
+	public MinFuncResult.ExitReason reason;	// why minFunc stopped
+	public int iterations;			// completed L-BFGS iterations
+	public int funEvals;			// evaluations of the objective function
+	public double f;				// energy of the best iterate
+	public double optCond;			// max absolute gradient at the best iterate
+	public double seconds;			// wall-clock time of the phase
+	public boolean timeLimited;		// true if the phase was stopped by the time limit
+}
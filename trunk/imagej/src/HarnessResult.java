@@ -0,0 +1,23 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+// a mode of the CidreHarness, the job of the mode and its accuracy against the
+// ground truth of the synthetic dataset
+public class HarnessResult extends BatchJob {
+	public String name;
+	public long peakHeapBytes;		// peak of the heap during the build and the correction
+	public double vError;			// RMS of the difference of v and the true v, both scaled to a mean of 1
+	public double zError;			// RMS of the difference of z and the true z, in intensities
+	public double nonUniformity;	// coefficient of variation of a uniform scene after the correction
+}
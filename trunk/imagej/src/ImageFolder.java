@@ -0,0 +1,100 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Locale;
+
+// The names of the images of a folder that match a file mask, enumerated
+// lazily: a name is returned as soon as the listing of the folder reaches it,
+// so the work on the first images starts before a large folder is listed 
+// completely. The names are in the order of the directory, like the ones of
+// File.listFiles. The folder is listed once, and must be closed.
+public class ImageFolder implements Iterable<String>, Closeable
+{
+	private final DirectoryStream<Path> stream;
+
+	private ImageFolder(DirectoryStream<Path> stream)
+	{
+		this.stream = stream;
+	}
+
+	public static ImageFolder open(String folder, String fileMask) throws IOException
+	{
+		return new ImageFolder(Files.newDirectoryStream(Paths.get(folder), new NameFilter(fileMask)));
+	}
+
+	@Override
+	public Iterator<String> iterator()
+	{
+		final Iterator<Path> paths = stream.iterator();
+		return new Iterator<String>() {
+			@Override public boolean hasNext() {
+				return paths.hasNext();
+			}
+			@Override public String next() {
+				return paths.next().getFileName().toString();
+			}
+			@Override public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stream.close();
+	}
+
+	// the file masks of the source folders, globs such as *.tif or 
+	// img_*.{tif,tiff} matched case insensitively. An empty mask matches 
+	// every file.
+	public static class NameFilter implements DirectoryStream.Filter<Path>, FilenameFilter
+	{
+		private final PathMatcher matcher;
+
+		public NameFilter(String fileMask)
+		{
+			String glob = (fileMask != null && fileMask.length() > 0) ? fileMask : "*";
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.toLowerCase(Locale.ROOT));
+		}
+
+		public boolean accept(String name)
+		{
+			return matcher.matches(Paths.get(name.toLowerCase(Locale.ROOT)).getFileName());
+		}
+
+		@Override
+		public boolean accept(Path entry)
+		{
+			return accept(entry.getFileName().toString());
+		}
+
+		@Override
+		public boolean accept(File dir, String name)
+		{
+			return accept(name);
+		}
+	}
+}
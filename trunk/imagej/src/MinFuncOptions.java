@@ -1,21 +1,26 @@
-// From the CIDRE project, an illumination correction method for optical
-// microscopy (https://github.com/smithk/cidre).
-// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
-// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
-// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
-// Switzerland. All rights reserved.
-//
-// CIDRE is free software; you can redistribute it and/or modify it 
-// under the terms of the GNU General Public License version 2 (or higher) 
-// as published by the Free Software Foundation. See the license file in
-// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
-// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
-// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
-
-public class MinFuncOptions {
-	public int maxIter;			// max iterations for optimization
-	public int MaxFunEvals;		// max evaluations of objective function
-	public double progTol;		// progress tolerance
-	public double optTol;		// optimality tolerance
-	public int Corr;			// number of corrections to store in memory
-}
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+public class MinFuncOptions {
+	public int maxIter;			// max iterations for optimization
+	public int MaxFunEvals;		// max evaluations of objective function
+	public double progTol;		// progress tolerance
+	public double optTol;		// optimality tolerance
+	public int Corr;			// number of corrections to store in memory
+	public int lineSearchBatch;	// number of trial steps evaluated together while bracketing
+	public long deadline;		// System.currentTimeMillis() at which to stop, 0 for no time limit
+	public String checkpointFile;	// file the optimizer state is saved to, null for no checkpoints
+	public long checkpointInterval;	// milliseconds between checkpoints
+	public OptimizerTrace trace;	// records every iteration, null for no trace
+}
@@ -0,0 +1,34 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+public class MinFuncState {
+	public int iteration;		// index of the next L-BFGS iteration
+	public int iterations;		// completed iterations
+	public int funEvals;
+	public double[] x;
+	public double f;
+	public double[] g;
+	public double[] g_old;
+	public double[] d;
+	public double t;
+	public double[][] S;		// L-BFGS history of steps
+	public double[][] Y;		// L-BFGS history of gradient differences
+	public double[] YS;
+	public int lbfgs_start;
+	public int lbfgs_end;
+	public double Hdiag;
+	public double[] xBest;
+	public double fBest;
+	public double optCondBest;
+}
@@ -0,0 +1,136 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// A folder of models keyed by the fingerprint of their source images and the
+// options they were built with, so a build of images that did not change 
+// since an earlier build returns the earlier model instead of optimizing 
+// again. Every model is a model file named after its key. Reading a model 
+// renews its modification time, and after a model is added the models older
+// than the maximum age are removed, then the least recently used ones until
+// the folder is within its maximum size.
+public class ModelCache
+{
+	private static final String EXTENSION = ".bin";
+	private static final int VERSION = 1;	// changed when the models of the same key would differ
+
+	private final File folder;
+	private final long maxBytes;
+	private final long maxAge;		// milliseconds
+
+	public ModelCache(String folder, long maxBytes, double maxAgeDays)
+	{
+		this.folder = new File(folder);
+		this.maxBytes = maxBytes;
+		this.maxAge = Math.round(maxAgeDays * 24 * 3600 * 1000);
+	}
+
+	// the default folder of the cache in the home folder of the user
+	public static String getDefaultFolder()
+	{
+		return System.getProperty("user.home") + File.separator + ".cidre" + File.separator + "model_cache";
+	}
+
+	// the key of the model of the images with the given fingerprint, built
+	// with options. The options must already have their default values.
+	public static String getKey(String imagesFingerprint, CidreOptions options)
+	{
+		StringBuilder key = new StringBuilder();
+		key.append(VERSION).append('\n');
+		key.append(imagesFingerprint).append('\n');
+		key.append(options.lambdaVreg).append('\n');
+		key.append(options.lambdaZero).append('\n');
+		key.append(options.qPercent).append('\n');
+		key.append(options.zLimits[0]).append('\t').append(options.zLimits[1]).append('\n');
+		key.append(options.maxLbgfsIterations).append('\n');
+		key.append((options.numThreads > 1) ? options.lineSearchBatch : 1).append('\n');
+		key.append(options.bitDepth).append('\n');
+		key.append(options.fullSizeModel).append('\n');
+		return CidreIO.sha1(key.toString());
+	}
+
+	private File getFile(String key)
+	{
+		return new File(folder, key + EXTENSION);
+	}
+
+	// the cached model of the key, null if there is none
+	public CidreModel get(String key, boolean fullSize)
+	{
+		File file = getFile(key);
+		if (!file.exists())
+			return null;
+		try {
+			CidreModel model = CidreModelFile.read(file.getPath(), fullSize);
+			file.setLastModified(System.currentTimeMillis());
+			return model;
+		} catch (IOException e) {
+			IJ.log(" Cannot read the cached model " + file.getPath() + " (" + e.getMessage() + ")");
+			file.delete();
+			return null;
+		}
+	}
+
+	public void put(String key, CidreModel model)
+	{
+		folder.mkdirs();
+		try {
+			CidreModelFile.write(model, getFile(key).getPath());
+		} catch (IOException e) {
+			IJ.log(" Cannot write the cached model " + getFile(key).getPath() + " (" + e.getMessage() + ")");
+			return;
+		}
+		evict();
+	}
+
+	// removes the models that are too old, then the least recently used ones
+	// while the cache is too large
+	private void evict()
+	{
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override public int compare(Integer o1, Integer o2) {
+				return Long.compare(lastModified[o2], lastModified[o1]);
+			}
+		});
+
+		// the most recently used models are kept as long as they fit
+		long now = System.currentTimeMillis();
+		long bytes = 0;
+		for (int i = 0; i < order.length; i++) {
+			File file = files[order[i]];
+			if (!file.getName().endsWith(EXTENSION))
+				continue;
+			long length = file.length();
+			if (bytes + length > maxBytes || now - lastModified[order[i]] > maxAge)
+				file.delete();
+			else
+				bytes += length;
+		}
+	}
+}
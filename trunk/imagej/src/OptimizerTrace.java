@@ -0,0 +1,123 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+// The trace of an optimization, cidre_optimizer_trace.bin: one fixed-size 
+// binary record per L-BFGS iteration of both phases, written without any 
+// formatting from the optimization loop. After the magic and the version,
+// every record is
+//
+//   phase (0 LS, 1 CAUCHY), iteration, evaluations, E, max |g|, step length t,
+//   nanoseconds since the trace was opened
+//
+// as a byte, two ints, three doubles and a long. Iteration 0 is the starting
+// point of a phase. A trace of a resumed build is appended to, so it starts 
+// again from 0 nanoseconds at the resumption. Writing errors turn the trace 
+// off rather than stopping the optimization.
+public class OptimizerTrace implements Closeable
+{
+	public static final String FILE_NAME = "cidre_optimizer_trace.bin";
+
+	private static final int MAGIC = 0x43445452;	// "CDTR"
+	private static final int VERSION = 1;
+
+	private final String fileName;
+	private final long tStart = System.nanoTime();
+	private DataOutputStream out;
+
+	public OptimizerTrace(String fileName, boolean append) throws IOException
+	{
+		this.fileName = fileName;
+		boolean header = !append || new File(fileName).length() == 0;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName, append)));
+		if (header) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+	}
+
+	public synchronized void record(int phase, int iteration, int funEvals, double f, double optCond, double t)
+	{
+		if (out == null)
+			return;
+		try {
+			out.writeByte(phase);
+			out.writeInt(iteration);
+			out.writeInt(funEvals);
+			out.writeDouble(f);
+			out.writeDouble(optCond);
+			out.writeDouble(t);
+			out.writeLong(System.nanoTime() - tStart);
+		} catch (IOException e) {
+			IJ.log(" Warning: could not write the optimizer trace " + fileName + " (" + e.getMessage() + ")");
+			CidreIO.closeQuietly(out);
+			out = null;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (out != null)
+			out.close();
+		out = null;
+	}
+
+	// prints a trace as CSV, one line per record
+	public static void print(String fileName, PrintStream stream) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("unknown file format");
+			stream.println("phase,iteration,evaluations,E,max_abs_g,t,seconds");
+			// the last record of a trace that is still written, or of a crashed
+			// build, may be cut anywhere, it is left out
+			while (true) {
+				int phase, iteration, evaluations;
+				double f, optCond, t;
+				long nanoseconds;
+				try {
+					phase = in.readByte();
+					iteration = in.readInt();
+					evaluations = in.readInt();
+					f = in.readDouble();
+					optCond = in.readDouble();
+					t = in.readDouble();
+					nanoseconds = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				stream.println(String.format(Locale.ROOT, "%s,%d,%d,%g,%g,%g,%.3f", (phase == 0) ? "LS" : "CAUCHY", 
+						iteration, evaluations, f, optCond, t, nanoseconds / 1e9));
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import java.awt.Dimension;
+
+// the heap and the runtime a build would need, estimated by CidrePlanner 
+// before the images are read
+public class ResourcePlan {
+	public enum Strategy { IN_MEMORY, STREAMING };
+
+	public Strategy strategy;			// the strategy of the build, null if none fits the heap
+	public int numImages;
+	public Dimension imageSize;
+	public Dimension workingSize;
+	public int octaves;					// octaves of the scale-space resampling, 1 if it is not applied
+	public int quantiles;				// images of the compressed stack the optimization works on
+	public long stackBytes;				// all the images at the working size
+	public long scaleSpaceBytes;		// the scale-space reductions and the resampled stack
+	public long optimizationBytes;		// the pivoted stack, the L-BFGS history and the model
+	public long peakBytesInMemory;		// peak of a build that keeps all the images
+	public long peakBytesStreaming;		// peak of a build that folds them into quantiles batch by batch
+	public long availableBytes;			// heap the build may use
+	public double secondsRead;
+	public double secondsPreprocess;
+	public double secondsOptimization;
+
+	// the peak of the chosen strategy, the smaller peak if none fits
+	public long getPeakBytes()
+	{
+		if (strategy == Strategy.IN_MEMORY)
+			return peakBytesInMemory;
+		if (strategy == Strategy.STREAMING)
+			return peakBytesStreaming;
+		return Math.min(peakBytesInMemory, peakBytesStreaming);
+	}
+
+	public double getSeconds()
+	{
+		return secondsRead + secondsPreprocess + secondsOptimization;
+	}
+}
@@ -0,0 +1,260 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Reading and writing the rows of uncompressed single-image grayscale TIFF 
+// files a few at a time, for images too large to be kept in memory.
+public class StreamingTiff
+{
+	private static final long MAX_TIFF_SIZE = 0xFFFFFFFFL;	// offsets of classic TIFF files are 32-bit
+
+	// the file info of a TIFF file that can be read row by row, null if the
+	// file is compressed, has several images or is not an 8-bit, 16-bit or 
+	// 32-bit float grayscale image
+	public static FileInfo getStreamableInfo(String directory, String name)
+	{
+		String lowerCaseName = name.toLowerCase();
+		if (!lowerCaseName.endsWith(".tif") && !lowerCaseName.endsWith(".tiff"))
+			return null;
+		FileInfo[] info;
+		try {
+			info = new TiffDecoder(directory, name).getTiffInfo();
+		} catch (IOException e) {
+			return null;
+		}
+		if (info == null || info.length != 1)
+			return null;
+		FileInfo fi = info[0];
+		if (fi.nImages > 1 || fi.compression != FileInfo.COMPRESSION_NONE)
+			return null;
+		if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED && fi.fileType != FileInfo.GRAY32_FLOAT)
+			return null;
+		return fi;
+	}
+
+	// the next pixel value of buffer
+	private static float getValue(ByteBuffer buffer, int fileType)
+	{
+		switch (fileType) {
+			case FileInfo.GRAY8:
+				return buffer.get() & 0xff;
+			case FileInfo.GRAY16_UNSIGNED:
+				return buffer.getShort() & 0xffff;
+			default:
+				return buffer.getFloat();
+		}
+	}
+
+	// decodes the next row of buffer into row, a byte[], short[] or float[]
+	// array of the image width
+	public static void decodeRow(ByteBuffer buffer, int fileType, Object row)
+	{
+		if (row instanceof float[]) {
+			float[] p = (float[])row;
+			for (int x = 0; x < p.length; x++)
+				p[x] = getValue(buffer, fileType);
+		} else if (row instanceof short[]) {
+			buffer.asShortBuffer().get((short[])row);
+			buffer.position(buffer.position() + 2 * ((short[])row).length);
+		} else {
+			buffer.get((byte[])row);
+		}
+	}
+
+	// encodes row, a byte[], short[] or float[] array, at the end of buffer
+	public static void encodeRow(Object row, ByteBuffer buffer)
+	{
+		if (row instanceof float[]) {
+			buffer.asFloatBuffer().put((float[])row);
+			buffer.position(buffer.position() + 4 * ((float[])row).length);
+		} else if (row instanceof short[]) {
+			buffer.asShortBuffer().put((short[])row);
+			buffer.position(buffer.position() + 2 * ((short[])row).length);
+		} else {
+			buffer.put((byte[])row);
+		}
+	}
+
+	// reads the rows of the image of a TIFF file described by getStreamableInfo
+	public static class Reader implements Closeable
+	{
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final FileInfo fi;
+		private final int rowBytes;
+		private final int rowsPerStrip;
+
+		public Reader(String fileName, FileInfo fi) throws IOException
+		{
+			this.fi = fi;
+			this.rowBytes = fi.width * fi.getBytesPerPixel();
+			// without strips, or with a single one, the rows follow each other
+			boolean contiguous = (fi.stripOffsets == null || fi.stripOffsets.length <= 1);
+			this.rowsPerStrip = (contiguous || fi.rowsPerStrip <= 0) ? fi.height : fi.rowsPerStrip;
+			this.file = new RandomAccessFile(fileName, "r");
+			this.channel = file.getChannel();
+		}
+
+		public ByteOrder getByteOrder()
+		{
+			return fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		}
+
+		private long getRowOffset(int y)
+		{
+			int strip = y / rowsPerStrip;
+			long stripOffset = (fi.stripOffsets != null && fi.stripOffsets.length > strip) ? (fi.stripOffsets[strip] & 0xFFFFFFFFL) : fi.getOffset();
+			return stripOffset + (long)(y % rowsPerStrip) * rowBytes;
+		}
+
+		// reads n rows from row y into the buffer, the rows within a strip are 
+		// read together
+		public void readRows(int y, int n, ByteBuffer buffer) throws IOException
+		{
+			int end = y + n;
+			while (y < end) {
+				int rows = Math.min(end - y, rowsPerStrip - y % rowsPerStrip);
+				long position = getRowOffset(y);
+				int limit = buffer.position() + rows * rowBytes;
+				ByteBuffer block = buffer.duplicate();
+				block.limit(limit);
+				while (block.hasRemaining()) {
+					int read = channel.read(block, position + (block.position() - buffer.position()));
+					if (read < 0)
+						throw new IOException("Unexpected end of " + fi.fileName);
+				}
+				buffer.position(limit);
+				y += rows;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			file.close();
+		}
+	}
+
+	// writes a big-endian uncompressed grayscale TIFF file as a single strip,
+	// the header is written first and the rows are appended as they come.
+	// The photometric interpretation, the ImageDescription and the 
+	// calibration of the source file are copied, as ImageJ would save them.
+	public static class Writer implements Closeable
+	{
+		private final FileOutputStream stream;
+		private final FileChannel channel;
+
+		public Writer(String fileName, FileInfo source, int bytesPerPixel, boolean floatSamples) throws IOException
+		{
+			int width = source.width;
+			int height = source.height;
+			byte[] description = (source.description != null && source.description.length() > 0) ? (source.description + "\0").getBytes("ISO-8859-1") : null;
+			boolean calibrated = (source.unit != null && source.pixelWidth > 0 && source.pixelHeight > 0);
+
+			int numEntries = 10 + (description != null ? 1 : 0) + (calibrated ? 3 : 0);
+			int ifdSize = 2 + numEntries * 12 + 4;
+			int descriptionOffset = 8 + ifdSize;
+			int resolutionOffset = descriptionOffset + (description != null ? (description.length + 1) / 2 * 2 : 0);
+			int headerSize = resolutionOffset + (calibrated ? 16 : 0);
+			long dataSize = (long)width * height * bytesPerPixel;
+			if (headerSize + dataSize > MAX_TIFF_SIZE)
+				throw new IOException(String.format("A %dx%d image of %d bytes per pixel is too large for a TIFF file", width, height, bytesPerPixel));
+
+			ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.BIG_ENDIAN);
+			header.put((byte)'M').put((byte)'M').putShort((short)42).putInt(8);
+			header.putShort((short)numEntries);
+			putEntry(header, 256, width);							// ImageWidth
+			putEntry(header, 257, height);							// ImageLength
+			putShortEntry(header, 258, 8 * bytesPerPixel);			// BitsPerSample
+			putShortEntry(header, 259, 1);							// Compression: none
+			putShortEntry(header, 262, source.whiteIsZero ? 0 : 1);	// PhotometricInterpretation
+			if (description != null)								// ImageDescription
+				header.putShort((short)270).putShort((short)2).putInt(description.length).putInt(descriptionOffset);
+			putEntry(header, 273, headerSize);						// StripOffsets
+			putShortEntry(header, 277, 1);							// SamplesPerPixel
+			putEntry(header, 278, height);							// RowsPerStrip
+			putEntry(header, 279, (int)dataSize);					// StripByteCounts
+			if (calibrated) {
+				header.putShort((short)282).putShort((short)5).putInt(1).putInt(resolutionOffset);		// XResolution
+				header.putShort((short)283).putShort((short)5).putInt(1).putInt(resolutionOffset + 8);	// YResolution
+				int unit = 1;										// ResolutionUnit: none, the unit is in the description
+				if (source.unit.equals("inch"))
+					unit = 2;
+				else if (source.unit.equals("cm"))
+					unit = 3;
+				putShortEntry(header, 296, unit);
+			}
+			putShortEntry(header, 339, floatSamples ? 3 : 1);		// SampleFormat: IEEE float or unsigned integer
+			header.putInt(0);										// no next IFD
+			if (description != null) {
+				header.put(description);
+				header.position(resolutionOffset);
+			}
+			if (calibrated) {
+				putResolution(header, 1.0 / source.pixelWidth);
+				putResolution(header, 1.0 / source.pixelHeight);
+			}
+			header.position(headerSize);
+			header.flip();
+
+			stream = new FileOutputStream(fileName);
+			channel = stream.getChannel();
+			write(header);
+		}
+
+		// the pixels per unit as a rational, with the denominators ImageJ uses
+		private static void putResolution(ByteBuffer buffer, double scale)
+		{
+			double denominator = scale > 1000.0 ? 1000.0 : 1000000.0;
+			buffer.putInt((int)(scale * denominator)).putInt((int)denominator);
+		}
+
+		private static void putEntry(ByteBuffer buffer, int tag, int value)
+		{
+			buffer.putShort((short)tag).putShort((short)4).putInt(1).putInt(value);
+		}
+
+		private static void putShortEntry(ByteBuffer buffer, int tag, int value)
+		{
+			buffer.putShort((short)tag).putShort((short)3).putInt(1).putShort((short)value).putShort((short)0);
+		}
+
+		public ByteOrder getByteOrder()
+		{
+			return ByteOrder.BIG_ENDIAN;
+		}
+
+		public void write(ByteBuffer buffer) throws IOException
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			stream.close();
+		}
+	}
+}
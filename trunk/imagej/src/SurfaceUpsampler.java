@@ -0,0 +1,133 @@
+// From the CIDRE project, an illumination correction method for optical
+// microscopy (https://github.com/smithk/cidre).
+// Copyright © 2015 Kevin Smith and Peter Horvath, adapted in Java by 
+// Csaba Balazs. Scientific Center for Optical and Electron Microscopy 
+// (SCOPEM), Swiss Federal Institute of Technology Zurich (ETH Zurich), 
+// Switzerland. All rights reserved.
+//
+// CIDRE is free software; you can redistribute it and/or modify it 
+// under the terms of the GNU General Public License version 2 (or higher) 
+// as published by the Free Software Foundation. See the license file in
+// the root folder. This program is distributed WITHOUT ANY WARRANTY; 
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A 
+// PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+// Bilinear upsampling of the small column-major surfaces of a model to the 
+// image size, with the weights of MATLAB's imresize. The surface is resized 
+// along the width first, then any row of the image size can be computed from
+// the few rows of that intermediate result, so a surface of the image size 
+// never has to be kept in memory.
+public class SurfaceUpsampler
+{
+	private static final int P = 4;		// ceil(kernel width) + 2 taps per output pixel
+
+	private final int smallHeight;
+	private final int width;
+	private final int height;
+	private final int[][] wIndices;
+	private final double[][] wWeights;
+	private final int[][] hIndices;
+	private final double[][] hWeights;
+
+	public SurfaceUpsampler(int smallWidth, int smallHeight, int width, int height)
+	{
+		this.smallHeight = smallHeight;
+		this.width = width;
+		this.height = height;
+		wIndices = new int[P][width];
+		wWeights = new double[P][width];
+		computeWeights(smallWidth, width, wIndices, wWeights);
+		hIndices = new int[P][height];
+		hWeights = new double[P][height];
+		computeWeights(smallHeight, height, hIndices, hWeights);
+	}
+
+	private static double triangle(double x) {
+		return (x+1.0) * ((-1.0 <= x) && (x < 0.0) ? 1.0 : 0.0) + (1.0-x) * ((0.0 <= x) && (x <= 1.0) ? 1.0 : 0.0);
+	}
+
+	private static void computeWeights(int origSize, int newSize, int[][] indices, double[][] weights)
+	{
+    	double scale = (double)newSize / origSize;		    		
+		double kernel_width = 2;
+		double[] u = new double[newSize];
+		int[] left = new int[newSize];
+		for (int j = 0; j < newSize; j++) {
+			u[j] = (j+1) / scale + 0.5 * (1.0 - 1.0 / scale);
+			left[j] = (int)Math.floor(u[j] - kernel_width/2.0);
+		}
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newSize; j++) {
+				indices[p][j] = left[j] + p;
+				weights[p][j] = triangle(u[j] - indices[p][j]);
+			}	    				
+		}
+		// Normalize the weights matrix so that each row sums to 1.
+		for (int j = 0; j < newSize; j++) {
+			double sum = 0;
+			for (int p = 0; p < P; p++) {
+				sum += weights[p][j]; 
+			}
+			for (int p = 0; p < P; p++) {
+				weights[p][j] /= sum;
+			}
+		}    				
+		// Clamp out-of-range indices; has the effect of replicating end-points.
+		for (int p = 0; p < P; p++) {
+			for (int j = 0; j < newSize; j++) {
+				indices[p][j]--;
+				if (indices[p][j] < 0)
+					indices[p][j] = 0;
+				else if (indices[p][j] >= origSize - 1)
+					indices[p][j] = origSize - 1;
+			}
+		}
+	}
+
+	// resizes a small column-major surface along the width, the result is 
+	// column-major with the small height (index x*smallHeight+y)
+	public double[] resizeWidth(double[] small)
+	{
+    	double[] result = new double[width * smallHeight];
+    	for (int i = 0; i < width; i++) {
+    		for (int p = 0; p < P; p++) {
+    			for(int j = 0; j < smallHeight; j++) {
+    				result[i * smallHeight + j] += (small[wIndices[p][i] * smallHeight + j]) * wWeights[p][i];
+    			}
+    		}			    		
+    	}
+    	return result;
+	}
+
+	// row y of the surface of the image size, from the result of resizeWidth
+	public void getRow(double[] resizedWidth, int y, double[] row)
+	{
+		for (int i = 0; i < width; i++) {
+			double value = 0;
+			for (int p = 0; p < P; p++)
+				value += (resizedWidth[i * smallHeight + hIndices[p][y]]) * hWeights[p][y];
+			row[i] = value;
+		}
+	}
+
+	// the row-major surface of the image size (index y*width+x)
+	public double[] upsample(double[] small)
+	{
+		double[] resizedWidth = resizeWidth(small);
+		double[] result = new double[width * height];
+		double[] row = new double[width];
+		for (int y = 0; y < height; y++) {
+			getRow(resizedWidth, y, row);
+			System.arraycopy(row, 0, result, y * width, width);
+		}
+		return result;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}